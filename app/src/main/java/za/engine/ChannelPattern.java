@@ -0,0 +1,65 @@
+package za.engine;
+
+import java.util.regex.Pattern;
+
+/**
+ * A plugin channel name, or a pattern of them where '*' matches any characters (e.g. crawl.*)
+ *
+ * Used by everything that is configured per channel, e.g. routes, codecs and channel sets. The regex of a pattern
+ * is compiled once, callers that match the same channel often should still cache the result.
+ */
+public final class ChannelPattern {
+    public static final String WILDCARD = "*";
+
+    private final String pattern;
+    private final Pattern regex;  // null if the pattern is a plain channel name
+
+    public ChannelPattern(String pattern) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("Must have a non-empty channel pattern");
+        }
+        this.pattern = pattern;
+        this.regex = pattern.contains(WILDCARD) ? toRegex(pattern) : null;
+    }
+
+    /**
+     * @return true if the pattern matches every channel
+     */
+    public boolean isCatchAll() {
+        return pattern.equals(WILDCARD);
+    }
+
+    public boolean matches(String channel) {  // thread-safe
+        return regex == null ? pattern.equals(channel) : regex.matcher(channel).matches();
+    }
+
+    public String pattern() {
+        return pattern;
+    }
+
+    private static Pattern toRegex(String pattern) {
+        var regex = new StringBuilder();
+        for (var part : pattern.split(Pattern.quote(WILDCARD), -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ChannelPattern p && pattern.equals(p.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return pattern.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
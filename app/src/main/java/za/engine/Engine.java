@@ -1,17 +1,33 @@
 package za.engine;
 
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
-import za.engine.event.EventLoop;
+import za.engine.codec.MessageCodecs;
+import za.engine.event.ChannelSet;
+import za.engine.event.DataKeyFilter;
+import za.engine.event.EventLoopConfig;
+import za.engine.event.EventLoopGroup;
+import za.engine.event.Events;
+import za.engine.event.MessageRouting;
+import za.engine.event.OverflowPolicy;
+import za.engine.event.RetryPolicy;
+import za.engine.event.SendPolicy;
 import za.engine.http.DrainableHttpClient;
 import za.engine.http.HttpClientFactory;
+import za.engine.mq.LocalBroker;
+import za.engine.mq.LocalMessageClient;
 import za.engine.mq.MessageClient;
 import za.engine.mq.RabbitMQClient;
+import za.engine.mq.SegmentLogMessageClient;
+import za.engine.mq.SegmentLogStore;
 import za.lib.Logger;
 import za.lib.Plugin;
 
@@ -24,20 +40,26 @@ public final class Engine {
     private final List<Plugin> plugins;
     private final Supplier<DrainableHttpClient> httpFactory;
     private final Supplier<MessageClient> messageClientFactory;
-    private final RegistryImpl registry;
+    private final int eventLoops;
+    private final EventLoopConfig eventLoopConfig;
+    private final List<String> mqSubscriptions;
 
     Engine(
         Logger log,
         List<Plugin> plugins,
         Supplier<DrainableHttpClient> http,         
         Supplier<MessageClient> messageClientFactory,
-        RegistryImpl registry) {
+        int eventLoops,
+        EventLoopConfig eventLoopConfig,
+        List<String> mqSubscriptions) {
         this.started = false;
         this.log = log;
         this.plugins = plugins;
         this.httpFactory = http;
         this.messageClientFactory = messageClientFactory;
-        this.registry = registry;
+        this.eventLoops = eventLoops;
+        this.eventLoopConfig = eventLoopConfig;
+        this.mqSubscriptions = mqSubscriptions;
     }
 
     /**
@@ -89,17 +111,143 @@ public final class Engine {
             var rmqVirtualHost = args.getOrDefault("rmq-virtualhost", "/");
             var rmqHost = args.getOrDefault("rmq-host", "localhost");
             var rmqPort = Integer.parseInt(args.getOrDefault("rmq-port", "5672"));
+            var eventLoops = Integer.parseInt(args.getOrDefault("event-loops", "1"));
+            var eventBatchSize = Integer.parseInt(args.getOrDefault("event-batch-size",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_BATCH_SIZE)));
+            var httpDrainTickMs = Long.parseLong(args.getOrDefault("http-drain-tick-ms",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_DRAIN_TICK_MS)));
+            var eventLaneWeights = parseLaneWeights(args.getOrDefault("event-lane-weights", ""));
+            var eventLaneCapacity = Integer.parseInt(args.getOrDefault("event-lane-capacity",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_LANE_CAPACITY)));
+            var eventOverflowPolicy = OverflowPolicy.valueOf(args.getOrDefault("event-overflow-policy",
+                EventLoopConfig.Builder.DEFAULT_OVERFLOW_POLICY.name()).toUpperCase());
+            var eventBlockTimeoutMs = Long.parseLong(args.getOrDefault("event-block-timeout-ms",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_BLOCK_TIMEOUT_MS)));
+            var slowHandlerThresholdMs = Long.parseLong(args.getOrDefault("slow-handler-threshold-ms",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_SLOW_HANDLER_THRESHOLD_MS)));
+            var slowHandlerStackDumps = Boolean.parseBoolean(args.getOrDefault("slow-handler-stack-dumps", "false"));
+            // 0 logs the latency report only once the engine stopped
+            var eventReportIntervalMs = Long.parseLong(args.getOrDefault("event-report-interval-ms",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_REPORT_INTERVAL_MS)));
+            var minReceiveLimit = Integer.parseInt(args.getOrDefault("min-receive-limit",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_MIN_RECEIVE_LIMIT)));
+            var maxReceiveLimit = Integer.parseInt(args.getOrDefault("max-receive-limit",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_MAX_RECEIVE_LIMIT)));
+            var mqBatchBytes = Integer.parseInt(args.getOrDefault("mq-batch-bytes",
+                String.valueOf(SendPolicy.DEFAULT_BATCH_BYTES)));
+            var mqBatchMessages = Integer.parseInt(args.getOrDefault("mq-batch-messages",
+                String.valueOf(SendPolicy.DEFAULT_BATCH_MESSAGES)));
+            var mqLingerMs = Long.parseLong(args.getOrDefault("mq-linger-ms",
+                String.valueOf(SendPolicy.DEFAULT_LINGER_MS)));
+            var mqSpoolDir = args.get("mq-spool-dir");  // no spool unless set
+            // 1 until every node of the cluster reads version 2 frames
+            var mqWireVersion = Integer.parseInt(args.getOrDefault("mq-wire-version", String.valueOf(MessageUtils.WIRE_V1)));
+            var mqCodecs = MessageCodecs.parse(args.getOrDefault("mq-codecs", MessageCodecs.DEFAULT_SPEC));
+            var mqReceiveMode = MessageClient.ReceiveMode.valueOf(args.getOrDefault("mq-receive-mode",
+                EventLoopConfig.Builder.DEFAULT_RECEIVE_MODE.name()).toUpperCase());
+            var mqRouting = MessageRouting.parse(args.getOrDefault("mq-routes", MessageRouting.DEFAULT_SPEC));
+            var mqDedupWindowMs = Long.parseLong(args.getOrDefault("mq-dedup-window-ms",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_DEDUP_WINDOW_MS)));
+            var mqDedupCapacity = Integer.parseInt(args.getOrDefault("mq-dedup-capacity",
+                String.valueOf(EventLoopConfig.Builder.DEFAULT_DEDUP_CAPACITY)));
+            // format: crawl.*,fetch
+            var mqDedupDataKeyChannels = ChannelSet.parse(args.getOrDefault("mq-dedup-data-key-channels", ""));
+            // format: fetch=*.example.com|*.example.org,crawl.*=a*
+            var mqDataKeyFilter = DataKeyFilter.parse(args.getOrDefault("mq-data-key-filter", ""));
+            var eventPartitionedChannels = ChannelSet.parse(args.getOrDefault("event-partitioned-channels", ""));
+            var mqRetryMaxAttempts = Integer.parseInt(args.getOrDefault("mq-retry-max-attempts",
+                String.valueOf(RetryPolicy.DEFAULT_MAX_ATTEMPTS)));
+            var mqRetryInitialBackoffMs = Long.parseLong(args.getOrDefault("mq-retry-initial-backoff-ms",
+                String.valueOf(RetryPolicy.DEFAULT_INITIAL_BACKOFF_MS)));
+            var mqRetryMaxBackoffMs = Long.parseLong(args.getOrDefault("mq-retry-max-backoff-ms",
+                String.valueOf(RetryPolicy.DEFAULT_MAX_BACKOFF_MS)));
+            var mqSubscriptions = parseSubscriptions(args.getOrDefault("mq-subscribe", ""), mqRouting);
+            Supplier<MessageClient> messageClientFactory = switch (args.getOrDefault("mq", "rabbitmq")) {
+                case "rabbitmq" -> () -> new RabbitMQClient(rmqUsername, rmqPassword, rmqVirtualHost, rmqHost, rmqPort);
+                case "local" -> {
+                    // single-node: every client of this engine shares the in-process queues
+                    var broker = new LocalBroker(Integer.parseInt(args.getOrDefault("mq-local-queue-capacity",
+                        String.valueOf(LocalBroker.DEFAULT_QUEUE_CAPACITY))));
+                    var roundTrip = Boolean.parseBoolean(args.getOrDefault("mq-local-round-trip", "false"));
+                    // nothing outside the process can read the other routed queues (e.g. out:*=za.o), they would fill up
+                    var discarded = new ArrayList<String>();
+                    for (var route : mqRouting.routes()) {
+                        for (var queueName : route.queueNames()) {
+                            if (!mqSubscriptions.contains(queueName) && !discarded.contains(queueName)) {
+                                broker.discard(queueName);
+                                discarded.add(queueName);
+                            }
+                        }
+                    }
+                    if (!discarded.isEmpty()) {
+                        Logger.verbose(Engine.class).warn("Local mq: no receiver for queues %s, messages sent to them are discarded", discarded);
+                    }
+                    yield () -> new LocalMessageClient(broker, roundTrip);
+                }
+                case "log" -> {
+                    // single-node and persistent: queues are segment logs on local disk
+                    var store = new SegmentLogStore(Path.of(args.getOrDefault("mq-log-dir", "za-mq")),
+                        Integer.parseInt(args.getOrDefault("mq-log-segment-bytes",
+                            String.valueOf(SegmentLogStore.DEFAULT_SEGMENT_BYTES))));
+                    yield () -> new SegmentLogMessageClient(store);
+                }
+                default -> throw new IllegalArgumentException("Unknown mq " + args.get("mq") + ", expected rabbitmq, local or log");
+            };
             return new Engine(
                 Logger.verbose(Engine.class),
                 List.copyOf(Arrays.asList(plugins)),
                 HttpClientFactory.remote(),
-                () -> new RabbitMQClient(rmqUsername, rmqPassword, rmqVirtualHost, rmqHost, rmqPort),
-                new RegistryImpl());
+                messageClientFactory,
+                eventLoops,
+                new EventLoopConfig.Builder()
+                    .batchSize(eventBatchSize)
+                    .drainTickMs(httpDrainTickMs)
+                    .laneWeights(eventLaneWeights)
+                    .laneCapacity(eventLaneCapacity)
+                    .overflowPolicy(eventOverflowPolicy)
+                    .blockTimeoutMs(eventBlockTimeoutMs)
+                    .slowHandlerThresholdMs(slowHandlerThresholdMs)
+                    .dumpSlowHandlerStacks(slowHandlerStackDumps)
+                    .reportIntervalMs(eventReportIntervalMs)
+                    .minReceiveLimit(minReceiveLimit)
+                    .maxReceiveLimit(maxReceiveLimit)
+                    .sendPolicy(new SendPolicy(mqBatchBytes, mqBatchMessages, mqLingerMs,
+                        mqSpoolDir == null ? null : Path.of(mqSpoolDir), mqWireVersion, mqCodecs))
+                    .receiveMode(mqReceiveMode)
+                    .routing(mqRouting)
+                    .partitionedChannels(eventPartitionedChannels)
+                    .dedupWindowMs(mqDedupWindowMs)
+                    .dedupCapacity(mqDedupCapacity)
+                    .dedupDataKeyChannels(mqDedupDataKeyChannels)
+                    .dataKeyFilter(mqDataKeyFilter)
+                    .retryPolicy(mqRetryMaxAttempts == 0 ? null  // 0 requeues failed messages at once, like before
+                        : new RetryPolicy(mqRetryMaxAttempts, mqRetryInitialBackoffMs, mqRetryMaxBackoffMs))
+                    .build(),
+                mqSubscriptions);
         } catch (Exception e) {
             throw new FailedToCreateEngineException(e); 
         }
     }
 
+    /**
+     * Moves the dead letters of mq queues back to the queues they came from, to be handled again once the
+     * reason they failed was fixed
+     *
+     * @return number of replayed messages per queue
+     */
+    public Map<String, Integer> replayDeadLetters(List<String> queueNames, int max) throws EngineRuntimeException {
+        var client = messageClientFactory.get();
+        var replayed = new LinkedHashMap<String, Integer>();
+        for (var queueName : queueNames) {
+            try {
+                replayed.put(queueName, client.replayDeadLetters(queueName, max));
+            } catch (Exception e) {
+                throw new EngineFailedToReplayDeadLettersException(e);
+            }
+        }
+        return replayed;
+    }
+
     public synchronized void start() {
         if (started) {
             throw new EngineAlreadyStartedException();
@@ -109,28 +257,59 @@ public final class Engine {
             if (plugins.size() == 0) {
                 log.warn("No plugins installed");
             }
-            var eventLoop = new EventLoop("za.i", messageClientFactory, httpFactory, this::onMessage);
-            var http = eventLoop.getHttp();
-            MessageListener messageListener = eventLoop.getMessageQueue();
-            log.info("Installing %d plugins", plugins.size());
+            var registries = new ArrayList<RegistryImpl>(eventLoops);
+            for (int i = 0; i < eventLoops; i++) {
+                registries.add(new RegistryImpl());
+            }
+            var group = new EventLoopGroup(mqSubscriptions, messageClientFactory, httpFactory, registries, this::onMessage, eventLoopConfig);
+            var nextLoop = new AtomicInteger();
+            log.info("Installing %d plugins on %d event loops", plugins.size(), group.size());
             install(plugins, plugin -> {
+                // pin each plugin to one loop, so its callbacks stay single-threaded
+                int index = nextLoop.getAndIncrement() % group.size();
+                var eventLoop = group.get(index);
+                MessageListener messageListener = eventLoop.getMessageQueue();
                 var logger = Logger.verbose(plugin.getClass(), System.out, System.err);
                 var id = genPluginId(plugin);
                 var in = getPluginInCallback(plugin, messageListener);
                 var out = getPluginOutCallback(plugin, messageListener);
-                return new Plugin.Config(logger, registry, http, Map.of(), in, out, id);
+                var inLater = getPluginInLaterCallback(plugin, messageListener);
+                var registry = new TracedRegistry(group.getRegistry(index), eventLoop.getTracer(), id);
+                return new Plugin.Config(logger, registry, eventLoop.getHttp(id), Map.of(), in, out, inLater, id);
             });
             log.info("Enabling plugins");
             plugins.forEach(Plugin::onEnable);
-            eventLoop.run();
+            group.run();
         } catch (EngineRuntimeException e) {
             throw new EngineFailedToStartException(e);
         }
     }
 
-    private void onMessage(InternalMessage message) {
+    private void onMessage(RegistryImpl registry, InternalMessage message) {
         log.info("Received message: %s", message);
-        MessageUtils.dispatch(registry, message);
+        MessageUtils.dispatch(registry, message);  // a failure is retried or dead-lettered by the event loop
+    }
+
+    // format: HTTP_RECEIVE=8,MQ_RECEIVE=4,...
+    private static Map<Events, Integer> parseLaneWeights(String value) {
+        var weights = new EnumMap<Events, Integer>(Events.class);
+        for (var entry : value.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            var kv = entry.split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected lane weights like: HTTP_RECEIVE=8,MQ_RECEIVE=4 but got " + value);
+            }
+            weights.put(Events.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+        }
+        return weights;
+    }
+
+    // format: za.i,za.crawl.0,za.crawl.1 ... subscribes to every "in" queue of the routing table if empty
+    private static List<String> parseSubscriptions(String value, MessageRouting routing) {
+        var queueNames = Arrays.stream(value.split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList();
+        return queueNames.isEmpty() ? routing.queueNames("in") : queueNames;
     }
 
     private void install(List<Plugin> plugins, Function<Plugin, Plugin.Config> configFactory) {
@@ -166,6 +345,13 @@ public final class Engine {
         };
     }
 
+    private Plugin.DelayedSender getPluginInLaterCallback(Plugin plugin, MessageListener messageListener) {
+        return (String channel, Object message, Duration delay) -> {
+            var headers = Map.of(InternalMessage.DELAY_HEADER, Long.toString(delay.toMillis()));
+            messageListener.onSend(new InternalMessage(UUID.randomUUID(), "in", channel, plugin.id(), Optional.empty(), message, headers));
+        };
+    }
+
     private BiConsumer<String, Object> getPluginOutCallback(Plugin plugin, MessageListener messageListener) {
         return (String channel, Object message) -> {
             messageListener.onSend(new InternalMessage(UUID.randomUUID(), "out", channel, plugin.id(), Optional.empty(), message));
@@ -200,6 +386,12 @@ public final class Engine {
         }
     }
 
+    public final class EngineFailedToReplayDeadLettersException extends EngineRuntimeException {
+        private EngineFailedToReplayDeadLettersException(Exception e) {
+            super(e);
+        }
+    }
+
     public final class EngineAlreadyStartedException extends EngineRuntimeException {
         private EngineAlreadyStartedException() {
             super("engine.start() should only be called once");
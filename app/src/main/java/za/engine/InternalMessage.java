@@ -1,16 +1,71 @@
 package za.engine;
 
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
+/**
+ * @param headers delivery metadata that travels with the message besides its body, see the *_HEADER constants
+ * @param dataKey routing key of the body (see MessageUtils.encode), read from the frame of a received message
+ *                without decoding its body
+ */
 public record InternalMessage (
         UUID key,
         String context,
         String channel,
         String pluginId,
         Optional<String> messageId,
-        Object serializableBody
+        Object serializableBody,
+        Map<String, String> headers,
+        Optional<String> dataKey
 ) {
+    /** number of earlier deliveries of the message that failed */
+    public static final String ATTEMPT_HEADER = "za-attempt";
+    /** set on sending, the message is delivered once this many milliseconds passed */
+    public static final String DELAY_HEADER = "za-delay-ms";
+    /** name of the MessageCodec the body was encoded with, JSON if absent, see MessageCodecs */
+    public static final String CODEC_HEADER = "za-codec";
+
+    public InternalMessage(UUID key, String context, String channel, String pluginId, Optional<String> messageId, Object serializableBody) {
+        this(key, context, channel, pluginId, messageId, serializableBody, Map.of());
+    }
+
+    public InternalMessage(UUID key, String context, String channel, String pluginId, Optional<String> messageId, Object serializableBody,
+            Map<String, String> headers) {
+        this(key, context, channel, pluginId, messageId, serializableBody, headers,
+            Optional.ofNullable(MessageUtils.dataKey(serializableBody)));
+    }
+
+    /**
+     * @return 0 if the header is missing or malformed, the broker passes headers on as they were sent
+     */
+    public int attempt() {
+        var attempt = headers.get(ATTEMPT_HEADER);
+        if (attempt == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(attempt);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return 0 (no delay) if the header is missing or malformed
+     */
+    public long delayMs() {
+        var delay = headers.get(DELAY_HEADER);
+        if (delay == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(delay);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public String toString() {
         return "InternalMessage{" +
@@ -20,6 +75,8 @@ public record InternalMessage (
                 ", pluginId='" + pluginId + '\'' +
                 ", messageId=" + messageId.orElse("null") +
                 ", hasBody=" + (serializableBody != null) +
+                (dataKey.isEmpty() ? "" : ", dataKey=" + dataKey.get()) +
+                (headers.isEmpty() ? "" : ", headers=" + headers) +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,205 @@
+package za.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import za.engine.codec.MessageCodec;
+import za.lib.Message;
+
+/**
+ * Immutable message that keeps its encoded body and decodes it on demand
+ *
+ * get() and containsKey() look up single fields with MessageCodec.decodeField() and cache them, so a subscriber
+ * that reads a few fields never builds the whole body. Everything else (and more than MAX_FIELD_LOOKUPS lookups)
+ * decodes the whole body once. One instance is shared by every subscriber of a message, on every event loop, so
+ * nested maps and lists are unmodifiable too.
+ *
+ * The encoded body must not change afterwards. A body that fails to decode throws UncheckedIOException on access,
+ * see isDecodable().
+ */
+final class LazyMessage extends AbstractMap<String, Object> implements Message {
+    static final int MAX_FIELD_LOOKUPS = 8;  // scanning the body more often costs more than decoding it once
+
+    private static final Object NULL = new Object();  // cached null value, ConcurrentHashMap has no null values
+
+    private final String id;
+    private final MessageCodec codec;  // null if decoded from the start
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final Map<String, Object> fields = new ConcurrentHashMap<>();  // looked up before the body was decoded
+    private volatile Map<String, Object> body;  // null until decoded, unmodifiable
+    private volatile boolean broken;  // failed to decode
+
+    private LazyMessage(String id, MessageCodec codec, byte[] bytes, int offset, int length, Map<String, Object> body) {
+        this.id = Objects.requireNonNull(id);
+        this.codec = codec;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.body = body;
+    }
+
+    /**
+     * @return a message of the body in bytes[offset, offset + length), which it keeps a reference to
+     */
+    static LazyMessage encoded(String id, MessageCodec codec, byte[] bytes, int offset, int length) {
+        return new LazyMessage(id, codec, bytes, offset, length, null);
+    }
+
+    /**
+     * @return a message of a copy of the body
+     */
+    static LazyMessage decoded(String id, Map<String, Object> body) {
+        return new LazyMessage(id, null, null, 0, 0, freeze(body));
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Decodes the whole body unless that happened already
+     *
+     * @return false if the body can not be decoded, e.g. it was encoded with another codec than it claims
+     */
+    boolean isDecodable() {
+        if (broken) {
+            return false;
+        }
+        try {
+            body();
+            return true;
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the codec of the encoded body, null if the message was not decoded from one
+     */
+    MessageCodec codec() {
+        return codec;
+    }
+
+    /**
+     * @return a copy of the encoded body, null if the message was not decoded from one
+     */
+    byte[] encodedBody() {
+        return bytes == null ? null : Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    // @VisibleForTesting
+    boolean isDecoded() {
+        return body != null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        var field = field(key);
+        return field == MessageCodec.NO_FIELD ? null : field;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return field(key) != MessageCodec.NO_FIELD;
+    }
+
+    @Override
+    public int size() {
+        return body().size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return body().entrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || body().equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return body().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return body().toString();
+    }
+
+    // the value of a field, or NO_FIELD
+    private Object field(Object key) {  // thread-safe
+        var decoded = body;
+        if (decoded != null) {
+            return decoded.containsKey(key) ? decoded.get(key) : MessageCodec.NO_FIELD;
+        }
+        if (!(key instanceof String name)) {
+            return MessageCodec.NO_FIELD;
+        }
+        var field = fields.get(name);
+        if (field == null) {
+            if (fields.size() >= MAX_FIELD_LOOKUPS) {
+                body();
+                return field(key);
+            }
+            try {
+                field = freezeValue(codec.decodeField(bytes, offset, length, name));
+            } catch (IOException e) {
+                broken = true;
+                throw new UncheckedIOException("Failed to decode field " + name + " of message " + id, e);
+            }
+            fields.put(name, field == null ? NULL : field);
+        }
+        return field == NULL ? null : field;
+    }
+
+    private Map<String, Object> body() {  // thread-safe, racing threads decode the body twice
+        var decoded = body;
+        if (decoded == null) {
+            try {
+                decoded = freeze(codec.decode(bytes, offset, length));
+            } catch (IOException e) {
+                broken = true;
+                throw new UncheckedIOException("Failed to decode message " + id, e);
+            }
+            body = decoded;
+        }
+        return decoded;
+    }
+
+    // an unmodifiable copy, nested maps and lists included
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> freeze(Map<String, Object> body) {
+        return (Map<String, Object>) freezeValue(body);
+    }
+
+    private static Object freezeValue(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            var copy = new LinkedHashMap<Object, Object>(map.size() * 4 / 3 + 1);
+            map.forEach((k, v) -> copy.put(k, freezeValue(v)));
+            return Collections.unmodifiableMap(copy);
+        }
+        if (value instanceof List<?> list) {
+            var copy = new ArrayList<Object>(list.size());
+            for (var element : list) {
+                copy.add(freezeValue(element));
+            }
+            return Collections.unmodifiableList(copy);
+        }
+        return value;  // NO_FIELD, null, strings, numbers, booleans
+    }
+}
@@ -1,5 +1,8 @@
 package za.engine;
 
+import java.util.Arrays;
+import java.util.List;
+
 import za.lib.Plugin;
 
 /**
@@ -10,11 +13,29 @@ import za.lib.Plugin;
  *
  * Example: 
  * java -jar za.jar plugin.jar plugin2.jar plugin3.jar --http-threads 8 --rmq-user ioqr
+ *
+ * Replaying dead letters instead of running the engine:
+ * java -jar za.jar --mq-replay-dead-letters za.i,za.o --rmq-user ioqr
  */
 public final class Main {
     private Main() {}
     public static void main(String[] args) {
         var za = Engine.create(args, new Plugin[0]);  // TODO load jar files
+        var replay = replayQueueNames(args);
+        if (!replay.isEmpty()) {
+            za.replayDeadLetters(replay, Integer.MAX_VALUE).forEach((queueName, replayed) ->
+                System.out.println("Replayed " + replayed + " dead letters into " + queueName));
+            return;
+        }
         za.start();
     }
+
+    private static List<String> replayQueueNames(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--mq-replay-dead-letters".equalsIgnoreCase(args[i])) {
+                return Arrays.stream(args[i + 1].split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList();
+            }
+        }
+        return List.of();
+    }
 }
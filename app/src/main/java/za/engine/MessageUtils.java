@@ -1,19 +1,25 @@
 package za.engine;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import za.engine.codec.MessageCodec;
+import za.engine.codec.MessageCodecs;
 import za.lib.Message;
 
 public final class MessageUtils {
+    /** text frame, see encode(InternalMessage) */
+    public static final int WIRE_V1 = 1;
+    /** binary frame, see encode(InternalMessage, int) */
+    public static final int WIRE_V2 = 2;
+
     private MessageUtils() {}
 
     /**
-     * Encode a message 
+     * Encode a message with the version 1 text frame
      * 
      * header format:
      * <version>:<context>:<channel>:<plugin_id>:(null | dk:<dk>:<body> | :<body>)
@@ -22,28 +28,58 @@ public final class MessageUtils {
      * 1:in:myChannel:MyPlugin_af749dc3:null
      * 1:in:myChannel:MyPlugin_af749dc3:dk:723894573:eyASDFJSONBASE64
      * 1:in:myChannel:MyPlugin_af749dc3::eyASDFJSONBASE64
+     * the body is encoded with the codec the headers of the message name (see MessageCodecs.recorded)
      */
     public static Optional<String> encode(InternalMessage p) {
+        return encode(p, MessageCodecs.recorded(p.headers()));
+    }
+
+    private static Optional<String> encode(InternalMessage p, MessageCodec codec) {
         try {
             var list = new ArrayList<String>();
             list.add("1");  // version number
             list.add(p.context());
             list.add(p.channel());
             list.add(p.pluginId());
-            list.add(encodeMessageObject(p.serializableBody()));
+            list.add(encodeMessageObject(p.serializableBody(), p.dataKey().orElse(null), codec));
             return Optional.of(String.join(":", list));
-        } catch (JsonProcessingException e) {
+        } catch (IOException | IllegalArgumentException e) {
             e.printStackTrace();
             return Optional.empty();
         }
     }
 
-    private static String encodeMessageObject(Object message) throws JsonProcessingException {
+    private static String encodeMessageObject(Object message, String dk, MessageCodec codec) throws IOException {
         if (message == null) {
             return "null";
         }
-        // figure out the optional data key
         var sb = new StringBuilder();
+        if (dk != null) {
+            sb.append("dk:");
+            sb.append(Base64.getEncoder().encodeToString(dk.getBytes(StandardCharsets.UTF_8)));
+        }
+        sb.append(":");
+        sb.append(Base64.getEncoder().encodeToString(encodeBody(message, codec)));
+        return sb.toString();
+    }
+
+    // a received body that is sent on with its codec, e.g. retried, is sent as it was received
+    private static byte[] encodeBody(Object message, MessageCodec codec) throws IOException {
+        if (message instanceof LazyMessage lazy && lazy.codec() == codec) {
+            return lazy.encodedBody();
+        }
+        return codec.encode(message);
+    }
+
+    /**
+     * The data key routes a message without decoding its body, see InternalMessage.dataKey
+     *
+     * @return the optional data key of a message body, null if it has none
+     */
+    static String dataKey(Object message) {
+        if (message instanceof LazyMessage lazy && !lazy.isDecodable()) {
+            return null;  // sent on as it is, see encodeBody
+        }
         if (message instanceof Map m) {
             String dk = null;
             // maps of size 1 automatically set a data key
@@ -60,153 +96,351 @@ public final class MessageUtils {
                 }
             }
             if (dk != null && m.get(dk) instanceof String interpolatedValStr) {
-                sb.append("dk:");
-                sb.append(Base64.getEncoder().encodeToString(interpolatedValStr.getBytes()));
+                return interpolatedValStr;
             }
         }
-        sb.append(":");
-        var payload = new ObjectMapper().writeValueAsString(message);
-        payload = Base64.getEncoder().encodeToString(payload.getBytes());
-        sb.append(payload);
-        return sb.toString();
+        return null;
+    }
+
+    /**
+     * Encode a message with the given frame version, both can be decoded by decode(UUID, String, ByteBuffer, Map)
+     *
+     * version 2 frame format, all lengths are ints, a length of -1 stands for null:
+     * <byte 2><length><context><length><channel><length><plugin_id><length><data key><length><body>
+     * strings are UTF-8, the body is as its codec encoded it (no Base64), and the data key is the one that
+     * version 1 frames carry (see encodeMessageObject)
+     * the body is encoded with the codec the headers of the message name (see MessageCodecs.recorded)
+     */
+    public static Optional<byte[]> encode(InternalMessage p, int wireVersion) {
+        try {
+            return encode(p, wireVersion, MessageCodecs.recorded(p.headers()));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();  // unknown codec
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Encode a message with the given frame version and body codec, the codec has to be recorded in the headers
+     * the message is sent with (see MessageCodecs.record)
+     */
+    public static Optional<byte[]> encode(InternalMessage p, int wireVersion, MessageCodec codec) {
+        return switch (wireVersion) {
+            case WIRE_V1 -> encode(p, codec).map(frame -> frame.getBytes(StandardCharsets.UTF_8));
+            case WIRE_V2 -> encodeV2(p, codec);
+            default -> throw new IllegalArgumentException("Unknown wire version " + wireVersion);
+        };
+    }
+
+    private static Optional<byte[]> encodeV2(InternalMessage p, MessageCodec codec) {
+        try {
+            var context = p.context().getBytes(StandardCharsets.UTF_8);
+            var channel = p.channel().getBytes(StandardCharsets.UTF_8);
+            var pluginId = p.pluginId().getBytes(StandardCharsets.UTF_8);
+            var message = p.serializableBody();
+            var dataKey = p.dataKey().map(dk -> dk.getBytes(StandardCharsets.UTF_8)).orElse(null);
+            var body = message == null ? null : encodeBody(message, codec);
+            int size = 1 + 5 * Integer.BYTES + context.length + channel.length + pluginId.length
+                + (dataKey == null ? 0 : dataKey.length) + (body == null ? 0 : body.length);
+            var buf = ByteBuffer.allocate(size);
+            buf.put((byte) WIRE_V2);
+            putBytes(buf, context);
+            putBytes(buf, channel);
+            putBytes(buf, pluginId);
+            putBytes(buf, dataKey);
+            putBytes(buf, body);
+            return Optional.of(buf.array());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Optional.empty();
+        }
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(bytes.length).put(bytes);
+        }
     }
 
     public static Optional<InternalMessage> decode(UUID internalKey, String messageId, String message) {
+        return decode(internalKey, messageId, message, Map.of());
+    }
+
+    public static Optional<InternalMessage> decode(UUID internalKey, String messageId, byte[] message, Map<String, String> headers) {
+        return decode(internalKey, messageId, ByteBuffer.wrap(message), headers);
+    }
+
+    /**
+     * Decode a message of any frame version, told apart by the leading byte ('1' or 2), reading message from its
+     * position on, and its body by the codec its headers name
+     *
+     * Frames are parsed in place, the body goes from its region of the frame to the codec without Strings in
+     * between (a heap buffer is not copied at all, a direct buffer once). The body is decoded when it is read (see
+     * LazyMessage) and keeps a reference to the frame, which must not change afterwards.
+     *
+     * @param headers delivery metadata that came with the message, see InternalMessage.headers
+     */
+    public static Optional<InternalMessage> decode(UUID internalKey, String messageId, ByteBuffer message, Map<String, String> headers) {
+        var frame = message.slice();
+        if (frame.hasRemaining() && frame.get(0) == WIRE_V2) {
+            return decodeV2(internalKey, messageId, frame, headers);
+        }
+        if (frame.hasArray()) {
+            return decodeV1(internalKey, messageId, frame.array(), frame.arrayOffset(), frame.remaining(), headers);
+        }
+        var bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return decodeV1(internalKey, messageId, bytes, 0, bytes.length, headers);
+    }
+
+    private static Optional<InternalMessage> decodeV2(UUID internalKey, String messageId, ByteBuffer frame, Map<String, String> headers) {
         try {
             Objects.requireNonNull(internalKey);
             Objects.requireNonNull(messageId);
-            Objects.requireNonNull(message);
-            String[] parts = message.split(":");
-            String version = parts[0];
-            if (!"1".equals(version)) {
-                return Optional.empty();
+            frame.get();  // version
+            String context = getString(frame);
+            String channel = getString(frame);
+            String pluginId = getString(frame);
+            String dataKey = getString(frame);
+            int bodyLength = frame.getInt();
+            if (bodyLength < 0) {
+                return Optional.empty();  // like a null body of a version 1 frame
             }
-            String context = parts[1];
-            String channel = parts[2];
-            String pluginId = parts[3];
-            String next = parts[4];
-            String body = switch (next) {
-                case "null" -> null;
-                case "dk" -> parts[6];
-                case "" -> parts[5];
-                default -> null;
-            };
-            if (null == body) {
-                return Optional.empty();
+            if (bodyLength > frame.remaining()) {
+                throw new IllegalArgumentException("Truncated version 2 frame");
             }
-            body = new String(Base64.getDecoder().decode(body));
-            var mapper = new ObjectMapper();
-            var typeRef = new TypeReference<HashMap<String, Object>>() {};
-            var parsedMessage = messageFor(messageId, mapper.readValue(body, typeRef));
-            return Optional.of(new InternalMessage(internalKey, context, channel, pluginId, Optional.of(messageId), parsedMessage));
+            var codec = MessageCodecs.recorded(headers);
+            LazyMessage body;
+            if (frame.hasArray()) {
+                body = LazyMessage.encoded(messageId, codec, frame.array(), frame.arrayOffset() + frame.position(), bodyLength);
+            } else {
+                var bytes = new byte[bodyLength];
+                frame.get(bytes);
+                body = LazyMessage.encoded(messageId, codec, bytes, 0, bodyLength);
+            }
+            return Optional.of(new InternalMessage(internalKey, context, channel, pluginId, Optional.of(messageId),
+                body, Map.copyOf(headers), Optional.ofNullable(dataKey)));
         } catch (Exception e) {
             e.printStackTrace();
             return Optional.empty();
         }
     }
 
-    public static void dispatch(RegistryImpl registry, InternalMessage message) {
-        registry.getSubscribers(message.channel()).forEach(onMessage -> {
-            if (message.messageId().isEmpty()) {
-                throw new IllegalStateException("Missing message id for message with internal key " + message.key());
-            }
-            if (!(message.serializableBody() instanceof Map)) {
-                throw new IllegalStateException("Body is not a map: message id " + message.messageId().get() + " with internal key " + message.key());
-            }
-            try {
-                onMessage.accept(messageFor(message.messageId().get(), (Map) message.serializableBody()));
-            } catch (Exception e) {
-                System.err.println("MessageHandler: failed to dispatch message: " + e);
-                e.printStackTrace();
-            }
-        });
-    }
-
-    // TODO this is wacky
-    private static Message messageFor(String messageId, Map<String, Object> inputMap) {
-        Objects.requireNonNull(messageId);
-        Objects.requireNonNull(inputMap);
-        final Map<String, Object> map = Map.copyOf(inputMap);
-        return new Message() {
-            @Override
-            public String id() {
-                return messageId;
-            }
+    private static String getString(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String string;
+        if (frame.hasArray()) {
+            string = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        } else {
+            var bytes = new byte[length];
+            frame.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
 
-            @Override
-            public String toString() {
-                return map.toString();
-            }
+    private static void skipBytes(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length > 0) {
+            frame.position(frame.position() + length);
+        }
+    }
 
-            @Override
-            public boolean equals(Object obj) {
-                return map.equals(obj);
-            }
+    /**
+     * @param headers delivery metadata that came with the message, see InternalMessage.headers
+     */
+    public static Optional<InternalMessage> decode(UUID internalKey, String messageId, String message, Map<String, String> headers) {
+        var bytes = message == null ? null : message.getBytes(StandardCharsets.UTF_8);
+        return decodeV1(internalKey, messageId, bytes, 0, bytes == null ? 0 : bytes.length, headers);
+    }
 
-            @Override
-            public int hashCode() {
-                return map.hashCode();
+    /**
+     * Decode a version 1 frame from frame[offset, offset + length)
+     *
+     * Only context, channel, plugin id and data key become Strings, the Base64 body is decoded straight from its
+     * region of the frame.
+     */
+    private static Optional<InternalMessage> decodeV1(UUID internalKey, String messageId, byte[] frame, int offset,
+            int length, Map<String, String> headers) {
+        try {
+            Objects.requireNonNull(internalKey);
+            Objects.requireNonNull(messageId);
+            Objects.requireNonNull(frame);
+            int end = offset + length;
+            int versionEnd = fieldEnd(frame, offset, end);
+            if (versionEnd != offset + 1 || frame[offset] != '1') {
+                return Optional.empty();
             }
-
-            @Override
-            public int size() {
-                return map.size();
+            int contextEnd = fieldEnd(frame, versionEnd + 1, end);
+            int channelEnd = fieldEnd(frame, contextEnd + 1, end);
+            int pluginIdEnd = fieldEnd(frame, channelEnd + 1, end);
+            int next = pluginIdEnd + 1;
+            int nextEnd = fieldEnd(frame, next, end);
+            int bodyStart;
+            String dataKey = null;
+            if (nextEnd == next) {  // ::<body>
+                bodyStart = nextEnd + 1;
+            } else if (nextEnd == next + 2 && frame[next] == 'd' && frame[next + 1] == 'k') {  // :dk:<dk>:<body>
+                int dataKeyEnd = fieldEnd(frame, nextEnd + 1, end);
+                var dk = Base64.getDecoder().decode(ByteBuffer.wrap(frame, nextEnd + 1, dataKeyEnd - nextEnd - 1));
+                dataKey = new String(dk.array(), dk.arrayOffset() + dk.position(), dk.remaining(), StandardCharsets.UTF_8);
+                bodyStart = dataKeyEnd + 1;
+            } else {
+                return Optional.empty();  // null, or unknown
             }
+            int bodyEnd = fieldEnd(frame, bodyStart, end);
+            var body = Base64.getDecoder().decode(ByteBuffer.wrap(frame, bodyStart, bodyEnd - bodyStart));
+            var parsedMessage = LazyMessage.encoded(messageId, MessageCodecs.recorded(headers), body.array(),
+                body.arrayOffset() + body.position(), body.remaining());
+            return Optional.of(new InternalMessage(internalKey,
+                new String(frame, versionEnd + 1, contextEnd - versionEnd - 1, StandardCharsets.UTF_8),
+                new String(frame, contextEnd + 1, channelEnd - contextEnd - 1, StandardCharsets.UTF_8),
+                new String(frame, channelEnd + 1, pluginIdEnd - channelEnd - 1, StandardCharsets.UTF_8),
+                Optional.of(messageId), parsedMessage, Map.copyOf(headers), Optional.ofNullable(dataKey)));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Optional.empty();
+        }
+    }
 
-            @Override
-            public boolean isEmpty() {
-                return map.isEmpty();
-            }
+    // index of the ':' that ends the version 1 field starting at start, or end
+    private static int fieldEnd(byte[] frame, int start, int end) {
+        if (start > end) {
+            throw new IllegalArgumentException("Truncated version 1 frame");
+        }
+        int i = start;
+        while (i < end && frame[i] != ':') {
+            i++;
+        }
+        return i;
+    }
 
-            @Override
-            public boolean containsKey(Object key) {
-                return map.containsKey(key);
+    /**
+     * Peek at the channel of an encoded message of any frame version without decoding it, e.g. to tell where a
+     * broken message came from
+     */
+    public static Optional<String> channel(byte[] message) {
+        try {
+            if (message.length > 0 && message[0] == WIRE_V2) {
+                var frame = ByteBuffer.wrap(message, 1, message.length - 1);
+                skipBytes(frame);  // context
+                return Optional.ofNullable(getString(frame));
             }
-
-            @Override
-            public boolean containsValue(Object value) {
-                return map.containsValue(value);
+            String[] parts = new String(message, StandardCharsets.UTF_8).split(":", 4);
+            if (parts.length < 4 || !"1".equals(parts[0])) {
+                return Optional.empty();
             }
+            return Optional.of(parts[2]);
+        } catch (RuntimeException e) {
+            return Optional.empty();  // truncated
+        }
+    }
 
-            @Override
-            public Object get(Object key) {
-                return map.get(key);
+    /**
+     * Encode message headers for storage, e.g. in a spool or log file
+     *
+     * format: <int count>(<int key length><key><int value length><value>)*
+     */
+    public static byte[] encodeHeaders(Map<String, String> headers) {
+        var encoded = new ArrayList<byte[]>(2 * headers.size());
+        int size = Integer.BYTES;
+        for (var entry : headers.entrySet()) {
+            for (var string : List.of(entry.getKey(), entry.getValue())) {
+                var bytes = string.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                size += Integer.BYTES + bytes.length;
             }
+        }
+        var buf = ByteBuffer.allocate(size);
+        buf.putInt(headers.size());
+        for (var bytes : encoded) {
+            buf.putInt(bytes.length).put(bytes);
+        }
+        return buf.array();
+    }
 
-            @Override
-            public Object put(String key, Object value) {
-                return map.put(key, value);
-            }
+    /**
+     * Decode message headers written by encodeHeaders(), reading buf from its position on
+     */
+    public static Map<String, String> decodeHeaders(ByteBuffer buf) {
+        int count = buf.getInt();
+        if (count == 0) {
+            return Map.of();
+        }
+        var headers = new HashMap<String, String>(2 * count);
+        for (int i = 0; i < count; i++) {
+            headers.put(readHeaderString(buf), readHeaderString(buf));
+        }
+        return headers;
+    }
 
-            @Override
-            public Object remove(Object key) {
-                return map.remove(key);
-            }
+    private static String readHeaderString(ByteBuffer buf) {
+        var bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-            @Override
-            public void putAll(Map<? extends String, ? extends Object> m) {
-                map.putAll(m);
-            }
+    /**
+     * @return true if the body of a received message can not be decoded, handling it again would fail again
+     */
+    public static boolean isUndecodable(InternalMessage message) {
+        return message.serializableBody() instanceof LazyMessage lazy && !lazy.isDecodable();
+    }
 
-            @Override
-            public void clear() {
-                map.clear();
-            }
+    /**
+     * @return true if a message body can not be modified, e.g. a received one, so it can be shared with other threads
+     */
+    public static boolean isImmutable(Object body) {
+        return body instanceof LazyMessage;
+    }
 
-            @Override
-            public Set<String> keySet() {
-                return map.keySet();
+    /**
+     * Hands the message to every subscriber of its channel, even if one of them fails
+     *
+     * Subscribers share one immutable Message of the body.
+     *
+     * @throws IllegalStateException if any subscriber failed to handle the message, caused by the first failure
+     */
+    public static void dispatch(RegistryImpl registry, InternalMessage message) {
+        Message shared = null;
+        Exception failure = null;
+        for (var onMessage : registry.getSubscribers(message.channel())) {
+            if (message.messageId().isEmpty()) {
+                throw new IllegalStateException("Missing message id for message with internal key " + message.key());
             }
-
-            @Override
-            public Collection<Object> values() {
-                return map.values();
+            if (!(message.serializableBody() instanceof Map)) {
+                throw new IllegalStateException("Body is not a map: message id " + message.messageId().get() + " with internal key " + message.key());
             }
-
-            @Override
-            public Set<Entry<String, Object>> entrySet() {
-                return map.entrySet();
+            if (shared == null) {
+                shared = messageFor(message.messageId().get(), (Map) message.serializableBody());
             }
-        };
+            try {
+                onMessage.accept(shared);
+            } catch (Exception e) {
+                System.err.println("MessageHandler: failed to dispatch message: " + e);
+                e.printStackTrace();
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            // the reason a dead-lettered message carries
+            throw new IllegalStateException("Subscriber failed on message id " + message.messageId().get() + ": " + failure, failure);
+        }
+    }
+
+    // received messages already are one, messages handed over in-process (see LocalMessageClient) are copied
+    private static Message messageFor(String messageId, Map<String, Object> body) {
+        if (body instanceof Message m && m.id().equals(messageId)) {
+            return m;
+        }
+        return LazyMessage.decoded(messageId, body);
     }
 }
@@ -1,39 +1,43 @@
 package za.engine;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 import za.lib.Message;
 import za.lib.Plugin;
 import za.lib.Registry;
 
+// thread-safe, so a sharded engine can route messages while plugins subscribe from their own event loops
 public class RegistryImpl implements Registry {
-    private final Set<Plugin> plugins = new HashSet<>();
-    private final Map<String, List<Consumer<Message>>> subscriptions = new HashMap<>();
+    private final Set<Plugin> plugins = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<Consumer<Message>>> subscriptions = new ConcurrentHashMap<>();
     
     @Override
     public void register(Plugin plugin) {
         Objects.requireNonNull(plugin);
         var clazz = plugin.getClass();
-        if (plugins.contains(plugin)) {
+        if (!plugins.add(plugin)) {
             throw new RuntimeException("Plugin registered twice: " + clazz.getName());
         }
-        plugins.add(plugin);
     }
 
     @Override
     public void subscribe(String channel, Consumer<Message> onMessage) {
         subscriptions
-            .computeIfAbsent(channel, _k -> new ArrayList<>())
+            .computeIfAbsent(channel, _k -> new CopyOnWriteArrayList<>())
             .add(onMessage);
     }
 
+    public boolean hasSubscribers(String channel) {
+        var callbacks = subscriptions.get(channel);
+        return callbacks != null && !callbacks.isEmpty();
+    }
+
     public List<Consumer<Message>> getSubscribers(String channel) {
         var callbacks = subscriptions.get(channel);
         if (callbacks == null) {
@@ -0,0 +1,43 @@
+package za.engine;
+
+import java.util.function.Consumer;
+
+import za.engine.event.EventTracer;
+import za.lib.Message;
+import za.lib.Plugin;
+import za.lib.Registry;
+
+/**
+ * A plugin's view of its event loop's registry, which times the plugin's message callbacks
+ *
+ * Received messages are dispatched to the subscribers of several plugins within one event, so the event loop
+ * cannot attribute that time to a plugin by itself.
+ */
+final class TracedRegistry implements Registry {
+    private final RegistryImpl registry;
+    private final EventTracer tracer;
+    private final String pluginId;
+
+    TracedRegistry(RegistryImpl registry, EventTracer tracer, String pluginId) {
+        this.registry = registry;
+        this.tracer = tracer;
+        this.pluginId = pluginId;
+    }
+
+    @Override
+    public void register(Plugin plugin) {
+        registry.register(plugin);
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<Message> onMessage) {
+        registry.subscribe(channel, message -> {
+            long start = tracer.beginPluginCallback(pluginId);
+            try {
+                onMessage.accept(message);
+            } finally {
+                tracer.endPluginCallback(pluginId, start);
+            }
+        });
+    }
+}
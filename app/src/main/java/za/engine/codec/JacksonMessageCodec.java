@@ -0,0 +1,80 @@
+package za.engine.codec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Codec of any Jackson data format, e.g. JSON or CBOR
+ *
+ * The readers and writer are created once and shared by every thread, instead of looking up their serializers
+ * through an ObjectMapper on every message. decodeField() streams over the fields before the one it looks for,
+ * skipping their values without building them.
+ */
+public final class JacksonMessageCodec implements MessageCodec {
+    private static final TypeReference<HashMap<String, Object>> BODY_TYPE = new TypeReference<>() {};
+
+    private final String name;
+    private final ObjectReader reader;  // thread-safe
+    private final ObjectReader valueReader;  // thread-safe, a field value of any type
+    private final ObjectWriter writer;  // thread-safe
+
+    /**
+     * @param mapper not used after construction
+     */
+    public JacksonMessageCodec(String name, ObjectMapper mapper) {
+        this.name = name;
+        this.reader = mapper.readerFor(BODY_TYPE);
+        this.valueReader = mapper.readerFor(Object.class);
+        this.writer = mapper.writer();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public byte[] encode(Object body) throws IOException {
+        return writer.writeValueAsBytes(body);
+    }
+
+    @Override
+    public Map<String, Object> decode(byte[] bytes, int offset, int length) throws IOException {
+        return reader.readValue(bytes, offset, length);
+    }
+
+    @Override
+    public Object decodeField(byte[] bytes, int offset, int length, String name) throws IOException {
+        try (var parser = reader.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a body object but got " + parser.currentToken());
+            }
+            Object value = NO_FIELD;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean found = name.equals(parser.getCurrentName());
+                parser.nextToken();
+                if (found) {
+                    value = valueReader.readValue(parser);  // a later duplicate wins, like in decode()
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Truncated body");
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JacksonMessageCodec{" + name + "}";
+    }
+}
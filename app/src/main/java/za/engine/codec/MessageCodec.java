@@ -0,0 +1,42 @@
+package za.engine.codec;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Serializes message bodies, the frame around them is MessageUtils' job
+ *
+ * Every message records the name of the codec that encoded it (InternalMessage.CODEC_HEADER), so receivers pick
+ * the matching codec no matter which one they send with. Codecs besides the built-in ones (see MessageCodecs) are
+ * found with a java.util.ServiceLoader, implementations must be thread-safe.
+ */
+public interface MessageCodec {
+    /** decodeField() of a field the body does not have */
+    Object NO_FIELD = new Object();
+
+    /**
+     * @return unique name of the codec, recorded with every message it encoded, e.g. "json"
+     */
+    String name();
+
+    /**
+     * @param body a message body, e.g. a Map of strings, numbers, lists and maps
+     */
+    byte[] encode(Object body) throws IOException;
+
+    /**
+     * @return the body from bytes[offset, offset + length)
+     */
+    Map<String, Object> decode(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Codecs that can find a field without decoding the whole body override this
+     *
+     * @return the value of a top-level field of the body from bytes[offset, offset + length), or NO_FIELD;
+     *         the same value decode() has for it, i.e. the last one of duplicate fields
+     */
+    default Object decodeField(byte[] bytes, int offset, int length, String name) throws IOException {
+        var body = decode(bytes, offset, length);
+        return body.containsKey(name) ? body.get(name) : NO_FIELD;
+    }
+}
@@ -0,0 +1,146 @@
+package za.engine.codec;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+import za.engine.ChannelPattern;
+import za.engine.InternalMessage;
+
+/**
+ * Known codecs by name, and which codec messages of a plugin channel are encoded with
+ *
+ * A message is encoded with the codec its headers name (e.g. a retried or replayed message keeps its codec),
+ * otherwise with the codec of the first rule that matches its channel, otherwise with JSON. Receivers decode
+ * with the codec a message names, JSON if it names none, like every message from before codecs.
+ *
+ * spec format: metrics.*=cbor,*=json
+ */
+public final class MessageCodecs {
+    public static final String DEFAULT_SPEC = "*=json";
+    /** the codec of messages that do not name one */
+    public static final MessageCodec JSON = new JacksonMessageCodec("json", new ObjectMapper());
+    /** binary JSON (RFC 8949), smaller and cheaper to parse than JSON text */
+    public static final MessageCodec CBOR = new JacksonMessageCodec("cbor", new CBORMapper());
+
+    private static final Map<String, MessageCodec> BY_NAME = load();
+    private static final Pattern RULE_SPEC = Pattern.compile("([^=]+)=([\\w.-]+)");
+
+    private final List<Rule> rules;
+    private final Map<String, MessageCodec> byChannel = new ConcurrentHashMap<>();  // caches forChannel()
+
+    /**
+     * @param channelPattern plugin channels the rule applies to
+     */
+    public record Rule(ChannelPattern channelPattern, MessageCodec codec) {
+        public Rule {
+            if (channelPattern == null || codec == null) {
+                throw new IllegalArgumentException("Must have a channelPattern and a codec");
+            }
+        }
+    }
+
+    public MessageCodecs(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    public static MessageCodecs defaults() {
+        return parse(DEFAULT_SPEC);
+    }
+
+    public static MessageCodecs parse(String spec) {
+        var rules = new ArrayList<Rule>();
+        for (var entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            var matcher = RULE_SPEC.matcher(entry.trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Expected codecs like: metrics.*=cbor,*=json but got " + entry);
+            }
+            rules.add(new Rule(new ChannelPattern(matcher.group(1)), byName(matcher.group(2))));
+        }
+        return new MessageCodecs(rules);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no codec has this name
+     */
+    public static MessageCodec byName(String name) {
+        var codec = BY_NAME.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + name + ", expected one of " + BY_NAME.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * @param headers headers of an encoded message, see InternalMessage.headers
+     * @return the codec the message was encoded with
+     * @throws IllegalArgumentException if it was encoded with a codec this node does not know
+     */
+    public static MessageCodec recorded(Map<String, String> headers) {
+        var name = headers.get(InternalMessage.CODEC_HEADER);
+        return name == null ? JSON : byName(name);
+    }
+
+    /**
+     * Records the codec in the headers of a message it encoded
+     *
+     * JSON is not recorded, so JSON messages stay readable by nodes from before codecs.
+     */
+    public static void record(Map<String, String> headers, MessageCodec codec) {
+        if (codec == JSON) {
+            headers.remove(InternalMessage.CODEC_HEADER);
+        } else {
+            headers.put(InternalMessage.CODEC_HEADER, codec.name());
+        }
+    }
+
+    /**
+     * @return the codec to encode a message with, the one its headers name, else the one of its channel
+     */
+    public MessageCodec forMessage(InternalMessage message) {  // thread-safe
+        var name = message.headers().get(InternalMessage.CODEC_HEADER);
+        return name == null ? forChannel(message.channel()) : byName(name);
+    }
+
+    public MessageCodec forChannel(String channel) {  // thread-safe
+        return byChannel.computeIfAbsent(channel, key -> {
+            for (var rule : rules) {
+                if (rule.channelPattern().matches(key)) {
+                    return rule.codec();
+                }
+            }
+            return JSON;
+        });
+    }
+
+    public List<Rule> rules() {
+        return rules;
+    }
+
+    private static Map<String, MessageCodec> load() {
+        var codecs = new HashMap<String, MessageCodec>();
+        codecs.put(JSON.name(), JSON);
+        codecs.put(CBOR.name(), CBOR);
+        for (var codec : ServiceLoader.load(MessageCodec.class)) {
+            if (codecs.putIfAbsent(codec.name(), codec) != null) {
+                throw new IllegalStateException("Must have unique codec names, found " + codec.name() + " twice");
+            }
+        }
+        return Map.copyOf(codecs);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCodecs" + rules;
+    }
+}
@@ -2,132 +2,748 @@ package za.engine.event;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
 import za.engine.InternalMessage;
 import za.engine.MessageUtils;
 import za.engine.MessageListener;
+import za.engine.codec.MessageCodecs;
+import za.engine.mq.DeadLetters;
 import za.engine.mq.MessageClient;
 
 public class AsyncMessageQueue {
-    public static final int RECEIVE_LIMIT = 10;  // this determines the engine concurrency (TODO make configurable)
-    public static final int SENDER_WAIT_TIME_MS = 1500;  // how long for poller to wait before sending an unfinished (uninterrupted) batch
-    public static final int SEND_LIMIT = 1000;  // max messages allowed to be queued
-    public static final int SEND_CAPACITY = SEND_LIMIT * 4;  // to account for output traffic spikes
+    public static final int RECEIVE_LIMIT = 10;  // initial engine concurrency, adapted by the ReceiveLimiter
+    public static final int SEND_LIMIT = 1000;  // default max messages per flushed batch, see SendPolicy
+    public static final int SEND_CAPACITY = SEND_LIMIT * 4;  // max messages allowed to be queued, to account for output traffic spikes
+    public static final long SEND_RETRY_BACKOFF_MS = 1000;  // between attempts while the broker is unreachable
 
     private final MessageListener receiver;
-    private final String receiverQueueName;
+    private final List<String> receiverQueueNames;
     private final Supplier<MessageClient> messageClientFactory;
+    private final Supplier<Boolean> receiverHasCapacity;  // backpressure from the receiving event loops
+    private final ReceiveLimiter limiter;
     private final String uuid = UUID.randomUUID().toString();
-    private final ArrayBlockingQueue<BatchData> batch = new ArrayBlockingQueue<>(SEND_CAPACITY);
+    private final SendPolicy sendPolicy;
+    private final MessageClient.ReceiveMode receiveMode;
+    private final MessageRouting routing;
+    private final MessageDeduplicator deduplicator;  // null if duplicates are not dropped
+    private final DataKeyFilter dataKeyFilter;
+    private final Map<UUID, Long> dedupHashes = new ConcurrentHashMap<>();  // dedup hashes of unsettled messages
+    private final AtomicLong droppedDuplicates = new AtomicLong();
+    private final AtomicLong droppedFiltered = new AtomicLong();
+    private final RetryPolicy retryPolicy;  // null requeues failed messages at once
+    private final Map<String, MessageClient> receiverClients = new ConcurrentHashMap<>();  // by queue, publish retries
+
+    // the receiver thread waits here while the engine is at its receive limit, guarded by capacityLock
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacityFreed = capacityLock.newCondition();  // signalled by markReceived()
+    private volatile int awaitingCapacity;  // receiver threads waiting, written under capacityLock
+
+    // outgoing batch, guarded by sendLock
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition flushNeeded = sendLock.newCondition();  // signalled on the first message and when full
+    private ArrayList<MessageClient.Outgoing> batch = new ArrayList<>();
+    private long batchBytes = 0;
+    private long firstUnsentNanos = 0;  // when the oldest message of the batch was queued
+    private volatile MessageSpool spool;  // null unless the send policy has a spool directory
+    private boolean spilling;  // new messages go to the spool, until the sender drained it
+    private volatile int unsentMessages;  // of a batch the sender keeps for another attempt without a spool, reader: any, writer: sender
 
     private volatile boolean running;
-    private Thread receiverThread;
+    private List<Thread> receiverThreads;
     private Thread senderThread;
     private final AtomicInteger inFlightMessages = new AtomicInteger();
+    private final List<InFlightTable> inFlight;  // unsettled messages per receiver queue, for acks and latencies
 
     public AsyncMessageQueue(MessageListener receiver, String receiverQueueName, Supplier<MessageClient> messageClientFactory) {
+        this(receiver, receiverQueueName, messageClientFactory, () -> true,
+            new ReceiveLimiter(RECEIVE_LIMIT, RECEIVE_LIMIT, RECEIVE_LIMIT, () -> 0.0), SendPolicy.defaults(),
+            MessageClient.ReceiveMode.POLL);
+    }
+
+    /**
+     * @param receiverHasCapacity the receiver stops pulling messages while this returns false
+     * @param limiter limits the number of in-flight messages, i.e. the engine concurrency
+     * @param sendPolicy when to flush the outgoing batch
+     * @param receiveMode whether messages are polled or pushed by the broker
+     */
+    public AsyncMessageQueue(
+            MessageListener receiver,
+            String receiverQueueName,
+            Supplier<MessageClient> messageClientFactory,
+            Supplier<Boolean> receiverHasCapacity,
+            ReceiveLimiter limiter,
+            SendPolicy sendPolicy,
+            MessageClient.ReceiveMode receiveMode) {
+        this(receiver, List.of(receiverQueueName), messageClientFactory, receiverHasCapacity, limiter, sendPolicy,
+            receiveMode, MessageRouting.defaults());
+    }
+
+    /**
+     * @param receiverQueueNames mq queues to receive messages from, each by its own receiver thread
+     * @param routing which mq queue each sent message goes to
+     */
+    public AsyncMessageQueue(
+            MessageListener receiver,
+            List<String> receiverQueueNames,
+            Supplier<MessageClient> messageClientFactory,
+            Supplier<Boolean> receiverHasCapacity,
+            ReceiveLimiter limiter,
+            SendPolicy sendPolicy,
+            MessageClient.ReceiveMode receiveMode,
+            MessageRouting routing) {
+        this(receiver, receiverQueueNames, messageClientFactory, receiverHasCapacity, limiter, sendPolicy, receiveMode,
+            routing, null, null);
+    }
+
+    /**
+     * @param deduplicator received messages whose id (or data key) it has seen already are acknowledged and dropped,
+     *                     null to deliver every message
+     * @param retryPolicy failed messages are published again with a backoff and dead-lettered once they ran out of
+     *                    attempts, null requeues them at once
+     */
+    AsyncMessageQueue(
+            MessageListener receiver,
+            List<String> receiverQueueNames,
+            Supplier<MessageClient> messageClientFactory,
+            Supplier<Boolean> receiverHasCapacity,
+            ReceiveLimiter limiter,
+            SendPolicy sendPolicy,
+            MessageClient.ReceiveMode receiveMode,
+            MessageRouting routing,
+            MessageDeduplicator deduplicator,
+            RetryPolicy retryPolicy) {
+        this(receiver, receiverQueueNames, messageClientFactory, receiverHasCapacity, limiter, sendPolicy, receiveMode,
+            routing, deduplicator, DataKeyFilter.none(), retryPolicy);
+    }
+
+    /**
+     * @param dataKeyFilter received messages it does not keep are acknowledged and dropped, before anything
+     *                      decodes their body
+     */
+    AsyncMessageQueue(
+            MessageListener receiver,
+            List<String> receiverQueueNames,
+            Supplier<MessageClient> messageClientFactory,
+            Supplier<Boolean> receiverHasCapacity,
+            ReceiveLimiter limiter,
+            SendPolicy sendPolicy,
+            MessageClient.ReceiveMode receiveMode,
+            MessageRouting routing,
+            MessageDeduplicator deduplicator,
+            DataKeyFilter dataKeyFilter,
+            RetryPolicy retryPolicy) {
+        if (receiverQueueNames.isEmpty()) {
+            throw new IllegalArgumentException("Must receive from at least one queue");
+        }
         this.receiver = receiver;
-        this.receiverQueueName = receiverQueueName;
+        this.receiverQueueNames = List.copyOf(receiverQueueNames);
         this.messageClientFactory = messageClientFactory;
+        this.receiverHasCapacity = receiverHasCapacity;
+        this.limiter = limiter;
+        this.sendPolicy = sendPolicy;
+        this.receiveMode = receiveMode;
+        this.routing = routing;
+        this.deduplicator = deduplicator;
+        this.dataKeyFilter = dataKeyFilter;
+        this.retryPolicy = retryPolicy;
+        this.inFlight = receiverQueueNames.stream()
+            .map(name -> retryPolicy == null ? new InFlightTable() : new InFlightTable(
+                (message, failure, deliveryTag, acknowledger) -> retryLater(name, message, failure, deliveryTag, acknowledger)))
+            .toList();
     }
 
-    private record BatchData(String mqChannel, String serializedMessage) {}
+    public ReceiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    public int getInFlightMessages() {  // thread-safe
+        return inFlightMessages.get();
+    }
+
+    /**
+     * @return number of received messages that are not acknowledged or requeued yet
+     */
+    public int getUnsettledMessages() {  // thread-safe
+        int unsettled = 0;
+        for (var table : inFlight) {
+            unsettled += table.size();
+        }
+        return unsettled;
+    }
+
+    /**
+     * @return number of received messages that were dropped as duplicates
+     */
+    public long getDroppedDuplicates() {  // thread-safe
+        return droppedDuplicates.get();
+    }
+
+    /**
+     * @return number of received messages that were dropped by the data key filter
+     */
+    public long getDroppedFiltered() {  // thread-safe
+        return droppedFiltered.get();
+    }
 
     public void start() {
         if (running) {
             throw new IllegalStateException("AsyncMessageQueue was already started");
         }
         running = true;
-        receiverThread = new Thread(() -> {
+        var receiverThreads = new ArrayList<Thread>(receiverQueueNames.size());
+        for (int i = 0; i < receiverQueueNames.size(); i++) {
+            var queueName = receiverQueueNames.get(i);
+            var table = inFlight.get(i);
+            receiverThreads.add(new Thread(() -> receive(queueName, table), "AsyncMessageQueue_Receiver_" + queueName + "_" + uuid));
+        }
+        this.receiverThreads = receiverThreads;
+        if (sendPolicy.spoolDirectory() != null) {
             try {
-                var rmq = messageClientFactory.get();
-                rmq.receiveBlocking(
-                    receiverQueueName,
-                    () -> {
-                        // do not increment count here, this function must be a view
-                        return inFlightMessages.get() < RECEIVE_LIMIT;
-                    },
-                    (InternalMessage message) -> {
-                        inFlightMessages.incrementAndGet();
-                        receiver.onReceive(message);
-                    });
-            } catch (Exception e) {
-                throw new RuntimeException(Thread.currentThread().getName() + " failed to receive a message", e);
-            }
-        }, "AsyncMessageQueue_Receiver_" + uuid);
+                spool = new MessageSpool(sendPolicy.spoolDirectory());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the message spool in " + sendPolicy.spoolDirectory(), e);
+            }
+            sendLock.lock();
+            try {
+                spilling = !spool.isEmpty();  // left over from the last run, goes out before anything new
+            } finally {
+                sendLock.unlock();
+            }
+        }
         senderThread = new Thread(() -> {
             var rmq = messageClientFactory.get();
-            while (running) {
-                // TODO replace with wait(SENDER_WAIT_TIME_MS) and notify() instead of using interrupt handler
-                try {
-                    Thread.sleep(SENDER_WAIT_TIME_MS);
-                } catch (InterruptedException e) {
-                    System.err.println(Thread.currentThread().getName() + " was interrupted (if you see this often, increase SEND_LIMIT)");
-                    e.printStackTrace();
-                }
-                threadSafeSendBatch(rmq);
+            try {
+                runSender(rmq);
+            } catch (InterruptedException e) {
+                System.err.println(Thread.currentThread().getName() + " was interrupted, unsent messages are lost");
+            } finally {
+                closeSpool();
             }
         }, "AsyncMessageQueue_Sender_" + uuid);
-        receiverThread.start();
+        receiverThreads.forEach(Thread::start);
         senderThread.start();
     }
 
+    private void receive(String queueName, InFlightTable table) {  // receiver thread of the queue only
+        try {
+            var rmq = messageClientFactory.get();
+            receiverClients.put(queueName, rmq);
+            rmq.receiveBlocking(queueName, receiveMode, new MessageClient.Receiver() {
+                @Override
+                public boolean canReceiveMore() {
+                    return hasCapacity();
+                }
+
+                @Override
+                public void awaitCapacity(long timeoutNanos) throws InterruptedException {
+                    AsyncMessageQueue.this.awaitCapacity(timeoutNanos);
+                }
+
+                @Override
+                public int prefetch() {
+                    // completed messages stay unacknowledged until their ack batch is flushed
+                    return limiter.limit() + InFlightTable.ACK_BATCH_SIZE;
+                }
+
+                @Override
+                public void onReceive(InternalMessage message, long deliveryTag) {
+                    table.add(message.key(), deliveryTag, retryPolicy == null ? null : message);
+                    if (!dataKeyFilter.keeps(message)) {
+                        table.complete(message.key(), true);  // acknowledged in order with the others
+                        droppedFiltered.incrementAndGet();
+                        return;
+                    }
+                    if (isDuplicate(message)) {
+                        table.complete(message.key(), true);  // acknowledged in order with the others
+                        droppedDuplicates.incrementAndGet();
+                        return;
+                    }
+                    inFlightMessages.incrementAndGet();
+                    receiver.onReceive(message);
+                }
+
+                @Override
+                public void settle(MessageClient.Acknowledger acknowledger) throws IOException {
+                    table.settle(acknowledger, System.nanoTime());
+                }
+
+                @Override
+                public void flush(MessageClient.Acknowledger acknowledger) throws IOException {
+                    table.flush(acknowledger);
+                }
+            });
+        } catch (Exception e) {
+            throw new RuntimeException(Thread.currentThread().getName() + " failed to receive a message", e);
+        }
+    }
+
     public void stop() {
         if (!running) {
             throw new IllegalStateException("AsyncMessageQueue has not been started");
         }
-        receiverThread.interrupt();
-        // do not interrupt the autoSendTimer, it will end on its own
+        receiverThreads.forEach(Thread::interrupt);
+        sendLock.lock();
+        try {
+            running = false;
+            flushNeeded.signal();  // the sender flushes what is left, then ends
+        } finally {
+            sendLock.unlock();
+        }
     }
     
+    /**
+     * @throws IllegalStateException if the send queue is full, see trySendAsync()
+     */
     public void sendAsync(InternalMessage message) {
-        var opt = MessageUtils.encode(message);
+        if (!trySendAsync(message)) {
+            throw new IllegalStateException("Send queue full at " + SEND_CAPACITY + " messages");
+        }
+    }
+
+    /**
+     * Queues a message to be sent by the sender thread
+     *
+     * Without a spool, the send queue fills up while the broker does not take the output. The caller has to hold
+     * the message back and offer it again later, see canSend().
+     *
+     * @return false if the send queue is full and the message was not taken
+     */
+    public boolean trySendAsync(InternalMessage message) {  // thread-safe
+        if (!canSend()) {
+            return false;  // before encoding, since the caller offers the message again
+        }
+        var codec = sendPolicy.codecs().forMessage(message);
+        var opt = MessageUtils.encode(message, sendPolicy.wireVersion(), codec);
         if (opt.isPresent()) {
-            batch.add(new BatchData(lookupMQChannel(message.context()), opt.get()));
-            if (batch.size() >= SEND_LIMIT) {
-                senderThread.interrupt();
+            // the id is fixed here, so a message that is published again keeps it
+            var messageId = message.messageId().orElseGet(() -> UUID.randomUUID().toString());
+            var headers = new HashMap<>(message.headers());
+            headers.remove(InternalMessage.DELAY_HEADER);  // only tells when to deliver
+            MessageCodecs.record(headers, codec);
+            var queueName = routing.queueName(message.context(), message.channel(), message.dataKey().orElse(messageId));
+            var data = new MessageClient.Outgoing(queueName, messageId, opt.get(), message, headers, message.delayMs());
+            sendLock.lock();
+            try {
+                if (spool != null && (spilling || batch.size() >= SEND_CAPACITY)) {
+                    spill(data);  // keeps the order, everything after the first spilled message is spilled too
+                    return true;
+                }
+                if (batch.size() + unsentMessages >= SEND_CAPACITY) {
+                    return false;
+                }
+                batch.add(data);
+                batchBytes += data.message().length;
+                if (batch.size() == 1) {
+                    firstUnsentNanos = System.nanoTime();
+                    flushNeeded.signal();  // start the linger timer
+                } else if (isBatchFull()) {
+                    flushNeeded.signal();
+                }
+            } finally {
+                sendLock.unlock();
             }
+            return true;
         } else {
             // TODO This occurs if the plugin sends something that is unserializable
             //      I do not think it is good to have the event loop crash in this case,
             //      however plugins should *never* attempt to send unserializable data..!
             new Exception("Invalid message was sent").printStackTrace(); // TODO replace with log.warn()
+            return true;
         }
     }
 
-    public void markReceived(UUID messageKey/*, boolean success*/) {  // TODO need a map of messages to ack / nack
+    /**
+     * @return false while the send queue is full, i.e. trySendAsync() would not take a message
+     */
+    public boolean canSend() {  // thread-safe
+        if (spool != null) {
+            return true;  // overflows to the spool
+        }
+        sendLock.lock();
+        try {
+            return batch.size() + unsentMessages < SEND_CAPACITY;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Expect additional markReceived() calls for a message, e.g. when it is delivered to several event loops
+     */
+    public void retain(UUID messageKey, int extraReceives) {
+        for (var table : inFlight) {
+            table.retain(messageKey, extraReceives);  // only the table of the receiving queue knows the key
+        }
+        inFlightMessages.addAndGet(extraReceives);
+    }
+
+    /**
+     * Completes one delivery of a received message. Once every delivery completed, the message is acknowledged,
+     * or requeued if any of them failed. Settling happens on the receiver thread, which owns the channel.
+     *
+     * @param success false if the message was not handled and should be redelivered
+     */
+    public void markReceived(UUID messageKey, boolean success) {  // thread-safe
+        complete(messageKey, success ? null : InFlightTable.UNKNOWN_FAILURE);
+    }
+
+    /**
+     * Completes one delivery of a received message that failed, see markReceived()
+     *
+     * @param reason why it failed, kept with the message if it ends up in the dead-letter queue
+     */
+    public void markFailed(UUID messageKey, String reason) {  // thread-safe
+        complete(messageKey, reason);
+    }
+
+    private void complete(UUID messageKey, String failure) {
         // TODO: report engine error if messageKey not found in the map
-        inFlightMessages.decrementAndGet();
+        boolean success = failure == null;
+        int remaining = inFlightMessages.decrementAndGet();
+        if (awaitingCapacity > 0) {
+            signalCapacity();
+        }
+        long receivedNanos = -1;
+        for (var table : inFlight) {
+            receivedNanos = Math.max(receivedNanos, table.complete(messageKey, failure));
+        }
+        if (deduplicator != null && (!success || receivedNanos >= 0)) {
+            var hash = dedupHashes.remove(messageKey);
+            if (hash != null && !success) {
+                deduplicator.forget(hash);  // the redelivery must not be dropped
+            }
+        }
+        if (receivedNanos >= 0) {
+            long now = System.nanoTime();
+            limiter.onComplete(now - receivedNanos, remaining + 1, now);
+        }
     }
 
-    private synchronized void threadSafeSendBatch(MessageClient rmq) {  // thread-safe
-        if (this.batch.isEmpty()) {
+    /**
+     * Publishes a failed message to its queue again, to be delivered once its backoff passed, then acknowledges
+     * it (receiver thread of the queue only)
+     *
+     * Publishing blocks until the broker confirmed it, so a failed message is never lost. A message that failed
+     * retryPolicy.maxAttempts() times, or whose body can not be decoded, goes to the dead-letter queue of its queue
+     * instead.
+     */
+    private void retryLater(String queueName, InternalMessage message, String failure, long deliveryTag,
+            MessageClient.Acknowledger acknowledger) throws IOException {
+        int failedAttempts = message.attempt() + 1;
+        var encoded = MessageUtils.encode(message, sendPolicy.wireVersion());
+        if (encoded.isEmpty() || message.messageId().isEmpty()) {
+            acknowledger.nack(deliveryTag, false, true);
+            return;
+        }
+        MessageClient.Outgoing next;
+        if (failedAttempts >= retryPolicy.maxAttempts() || MessageUtils.isUndecodable(message)) {  // no use retrying
+            System.err.println("Dead-lettering message " + message.messageId().get() + " after " + failedAttempts + " attempts: " + failure);
+            next = DeadLetters.deadLetter(queueName, message.messageId().get(), encoded.get(), message.headers(),
+                failedAttempts, message.channel(), failure);
+        } else {
+            var headers = new HashMap<>(message.headers());
+            headers.put(InternalMessage.ATTEMPT_HEADER, Integer.toString(failedAttempts));
+            next = new MessageClient.Outgoing(queueName, message.messageId().get(), encoded.get(), message, headers,
+                retryPolicy.backoffMs(failedAttempts));
+        }
+        try {
+            receiverClients.get(queueName).sendBatch(List.of(next));
+        } catch (IOException | TimeoutException e) {
+            System.err.println("Failed to publish message " + next.messageId() + " to " + next.queueName() + ", requeueing it: " + e);
+            acknowledger.nack(deliveryTag, false, true);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // the unsettled message is redelivered once the receiver stops
             return;
         }
-        var batch = new ArrayList<BatchData>();
-        synchronized (this) {
-            this.batch.drainTo(batch);
+        acknowledger.ack(deliveryTag, false);
+    }
+
+    private boolean isDuplicate(InternalMessage message) {  // receiver threads only
+        var hash = deduplicator == null ? null : deduplicator.hash(message);
+        if (hash == null) {
+            return false;
+        }
+        if (!deduplicator.firstSeen(hash, System.nanoTime())) {
+            return true;
+        }
+        dedupHashes.put(message.key(), hash);
+        return false;
+    }
+
+    private boolean hasCapacity() {  // thread-safe
+        // do not increment count here, this function must be a view
+        // while the broker does not take our output, more input would only fill the send queue
+        return inFlightMessages.get() < limiter.limit() && receiverHasCapacity.get() && unsentMessages == 0;
+    }
+
+    /**
+     * Blocks until a message completed or the timeout passed, instead of spinning (receiver threads only)
+     *
+     * Event loop queue occupancy changes are not signalled, the timeout bounds how late they are noticed.
+     */
+    private void awaitCapacity(long timeoutNanos) throws InterruptedException {
+        capacityLock.lock();
+        try {
+            awaitingCapacity++;  // before checking again, so a completion after the check signals
+            if (!hasCapacity()) {
+                capacityFreed.awaitNanos(timeoutNanos);
+            }
+        } finally {
+            awaitingCapacity--;
+            capacityLock.unlock();
+        }
+    }
+
+    private void signalCapacity() {
+        capacityLock.lock();
+        try {
+            capacityFreed.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes of outgoing messages waiting in the spool
+     */
+    public long getSpooledBytes() {  // thread-safe
+        var spool = this.spool;
+        return spool == null ? 0 : spool.size();
+    }
+
+    private void spill(MessageClient.Outgoing data) {  // guarded by sendLock
+        try {
+            spool.append(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to spool an outgoing message", e);
+        }
+        if (!spilling) {
+            spilling = true;
+            flushNeeded.signal();
+        }
+    }
+
+    /**
+     * Sends in order: a batch the broker did not take, then the in-memory batch, then the spool
+     *
+     * Without a spool, a batch the broker did not take is kept in memory and sent again every
+     * SEND_RETRY_BACKOFF_MS. Meanwhile the receiver pauses, and trySendAsync() turns messages away once the batch
+     * and the kept messages reach SEND_CAPACITY.
+     */
+    private void runSender(MessageClient rmq) throws InterruptedException {  // sender thread only
+        List<MessageClient.Outgoing> unsent = List.of();
+        while (true) {
+            unsentMessages = spool == null ? unsent.size() : 0;
+            if (!unsent.isEmpty()) {
+                unsent = trySend(rmq, unsent);
+                if (!unsent.isEmpty() && !awaitRetry()) {
+                    spoolOnStop(unsent);
+                    return;
+                }
+                continue;
+            }
+            var ready = awaitBatch();
+            if (ready == null) {
+                return;
+            }
+            if (!ready.isEmpty()) {
+                unsent = trySend(rmq, ready);
+                continue;
+            }
+            if (!drainSpool(rmq) && !awaitRetry()) {
+                return;  // the rest stays spooled for the next run
+            }
+        }
+    }
+
+    // sends one chunk of the spool, false if the broker did not take it
+    private boolean drainSpool(MessageClient rmq) throws InterruptedException {  // sender thread only
+        try {
+            var chunk = spool.read(sendPolicy.batchMessages(), sendPolicy.batchBytes());
+            if (!chunk.messages().isEmpty()) {
+                if (!trySend(rmq, chunk.messages()).isEmpty()) {
+                    return false;  // sent again from the start of the chunk, at-least-once
+                }
+                spool.commit(chunk);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to drain the message spool", e);
+        }
+        sendLock.lock();
+        try {
+            if (spool.isEmpty()) {
+                spilling = false;  // appends happen under sendLock, so nothing can slip in between
+            }
+        } finally {
+            sendLock.unlock();
         }
-        batch.forEach(props -> {
+        return true;
+    }
+
+    /**
+     * @return the messages of the batch that still have to be sent, empty if the batch was sent
+     */
+    private List<MessageClient.Outgoing> trySend(MessageClient rmq, List<MessageClient.Outgoing> batch)
+    throws InterruptedException {  // sender thread only
+        try {
+            rmq.sendBatch(batch);
+            return List.of();
+        } catch (IllegalArgumentException e) {
+            // a message the client can never send (a delay it can not hold) must not end the sender, nor be lost
+            if (batch.size() > 1) {
+                return trySendEach(rmq, batch);
+            }
+            var data = batch.get(0);
+            System.err.println("Dead-lettering message " + data.messageId() + " to " + data.queueName() + ", it can not be sent: " + e);
+            var channel = data.source() != null ? data.source().channel() : MessageUtils.channel(data.message()).orElse("");
+            return trySend(rmq, List.of(DeadLetters.deadLetter(data.queueName(), data.messageId(), data.message(),
+                data.headers(), 0, channel, e.toString())));
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            // anything else may pass, e.g. a broken connection the client did not wrap
+            if (spool == null) {
+                System.err.println("Failed to send " + batch.size() + " messages, keeping them until the broker is back: " + e);
+                return batch;
+            }
+            System.err.println("Failed to send " + batch.size() + " messages, spooling until the broker is back: " + e);
+            sendLock.lock();
             try {
-                rmq.send(props.mqChannel(), props.serializedMessage());
-            } catch (IOException | TimeoutException e) {
+                spilling = true;
+            } finally {
+                sendLock.unlock();
+            }
+            return batch;
+        }
+    }
+
+    // sends a batch one message at a time to dead-letter only the messages the client rejects
+    private List<MessageClient.Outgoing> trySendEach(MessageClient rmq, List<MessageClient.Outgoing> batch)
+    throws InterruptedException {  // sender thread only
+        for (int i = 0; i < batch.size(); i++) {
+            if (!trySend(rmq, batch.subList(i, i + 1)).isEmpty()) {
+                return batch.subList(i, batch.size());
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Waits before sending again after a failure
+     *
+     * @return false if stopped
+     */
+    private boolean awaitRetry() throws InterruptedException {  // sender thread only
+        sendLock.lock();
+        try {
+            if (running) {
+                flushNeeded.await(SEND_RETRY_BACKOFF_MS, TimeUnit.MILLISECONDS);
+            }
+            return running;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // the broker is still down while stopping, a spool keeps the messages for the next run (after what it holds already)
+    private void spoolOnStop(List<MessageClient.Outgoing> unsent) {  // sender thread only
+        sendLock.lock();
+        try {
+            if (spool == null) {
+                System.err.println("Stopped while the broker is down, " + (unsent.size() + batch.size()) + " unsent messages are lost");
+                return;
+            }
+            var rest = new ArrayList<>(unsent);
+            rest.addAll(batch);
+            batch.clear();
+            for (var data : rest) {
+                spool.append(data);
+            }
+        } catch (IOException e) {
+            new Exception("Failed to spool unsent messages, they are lost", e).printStackTrace();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void closeSpool() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-        });
-        System.err.println("AsyncMessageQueue: info: message batch was sent to the mq");
+        }
+    }
+
+    /**
+     * Blocks until the batch is full or its linger time has passed, then takes the whole batch
+     *
+     * @return the batch, an empty list if it is the spool's turn, or null once stopped and nothing is left to send
+     */
+    private List<MessageClient.Outgoing> awaitBatch() throws InterruptedException {  // sender thread only
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(sendPolicy.lingerMs());
+        sendLock.lock();
+        try {
+            while (true) {
+                if (batch.isEmpty()) {
+                    if (spilling) {
+                        return List.of();
+                    }
+                    if (!running) {
+                        return null;
+                    }
+                    flushNeeded.await();
+                    continue;
+                }
+                long remaining = firstUnsentNanos + lingerNanos - System.nanoTime();
+                if (remaining <= 0 || isBatchFull() || !running || spilling) {
+                    return takeBatch();
+                }
+                flushNeeded.awaitNanos(remaining);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // takes up to one full batch, what did not fit stays for the next one
+    private List<MessageClient.Outgoing> takeBatch() {  // guarded by sendLock
+        int count = 0;
+        long bytes = 0;
+        while (count < batch.size() && count < sendPolicy.batchMessages()) {
+            int size = batch.get(count).message().length;
+            if (count > 0 && bytes + size > sendPolicy.batchBytes()) {
+                break;
+            }
+            bytes += size;
+            count++;
+        }
+        if (count == batch.size()) {
+            var ready = batch;
+            batch = new ArrayList<>();
+            batchBytes = 0;
+            return ready;
+        }
+        var head = batch.subList(0, count);
+        var ready = new ArrayList<>(head);
+        head.clear();
+        batchBytes -= bytes;
+        return ready;
     }
 
-    private static String lookupMQChannel(String context) {  // TODO make configurable
-        return switch (context) {
-            case "in" -> "za.i";
-            case "out" -> "za.o";
-            default -> throw new RuntimeException("Invalid context " + context);
-        };
+    private boolean isBatchFull() {  // guarded by sendLock
+        return batch.size() >= sendPolicy.batchMessages() || batchBytes >= sendPolicy.batchBytes();
     }
 }
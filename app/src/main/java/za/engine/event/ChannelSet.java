@@ -0,0 +1,63 @@
+package za.engine.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import za.engine.ChannelPattern;
+
+/**
+ * Plugin channels that a feature applies to, by name or pattern ('*' matches any characters)
+ *
+ * spec format: crawl.*,fetch
+ */
+public final class ChannelSet {
+    private final List<ChannelPattern> patterns;
+    private final Map<String, Boolean> byChannel = new ConcurrentHashMap<>();  // caches contains()
+
+    public ChannelSet(List<ChannelPattern> patterns) {
+        this.patterns = List.copyOf(patterns);
+    }
+
+    public static ChannelSet none() {
+        return new ChannelSet(List.of());
+    }
+
+    public static ChannelSet parse(String spec) {
+        var patterns = new ArrayList<ChannelPattern>();
+        for (var entry : spec.split(",")) {
+            if (!entry.isBlank()) {
+                patterns.add(new ChannelPattern(entry.trim()));
+            }
+        }
+        return new ChannelSet(patterns);
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    public boolean contains(String channel) {  // thread-safe
+        if (patterns.isEmpty()) {
+            return false;
+        }
+        return byChannel.computeIfAbsent(channel, key -> {
+            for (var pattern : patterns) {
+                if (pattern.matches(key)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public List<ChannelPattern> patterns() {
+        return patterns;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelSet" + patterns;
+    }
+}
@@ -0,0 +1,109 @@
+package za.engine.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import za.engine.ChannelPattern;
+import za.engine.InternalMessage;
+
+/**
+ * Drops received messages by their data key, e.g. to have a node only crawl the hosts it is responsible for
+ *
+ * A message goes to the first rule that matches its channel, and is kept if its data key matches one of the
+ * rule's key patterns ('*' matches any characters). Messages of channels without a rule, and messages without a
+ * data key, are kept. The data key comes from the frame, so the body of a dropped message is never decoded.
+ *
+ * spec format: fetch=*.example.com|*.example.org,crawl.*=a*
+ */
+public final class DataKeyFilter {
+    private final List<Rule> rules;
+    private final Map<String, Optional<Rule>> byChannel = new ConcurrentHashMap<>();  // caches rule()
+
+    /**
+     * @param channelPattern plugin channels the rule applies to
+     * @param keyPatterns data keys of the messages that are kept
+     */
+    public record Rule(ChannelPattern channelPattern, List<ChannelPattern> keyPatterns) {
+        public Rule {
+            if (channelPattern == null || keyPatterns.isEmpty()) {
+                throw new IllegalArgumentException("Must have a channelPattern and at least one key pattern");
+            }
+            keyPatterns = List.copyOf(keyPatterns);
+        }
+
+        private boolean keeps(String dataKey) {
+            for (var pattern : keyPatterns) {
+                if (pattern.matches(dataKey)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public DataKeyFilter(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    public static DataKeyFilter none() {
+        return new DataKeyFilter(List.of());
+    }
+
+    public static DataKeyFilter parse(String spec) {
+        var rules = new ArrayList<Rule>();
+        for (var entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            var parts = entry.split("=", 2);
+            if (parts.length != 2 || parts[0].isBlank()) {
+                throw new IllegalArgumentException("Invalid data key filter " + entry + ", expected <channel>=<key>|<key>...");
+            }
+            var keyPatterns = new ArrayList<ChannelPattern>();
+            for (var key : parts[1].split("\\|")) {
+                if (!key.isBlank()) {
+                    keyPatterns.add(new ChannelPattern(key.trim()));
+                }
+            }
+            rules.add(new Rule(new ChannelPattern(parts[0].trim()), keyPatterns));
+        }
+        return new DataKeyFilter(rules);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return false if the message is to be dropped
+     */
+    public boolean keeps(InternalMessage message) {  // thread-safe
+        if (rules.isEmpty() || message.dataKey().isEmpty()) {
+            return true;
+        }
+        return rule(message.channel()).map(rule -> rule.keeps(message.dataKey().get())).orElse(true);
+    }
+
+    private Optional<Rule> rule(String channel) {
+        return byChannel.computeIfAbsent(channel, key -> {
+            for (var rule : rules) {
+                if (rule.channelPattern().matches(key)) {
+                    return Optional.of(rule);
+                }
+            }
+            return Optional.empty();
+        });
+    }
+
+    public List<Rule> rules() {
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        return "DataKeyFilter" + rules;
+    }
+}
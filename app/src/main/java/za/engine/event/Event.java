@@ -1,23 +1,42 @@
 package za.engine.event;
 
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import za.engine.InternalMessage;
+import za.lib.HttpClient;
+
+/**
+ * An event, either standalone (see Events.wrap()) or a preallocated slot of an EventRing
+ *
+ * Ring slots are reused: producers write the typed payload fields into a claimed slot, and the event loop
+ * copies them out before the slot is released. The typed fields replace per-event payload records, so the
+ * submit/dispatch path does not allocate. Ids are assigned per event loop when an event is dequeued.
+ */
 public class Event {
     public static final long UNASSIGNED_ID = -1;
 
-    private static final AtomicLong nextId = new AtomicLong(0);
-
     private transient long id = UNASSIGNED_ID;  // not included in equals() or hashCode()
-    private final Events type;
-    private final Object data;
+    private Events type;
+    private Object data;
+
+    // typed payload, which fields are set depends on the type
+    private HttpClient.Request request;  // HTTP_SEND
+    private HttpClient.Response response;  // HTTP_RECEIVE
+    private Consumer<HttpClient.Response> callback;  // HTTP_SEND, HTTP_RECEIVE
+    private InternalMessage message;  // MQ_SEND, MQ_RECEIVE
+    private String owner;  // id of the plugin that caused this event, or null
+
+    private transient long enqueuedNanos;  // System.nanoTime() when queued, 0 if unknown; not included in equals()
 
     public Event(Events type, Object data) {
-        this.id = nextId.incrementAndGet();
         this.type = type;
         this.data = data;
     }
 
+    // ring slot or batch holder
+    Event() {}
+
     public long id() {
         return this.id;
     }
@@ -30,16 +49,84 @@ public class Event {
         return this.data;
     }
 
+    HttpClient.Request request() {
+        return request;
+    }
+
+    HttpClient.Response response() {
+        return response;
+    }
+
+    Consumer<HttpClient.Response> callback() {
+        return callback;
+    }
+
+    InternalMessage message() {
+        return message;
+    }
+
+    String owner() {
+        return owner;
+    }
+
+    long enqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    void set(
+            Events type,
+            Object data,
+            HttpClient.Request request,
+            HttpClient.Response response,
+            Consumer<HttpClient.Response> callback,
+            InternalMessage message,
+            String owner) {
+        this.type = type;
+        this.data = data;
+        this.request = request;
+        this.response = response;
+        this.callback = callback;
+        this.message = message;
+        this.owner = owner;
+    }
+
+    void copyFrom(Event e) {
+        set(e.type, e.data, e.request, e.response, e.callback, e.message, e.owner);
+        this.enqueuedNanos = e.enqueuedNanos;
+    }
+
+    void stamp(long enqueuedNanos) {
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    void assignId(long id) {
+        this.id = id;
+    }
+
+    // drop references, so a reused slot does not keep payloads reachable
+    void clear() {
+        set(null, null, null, null, null, null, null);
+        this.id = UNASSIGNED_ID;
+        this.enqueuedNanos = 0;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof Event e) {
-            return Objects.equals(e.type, this.type) && Objects.equals(e.data, this.data);
+            return Objects.equals(e.type, this.type)
+                && Objects.equals(e.data, this.data)
+                && Objects.equals(e.request, this.request)
+                && Objects.equals(e.response, this.response)
+                && Objects.equals(e.callback, this.callback)
+                && Objects.equals(e.message, this.message)
+                && Objects.equals(e.owner, this.owner);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(this.type) ^ Objects.hashCode(this.data);
+        return Objects.hashCode(this.type) ^ Objects.hashCode(this.data)
+            ^ Objects.hash(this.request, this.response, this.callback, this.message, this.owner);
     }
 }
@@ -9,26 +9,64 @@ import za.engine.mq.MessageClient;
 import za.lib.HttpClient;
 import za.lib.Logger;
 
-import java.util.ConcurrentModificationException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public class EventLoop implements Runnable {
-    public static final int MAX_CONCURRENT_EVENTS = 0xffff;
+    public static final int MAX_CONCURRENT_EVENTS = 0xffff;  // max queued events of all lanes together
+    public static final double RECEIVE_HIGH_WATERMARK = 0.75;  // the mq receiver pauses above this queue occupancy
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
     
     private final Logger log;
-    private final ConcurrentLinkedQueue<Event> events;
+    private final EventQueue events;
     private final DrainableHttpClient http;
     private final AsyncMessageQueue asyncMessageQueue;
+    private final boolean ownsMessageQueue;  // false if the message queue is shared with other loops
     private final Consumer<InternalMessage> messageSubscriber;
+    private final Event[] batch;  // preallocated holders, reader: this, writer: this
+    private long nextEventId = 0;  // per-loop event ids, assigned on dequeue, reader: this, writer: this
+    private final long drainTickNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
 
     // metrics (visible to debugger)
-    private final AtomicLong submitCalls = new AtomicLong();
+    private final LongAdder submitCalls = new LongAdder();  // striped, since every producer thread increments it
     private final AtomicLong processSingleEventCalls = new AtomicLong();
+    private final AtomicLong processEventBatchCalls = new AtomicLong();
     private final AtomicLong waitCalls = new AtomicLong();
     private final AtomicLong notifyCalls = new AtomicLong();
+    private final LongAdder blockedSubmits = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder rejectedEvents = new LongAdder();
+    private final LongAdder spilledEvents = new LongAdder();
+
+    private final EventTracer tracer = new EventTracer();
+
+    // parking state, the consumer is only unparked on the empty -> non-empty transition
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile Thread consumer;
+
+    // drain scheduling, at most one DRAIN_HTTP event is queued at a time
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private boolean httpPending = false;  // reader: this, writer: this
+
+    // events the loop's own thread found no room for, it can not wait for itself to make room (see awaitRoom)
+    private final ArrayDeque<Event> spilled = new ArrayDeque<>();  // reader: this, writer: this
+    private volatile int spilledDepth = 0;  // spilled.size(), reader: any, writer: this
+
+    // http callbacks of finished requests, reused by the next requests (see handleHttpSend)
+    private final ArrayDeque<HttpCompletion> freeCompletions = new ArrayDeque<>();  // reader: this, writer: this
+
+    // message sends the message queue did not take while the broker is down, in order (see handleMessageQueueSend)
+    private final ArrayDeque<Event> heldSends = new ArrayDeque<>();  // reader: this, writer: this
+    private volatile int heldSendsDepth = 0;  // heldSends.size(), reader: any, writer: this
 
     // exported state
     private final EventedHttpClient httpWrapper;
@@ -41,151 +79,634 @@ public class EventLoop implements Runnable {
             Supplier<MessageClient> rmqFactory,
             Supplier<DrainableHttpClient> httpFactory,
             Consumer<InternalMessage> messageSubscriber) {
+        this(rmqReceiveQueueName, rmqFactory, httpFactory, messageSubscriber, EventLoopConfig.defaults());
+    }
+
+    public EventLoop(
+            String rmqReceiveQueueName,
+            Supplier<MessageClient> rmqFactory,
+            Supplier<DrainableHttpClient> httpFactory,
+            Consumer<InternalMessage> messageSubscriber,
+            EventLoopConfig config) {
         this.log = Logger.verbose(EventLoop.class);
-        this.events = new ConcurrentLinkedQueue<>();
+        this.events = new EventQueue(config.laneCapacity(), config.laneWeights());
         this.http = httpFactory.get();
         this.httpWrapper = new EventedHttpClient(this);
         this.messageListener = new EventedMessageListener(this);
-        this.asyncMessageQueue = new AsyncMessageQueue(this.messageListener, rmqReceiveQueueName, rmqFactory);
+        this.asyncMessageQueue = new AsyncMessageQueue(this.messageListener, List.of(rmqReceiveQueueName), rmqFactory,
+            this::canAcceptMessages, config.newReceiveLimiter(this::getCongestion),
+            config.sendPolicy(), config.receiveMode(), config.routing(), config.newDeduplicator(),
+            config.dataKeyFilter(), config.retryPolicy());
+        this.ownsMessageQueue = true;
         this.messageSubscriber = messageSubscriber;
+        this.batch = newBatch(config.batchSize());
+        this.drainTickNanos = TimeUnit.MILLISECONDS.toNanos(config.drainTickMs());
+        this.overflowPolicy = config.overflowPolicy();
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.blockTimeoutMs());
+        this.http.setDrainListener(this::onHttpResponseAvailable);
+    }
+
+    /**
+     * An event loop that shares its message queue with other loops (see EventLoopGroup)
+     *
+     * run() will not start or stop the shared message queue, the owner of the queue does that
+     */
+    EventLoop(
+            AsyncMessageQueue sharedMessageQueue,
+            Supplier<DrainableHttpClient> httpFactory,
+            Consumer<InternalMessage> messageSubscriber,
+            EventLoopConfig config) {
+        this.log = Logger.verbose(EventLoop.class);
+        this.events = new EventQueue(config.laneCapacity(), config.laneWeights());
+        this.http = httpFactory.get();
+        this.httpWrapper = new EventedHttpClient(this);
+        this.messageListener = new EventedMessageListener(this);
+        this.asyncMessageQueue = sharedMessageQueue;
+        this.ownsMessageQueue = false;
+        this.messageSubscriber = messageSubscriber;
+        this.batch = newBatch(config.batchSize());
+        this.drainTickNanos = TimeUnit.MILLISECONDS.toNanos(config.drainTickMs());
+        this.overflowPolicy = config.overflowPolicy();
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.blockTimeoutMs());
+        this.http.setDrainListener(this::onHttpResponseAvailable);
     }
 
     // this only can be constructed with mocks
     // @VisibleForTesting
     EventLoop(
             Logger log,
-            ConcurrentLinkedQueue<Event> events,
+            EventQueue events,
             DrainableHttpClient http,
             EventedHttpClient eventedHttp,
             EventedMessageListener eventedMessageListener,
             AsyncMessageQueue asyncMessageQueue,
-            Consumer<InternalMessage> messageSubscriber) {
+            Consumer<InternalMessage> messageSubscriber,
+            EventLoopConfig config) {
         this.log = log;
         this.events = events;
         this.http = http;
         this.httpWrapper = eventedHttp;
         this.messageListener = eventedMessageListener;
         this.asyncMessageQueue = asyncMessageQueue;
+        this.ownsMessageQueue = true;
         this.messageSubscriber = messageSubscriber;
+        this.batch = newBatch(config.batchSize());
+        this.drainTickNanos = TimeUnit.MILLISECONDS.toNanos(config.drainTickMs());
+        this.overflowPolicy = config.overflowPolicy();
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.blockTimeoutMs());
+        this.http.setDrainListener(this::onHttpResponseAvailable);
     }
 
     public HttpClient getHttp() {
         return httpWrapper;
     }
 
+    /**
+     * @return an http client whose requests and responses are traced as events of the given plugin
+     */
+    public HttpClient getHttp(String pluginId) {
+        return new EventedHttpClient(this, pluginId);
+    }
+
+    public EventTracer getTracer() {
+        return tracer;
+    }
+
     public MessageListener getMessageQueue() {
         return messageListener;
     }
 
+    /**
+     * @return number of events queued in the lane of an event type
+     */
+    public int getLaneDepth(Events type) {  // thread-safe
+        return events.depth(type);
+    }
+
+    /**
+     * @return number of events queued in all lanes
+     */
+    public int getQueueDepth() {  // thread-safe
+        return events.size();
+    }
+
+    /**
+     * @return max number of events queued in all lanes
+     */
+    public int getQueueCapacity() {  // thread-safe
+        return events.totalCapacity();
+    }
+
+    /**
+     * @return fraction of the queue capacity in use, between 0 and 1
+     */
+    public double getQueueOccupancy() {  // thread-safe
+        return events.size() / (double) events.totalCapacity();
+    }
+
+    /**
+     * A message that starts a lot of http requests is dispatched quickly, its cost shows in the http backlog
+     *
+     * @return the higher of the queue occupancy and the http backlog occupancy, between 0 and 1
+     */
+    public double getCongestion() {  // thread-safe
+        return Math.max(getQueueOccupancy(), http.getBacklogOccupancy());
+    }
+
+    /**
+     * @return number of submits that had to wait for room in a full lane
+     */
+    public long getBlockedSubmits() {  // thread-safe
+        return blockedSubmits.sum();
+    }
+
+    /**
+     * @return number of events discarded by OverflowPolicy.DROP
+     */
+    public long getDroppedEvents() {  // thread-safe
+        return droppedEvents.sum();
+    }
+
+    /**
+     * @return number of events the loop's own thread submitted to a full lane, which were dispatched after the lanes
+     */
+    public long getSpilledEvents() {  // thread-safe
+        return spilledEvents.sum();
+    }
+
+    /**
+     * @return number of message sends held back until the message queue can take them again
+     */
+    public int getHeldSends() {  // thread-safe
+        return heldSendsDepth;
+    }
+
+    /**
+     * @return number of submits that failed with an IllegalStateException
+     */
+    public long getRejectedEvents() {  // thread-safe
+        return rejectedEvents.sum();
+    }
+
+    /**
+     * @return false while the queue is too full to take more received messages, the mq receiver pauses meanwhile
+     */
+    public boolean canAcceptMessages() {  // thread-safe
+        return events.size() < events.totalCapacity() * RECEIVE_HIGH_WATERMARK
+            && events.depth(Events.MQ_RECEIVE) < events.capacity()
+            && spilledDepth < events.capacity()
+            && heldSendsDepth == 0;
+    }
+
     /**
      * Submit an event to be processed later
+     *
+     * The event is copied into a queue slot, prefer the typed submit methods which do not need an Event at all.
+     * A full lane is handled according to the configured OverflowPolicy.
+     *
+     * @throws IllegalStateException if the event queue is full and the event was not dropped
+     */
+    public void submit(Event e) {  // thread-safe
+        submitCalls.increment();
+        var policy = overflowPolicy;
+        long deadline = 0;
+        while (!events.offer(e)) {
+            if (spill(e.type(), policy)) {
+                var copy = new Event();
+                copy.copyFrom(e);
+                copy.stamp(System.nanoTime());
+                spilled.add(copy);
+                return;
+            }
+            if (deadline == 0) {
+                deadline = overflowDeadline(policy);
+            }
+            if (!awaitRoom(e.type(), policy, deadline)) {
+                return;
+            }
+        }
+        wakeUp();
+    }
+
+    /**
+     * Submit an http request to be sent by this loop's http client (allocation-free)
+     *
+     * A full lane is handled according to the configured OverflowPolicy.
+     *
+     * @throws IllegalStateException if the event queue is full and the request was not dropped
+     */
+    public void submitHttpSend(HttpClient.Request req, Consumer<HttpClient.Response> next) {  // thread-safe
+        submitHttpSend(req, next, null);
+    }
+
+    /**
+     * @param owner id of the plugin that sends the request, or null
+     * @see #submitHttpSend(HttpClient.Request, Consumer)
+     */
+    public void submitHttpSend(HttpClient.Request req, Consumer<HttpClient.Response> next, String owner) {  // thread-safe
+        publish(Events.HTTP_SEND, overflowPolicy, req, null, next, null, owner);
+    }
+
+    /**
+     * Submit an http response to be passed to its callback on this loop's thread (allocation-free)
+     *
+     * Blocks while the lane is full. On the loop's own thread (e.g. from a drain) a response that finds its lane full
+     * is spilled instead, it is never lost.
+     *
+     * @throws IllegalStateException if the lane stays full for longer than the block timeout
+     */
+    public void submitHttpReceive(HttpClient.Response res, Consumer<HttpClient.Response> next) {  // thread-safe
+        submitHttpReceive(res, next, null);
+    }
+
+    /**
+     * @param owner id of the plugin that sent the request, or null
+     * @see #submitHttpReceive(HttpClient.Response, Consumer)
      */
-    public synchronized void submit(Event e) {  // thread-safe
-        submitCalls.incrementAndGet();
-        events.offer(e);
-        notifyCalls.incrementAndGet();
-        notify();  // wake up event loop
+    public void submitHttpReceive(HttpClient.Response res, Consumer<HttpClient.Response> next, String owner) {  // thread-safe
+        publish(Events.HTTP_RECEIVE, OverflowPolicy.BLOCK, null, res, next, null, owner);
+    }
+
+    /**
+     * Submit a message to be sent by the message queue (allocation-free)
+     *
+     * A full lane is handled according to the configured OverflowPolicy.
+     *
+     * @throws IllegalStateException if the event queue is full and the message was not dropped
+     */
+    public void submitMessageSend(InternalMessage message) {  // thread-safe
+        publish(Events.MQ_SEND, overflowPolicy, null, null, null, message, message.pluginId());
+    }
+
+    /**
+     * Submit a received message to be passed to the subscriber on this loop's thread (allocation-free)
+     *
+     * Blocks while the lane is full, which also blocks the mq receiver.
+     *
+     * @throws IllegalStateException if the lane stays full for longer than the block timeout
+     */
+    public void submitMessageReceive(InternalMessage message) {  // thread-safe
+        publish(Events.MQ_RECEIVE, OverflowPolicy.BLOCK, null, null, null, message, null);  // subscribers trace themselves
+    }
+
+    // writes the payload straight into a claimed slot of the type's lane
+    private void publish(
+            Events type,
+            OverflowPolicy policy,
+            HttpClient.Request req,
+            HttpClient.Response res,
+            Consumer<HttpClient.Response> next,
+            InternalMessage message,
+            String owner) {  // thread-safe
+        submitCalls.increment();
+        var lane = events.lane(type);
+        long sequence;
+        long deadline = 0;
+        while ((sequence = lane.claim()) < 0) {
+            if (spill(type, policy)) {
+                var event = new Event();
+                event.set(type, null, req, res, next, message, owner);
+                event.stamp(System.nanoTime());
+                spilled.add(event);
+                return;
+            }
+            if (deadline == 0) {
+                deadline = overflowDeadline(policy);
+            }
+            if (!awaitRoom(type, policy, deadline)) {
+                return;
+            }
+        }
+        var slot = lane.slot(sequence);
+        slot.set(type, null, req, res, next, message, owner);
+        slot.stamp(System.nanoTime());
+        lane.publish(sequence);
+        wakeUp();
+    }
+
+    // called once per submit that found its lane full
+    private long overflowDeadline(OverflowPolicy policy) {
+        if (policy == OverflowPolicy.BLOCK) {
+            blockedSubmits.increment();
+        }
+        return System.nanoTime() + blockTimeoutNanos;
+    }
+
+    /**
+     * The loop's own thread can not block until it made room itself, with OverflowPolicy.BLOCK its events go to the
+     * spilled list instead, which it dispatches after the lanes. Http responses are always spilled, anything else
+     * up to one lane capacity, beyond that it is rejected.
+     *
+     * @return true if the event has to be spilled (and counts it)
+     */
+    private boolean spill(Events type, OverflowPolicy policy) {  // thread-safe
+        if (policy != OverflowPolicy.BLOCK || Thread.currentThread() != consumer) {
+            return false;
+        }
+        if (type != Events.HTTP_RECEIVE && spilled.size() >= events.capacity()) {
+            return false;
+        }
+        spilledEvents.increment();
+        spilledDepth = spilled.size() + 1;
+        return true;
+    }
+
+    /**
+     * Applies an overflow policy after a lane was found full
+     *
+     * @return true to retry, false if the event was dropped
+     * @throws IllegalStateException if the event is rejected
+     */
+    private boolean awaitRoom(Events type, OverflowPolicy policy, long deadline) {  // thread-safe
+        switch (policy) {
+            case DROP -> {
+                droppedEvents.increment();
+                return false;
+            }
+            case BLOCK -> {
+                // the loop's own thread would wait for itself forever, it only gets here once it spilled too much
+                if (Thread.currentThread() != consumer && System.nanoTime() - deadline < 0) {
+                    wakeUp();
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);  // the consumer does not signal freed slots, poll
+                    if (!Thread.currentThread().isInterrupted()) {
+                        return true;
+                    }
+                }
+            }
+            case REJECT -> {}
+        }
+        rejectedEvents.increment();
+        throw full(type);
+    }
+
+    private void wakeUp() {  // thread-safe
+        // only the producer that observes a parked consumer pays for the unpark
+        if (parked.get() && parked.compareAndSet(true, false)) {
+            notifyCalls.incrementAndGet();
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private IllegalStateException full(Events type) {
+        return new IllegalStateException(String.format("Event queue lane %s reached limit at %d events", type, events.capacity()));
     }
 
     /**
      * Disable event processing
      */
-    public synchronized void stop() {  // thread-safe
+    public void stop() {  // thread-safe
         running = false;
-        notifyCalls.incrementAndGet();
-        notify();  // if the event loop is empty, we will wait and stop() never halts the loop, so force a wake up
+        var thread = consumer;
+        if (thread != null) {
+            notifyCalls.incrementAndGet();
+            LockSupport.unpark(thread);  // if the event loop is empty it is parked and would never see running == false
+        }
     }
 
     @Override
     public void run() {
+        consumer = Thread.currentThread();
+        tracer.bind(consumer);
         if (!running) {
             running = true;
         }
-        asyncMessageQueue.start();
+        if (ownsMessageQueue) {
+            asyncMessageQueue.start();
+        }
         while (running) {
-            // double locking with wait to avoid using up all cpu resources when the queue is empty
             if (events.isEmpty()) {
-                synchronized (this) {
-                    if (events.isEmpty()) {
-                        try {
-                            waitCalls.incrementAndGet();
-                            wait();  // block to wait for producer
-                        } catch (InterruptedException e) {
-                            running = false;
-                            log.warn("wait was interrupted, will stop event loop. %s", e);
-                            break;
-                        }
+                // publish the flag before re-checking, so a producer either sees it or we see the producer's event
+                parked.set(true);
+                if (events.isEmpty() && spilled.isEmpty() && running) {
+                    waitCalls.incrementAndGet();
+                    if (httpPending || !heldSends.isEmpty()) {
+                        // responses schedule their own drains, this tick only catches requests that never call back,
+                        // and offers held sends again
+                        LockSupport.parkNanos(this, drainTickNanos);
+                    } else {
+                        LockSupport.park(this);  // block to wait for producer
                     }
                 }
+                parked.set(false);
+                if (Thread.interrupted()) {
+                    running = false;
+                    log.warn("park was interrupted, will stop event loop");
+                    break;
+                }
+                if (httpPending && events.isEmpty()) {
+                    scheduleDrain();
+                }
             }
-            processSingleEvent();
+            processEventBatch();
+        }
+        if (!heldSends.isEmpty()) {
+            log.warn("Stopped while the message queue is full, %d held messages are lost", heldSends.size());
+        }
+        if (ownsMessageQueue) {
+            asyncMessageQueue.stop();
+        }
+    }
+
+    /**
+     * Drain up to batchSize events from the queue, then dispatch all of them
+     *
+     * @return number of dispatched events
+     */
+    // @VisibleForTesting
+    int processEventBatch() {
+        processEventBatchCalls.incrementAndGet();
+        int n = 0;
+        while (n < batch.length && events.poll(batch[n])) {  // poll() is non-blocking
+            batch[n++].assignId(nextEventId++);
+        }
+        for (int i = 0; i < n; i++) {
+            dispatch(batch[i]);
+            batch[i].clear();  // do not retain event data until the holder is reused
+        }
+        return n + dispatchSpilled() + sendHeld();
+    }
+
+    // dispatches up to batchSize spilled events, not the ones they spill in turn
+    private int dispatchSpilled() {  // this only
+        int n = Math.min(spilled.size(), batch.length);
+        for (int i = 0; i < n; i++) {
+            var event = spilled.poll();
+            spilledDepth = spilled.size();
+            event.assignId(nextEventId++);
+            dispatch(event);
         }
-        asyncMessageQueue.stop();
+        return n;
+    }
+
+    // offers held sends to the message queue again, in order, until it turns one away
+    private int sendHeld() {  // this only
+        int n = 0;
+        while (!heldSends.isEmpty() && asyncMessageQueue.trySendAsync(heldSends.peek().message())) {
+            heldSends.poll();
+            heldSendsDepth = heldSends.size();
+            n++;
+        }
+        return n;
     }
 
     // @VisibleForTesting
     void processSingleEvent() {
         processSingleEventCalls.incrementAndGet();
-        if (events.isEmpty()) {  // poll() is non-blocking
-            return;
+        var event = batch[0];
+        if (events.poll(event)) {  // poll() is non-blocking
+            event.assignId(nextEventId++);
+            dispatch(event);
+            event.clear();
         }
-        var event = events.poll();
-        if (event == null) {
-            throw new ConcurrentModificationException("multiple consumers detected on the event loop queue");
-        } if (event.type() == null) {
+    }
+
+    private void dispatch(Event event) {
+        var type = event.type();
+        if (type == null) {
             this.handleInvalidEventType(event);
-        } else {
-            switch (event.type()) {
+            return;
+        }
+        long start = tracer.beginHandler(type, event.owner(), event.enqueuedNanos());
+        try {
+            switch (type) {
                 case HTTP_SEND -> this.handleHttpSend(event);
                 case HTTP_RECEIVE -> this.handleHttpReceive(event);
                 case MQ_SEND -> this.handleMessageQueueSend(event);
                 case MQ_RECEIVE -> this.handleMessageQueueReceive(event);
                 case DRAIN_HTTP -> this.handleDrainHttp(event);
             }
+        } finally {
+            tracer.endHandler(type, event.owner(), start);
         }
     }
 
     // @VisibleForTesting
     void handleHttpSend(Event e) {
-        var data = (EventedHttpClient.SendEventData) e.data();
-        var next = data.next();
-        http.send(data.req(), res -> {
-            submit(Events.HTTP_RECEIVE.wrap(new EventedHttpClient.ReceiveEventData(res, next)));
-        });
-        submit(Events.DRAIN_HTTP.wrap(null));  // TODO smarter drain scheduling
+        var completion = freeCompletions.poll();
+        if (completion == null) {
+            completion = new HttpCompletion();  // only until there is one per request in flight
+        }
+        completion.next = e.callback();
+        completion.owner = e.owner();
+        try {
+            http.send(e.request(), completion);
+        } catch (RuntimeException ex) {
+            completion.release();
+            throw ex;
+        }
+        scheduleDrain();  // hands the request to the http client
+    }
+
+    /**
+     * Passes a response on to the plugin's callback, as an HTTP_RECEIVE event
+     *
+     * The http client calls it from drain(), i.e. on the loop thread, which then reuses it for another request.
+     */
+    private final class HttpCompletion implements Consumer<HttpClient.Response> {
+        private Consumer<HttpClient.Response> next;  // reader: this, writer: this
+        private String owner;
+
+        @Override
+        public void accept(HttpClient.Response res) {
+            var next = this.next;
+            var owner = this.owner;
+            release();
+            submitHttpReceive(res, next, owner);
+        }
+
+        private void release() {
+            next = null;
+            owner = null;
+            freeCompletions.push(this);
+        }
     }
 
     // @VisibleForTesting
     void handleHttpReceive(Event event) {
-        var data = (EventedHttpClient.ReceiveEventData) event.data();
         try {
-            data.next().accept(data.res());
+            event.callback().accept(event.response());
         } catch (Exception e) {
             log.error("http callback failed: %s", e);
             e.printStackTrace();
         }
     }
 
+    /**
+     * While the broker is down and the send queue is full, sends are held back in order instead of failing the
+     * plugin. The receiver pauses meanwhile (see canAcceptMessages()), so only the output of work already in flight
+     * is held.
+     */
     // @VisibleForTesting
     void handleMessageQueueSend(Event event) {
-        var data = (EventedMessageListener.SendEventData) event.data();
-        asyncMessageQueue.sendAsync(data.message());
+        if (heldSends.isEmpty() && asyncMessageQueue.trySendAsync(event.message())) {
+            return;
+        }
+        var copy = new Event();
+        copy.copyFrom(event);  // the slot is reused
+        heldSends.add(copy);
+        heldSendsDepth = heldSends.size();
     }
 
     // @VisibleForTesting
     void handleMessageQueueReceive(Event e) {
-        var data = (EventedMessageListener.ReceiveEventData) e.data();
-        asyncMessageQueue.markReceived(data.message().key());
-        messageSubscriber.accept(data.message());
+        var message = e.message();
+        String failure = InFlightTable.UNKNOWN_FAILURE;
+        try {
+            messageSubscriber.accept(message);
+            failure = null;
+        } catch (Exception ex) {
+            log.error("message dispatch failed, message %s will be redelivered: %s", message.key(), ex);
+            ex.printStackTrace();
+            failure = ex.toString();
+        } finally {
+            // ack only after the subscriber ran
+            if (failure == null) {
+                asyncMessageQueue.markReceived(message.key(), true);
+            } else {
+                asyncMessageQueue.markFailed(message.key(), failure);
+            }
+        }
     }
 
     // @VisibleForTesting
     void handleDrainHttp(Event e) {
-        if (http.drain()) {
-            // "recursively" enqueue another drain call, since the draining is not yet complete
-            // TODO this will result in a ton of queue pollution and consequently CPU overload
-            submit(Events.DRAIN_HTTP.wrap(null));
+        // clear before draining, so a response that arrives mid-drain schedules the next one
+        drainScheduled.set(false);
+        // no re-submit while requests are in flight, their responses call onHttpResponseAvailable()
+        httpPending = http.drain();
+    }
+
+    /**
+     * Queue a DRAIN_HTTP event unless one is already pending
+     */
+    // @VisibleForTesting
+    void scheduleDrain() {  // thread-safe
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                publish(Events.DRAIN_HTTP, OverflowPolicy.REJECT, null, null, null, null, null);
+            } catch (IllegalStateException e) {
+                drainScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    // called by the http client's threads
+    private void onHttpResponseAvailable() {
+        try {
+            scheduleDrain();
+        } catch (IllegalStateException e) {
+            // the fallback tick will drain this response once the queue has room
+            log.warn("Could not schedule http drain: %s", e);
+        }
+    }
+
+    private static Event[] newBatch(int batchSize) {
+        var batch = new Event[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = new Event();
         }
+        return batch;
     }
 
     // @VisibleForTesting
@@ -0,0 +1,286 @@
+package za.engine.event;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import za.engine.mq.MessageClient;
+
+/**
+ * Tuning knobs for an EventLoop
+ *
+ * @param batchSize max events drained from the queue and dispatched per wake-up
+ * @param drainTickMs fallback http drain interval while requests are in flight (for requests that never complete)
+ * @param laneWeights events taken from each event type's lane per scheduling round, higher weights go first
+ * @param laneCapacity max queued events per lane, every lane preallocates this many event slots;
+ *                     all lanes together are bounded by EventLoop.MAX_CONCURRENT_EVENTS
+ * @param overflowPolicy what happens when a plugin's send finds its lane full
+ * @param blockTimeoutMs max time a producer waits for room when blocking
+ * @param slowHandlerThresholdMs handlers running longer than this are flagged by a watchdog, 0 disables it
+ * @param dumpSlowHandlerStacks log the loop thread's stack when flagging a slow handler
+ * @param minReceiveLimit lower bound of the adaptive number of in-flight received messages
+ * @param maxReceiveLimit upper bound of the adaptive number of in-flight received messages
+ * @param sendPolicy when the message queue flushes its outgoing batch
+ * @param receiveMode whether the message queue polls for messages or has the broker push them
+ * @param routing which mq queue each sent message goes to
+ * @param partitionedChannels a message of these channels goes to one of the loops subscribed to it, picked by a
+ *                            consistent hash of its data key (or id), instead of to every one of them
+ * @param dedupWindowMs received messages with an id seen within this window are dropped, 0 disables it
+ * @param dedupCapacity max number of message ids remembered for dropping duplicates
+ * @param dedupDataKeyChannels received messages of these channels are dropped if their data key (instead of their
+ *                             id) was seen within the dedup window
+ * @param dataKeyFilter received messages whose data key it does not keep are dropped, without decoding their body
+ * @param retryPolicy how received messages whose handling failed are retried, null requeues them at once
+ * @param reportIntervalMs how often an EventLoopGroup logs its latency histograms, 0 logs them only once it stopped
+ */
+public record EventLoopConfig(
+        int batchSize,
+        long drainTickMs,
+        Map<Events, Integer> laneWeights,
+        int laneCapacity,
+        OverflowPolicy overflowPolicy,
+        long blockTimeoutMs,
+        long slowHandlerThresholdMs,
+        boolean dumpSlowHandlerStacks,
+        int minReceiveLimit,
+        int maxReceiveLimit,
+        SendPolicy sendPolicy,
+        MessageClient.ReceiveMode receiveMode,
+        MessageRouting routing,
+        ChannelSet partitionedChannels,
+        long dedupWindowMs,
+        int dedupCapacity,
+        ChannelSet dedupDataKeyChannels,
+        DataKeyFilter dataKeyFilter,
+        RetryPolicy retryPolicy,
+        long reportIntervalMs
+) {
+    public static EventLoopConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * @param occupancy congestion of the event loops that receive the messages, see EventLoop.getCongestion()
+     */
+    ReceiveLimiter newReceiveLimiter(Supplier<Double> occupancy) {
+        return new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, minReceiveLimit, maxReceiveLimit, occupancy);
+    }
+
+    // null if duplicates are not dropped
+    MessageDeduplicator newDeduplicator() {
+        return dedupWindowMs == 0 ? null : new MessageDeduplicator(dedupWindowMs, dedupCapacity, dedupDataKeyChannels);
+    }
+
+    public static class Builder {
+        public static final int DEFAULT_BATCH_SIZE = 256;
+        public static final long DEFAULT_DRAIN_TICK_MS = 1000;
+        public static final int DEFAULT_LANE_CAPACITY = 8192;
+        public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+        public static final long DEFAULT_BLOCK_TIMEOUT_MS = 5000;
+        public static final long DEFAULT_SLOW_HANDLER_THRESHOLD_MS = 500;
+        public static final int DEFAULT_MIN_RECEIVE_LIMIT = 1;
+        public static final int DEFAULT_MAX_RECEIVE_LIMIT = 1000;
+        public static final MessageClient.ReceiveMode DEFAULT_RECEIVE_MODE = MessageClient.ReceiveMode.PUSH;
+        public static final long DEFAULT_DEDUP_WINDOW_MS = 0;
+        public static final int DEFAULT_DEDUP_CAPACITY = 1 << 20;
+        public static final long DEFAULT_REPORT_INTERVAL_MS = 60_000;
+        /** completions, then new intake, then sends */
+        public static final Map<Events, Integer> DEFAULT_LANE_WEIGHTS = Map.of(
+            Events.HTTP_RECEIVE, 8,
+            Events.DRAIN_HTTP, 8,
+            Events.MQ_RECEIVE, 4,
+            Events.HTTP_SEND, 2,
+            Events.MQ_SEND, 2
+        );
+
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private long drainTickMs = DEFAULT_DRAIN_TICK_MS;
+        private final Map<Events, Integer> laneWeights = new EnumMap<>(DEFAULT_LANE_WEIGHTS);
+        private int laneCapacity = DEFAULT_LANE_CAPACITY;
+        private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+        private long blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+        private long slowHandlerThresholdMs = DEFAULT_SLOW_HANDLER_THRESHOLD_MS;
+        private boolean dumpSlowHandlerStacks = false;
+        private int minReceiveLimit = DEFAULT_MIN_RECEIVE_LIMIT;
+        private int maxReceiveLimit = DEFAULT_MAX_RECEIVE_LIMIT;
+        private SendPolicy sendPolicy = SendPolicy.defaults();
+        private MessageClient.ReceiveMode receiveMode = DEFAULT_RECEIVE_MODE;
+        private MessageRouting routing = MessageRouting.defaults();
+        private ChannelSet partitionedChannels = ChannelSet.none();
+        private long dedupWindowMs = DEFAULT_DEDUP_WINDOW_MS;
+        private int dedupCapacity = DEFAULT_DEDUP_CAPACITY;
+        private ChannelSet dedupDataKeyChannels = ChannelSet.none();
+        private DataKeyFilter dataKeyFilter = DataKeyFilter.none();
+        private RetryPolicy retryPolicy = RetryPolicy.defaults();
+        private long reportIntervalMs = DEFAULT_REPORT_INTERVAL_MS;
+
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder drainTickMs(long drainTickMs) {
+            this.drainTickMs = drainTickMs;
+            return this;
+        }
+
+        public Builder laneWeight(Events type, int weight) {
+            this.laneWeights.put(type, weight);
+            return this;
+        }
+
+        public Builder laneWeights(Map<Events, Integer> laneWeights) {
+            this.laneWeights.putAll(laneWeights);
+            return this;
+        }
+
+        public Builder laneCapacity(int laneCapacity) {
+            this.laneCapacity = laneCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder blockTimeoutMs(long blockTimeoutMs) {
+            this.blockTimeoutMs = blockTimeoutMs;
+            return this;
+        }
+
+        public Builder slowHandlerThresholdMs(long slowHandlerThresholdMs) {
+            this.slowHandlerThresholdMs = slowHandlerThresholdMs;
+            return this;
+        }
+
+        public Builder dumpSlowHandlerStacks(boolean dumpSlowHandlerStacks) {
+            this.dumpSlowHandlerStacks = dumpSlowHandlerStacks;
+            return this;
+        }
+
+        public Builder minReceiveLimit(int minReceiveLimit) {
+            this.minReceiveLimit = minReceiveLimit;
+            return this;
+        }
+
+        public Builder maxReceiveLimit(int maxReceiveLimit) {
+            this.maxReceiveLimit = maxReceiveLimit;
+            return this;
+        }
+
+        public Builder sendPolicy(SendPolicy sendPolicy) {
+            this.sendPolicy = sendPolicy;
+            return this;
+        }
+
+        public Builder receiveMode(MessageClient.ReceiveMode receiveMode) {
+            this.receiveMode = receiveMode;
+            return this;
+        }
+
+        public Builder routing(MessageRouting routing) {
+            this.routing = routing;
+            return this;
+        }
+
+        public Builder partitionedChannels(ChannelSet partitionedChannels) {
+            this.partitionedChannels = partitionedChannels;
+            return this;
+        }
+
+        public Builder dedupWindowMs(long dedupWindowMs) {
+            this.dedupWindowMs = dedupWindowMs;
+            return this;
+        }
+
+        public Builder dedupCapacity(int dedupCapacity) {
+            this.dedupCapacity = dedupCapacity;
+            return this;
+        }
+
+        public Builder dedupDataKeyChannels(ChannelSet dedupDataKeyChannels) {
+            this.dedupDataKeyChannels = dedupDataKeyChannels;
+            return this;
+        }
+
+        public Builder dataKeyFilter(DataKeyFilter dataKeyFilter) {
+            this.dataKeyFilter = dataKeyFilter;
+            return this;
+        }
+
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        public Builder reportIntervalMs(long reportIntervalMs) {
+            this.reportIntervalMs = reportIntervalMs;
+            return this;
+        }
+
+        public EventLoopConfig build() {
+            if (batchSize < 1 || batchSize > EventLoop.MAX_CONCURRENT_EVENTS) {
+                throw new IllegalArgumentException("Must have 1 <= batchSize <= " + EventLoop.MAX_CONCURRENT_EVENTS);
+            }
+            if (drainTickMs < 1) {
+                throw new IllegalArgumentException("Must have drainTickMs >= 1");
+            }
+            laneWeights.forEach((type, weight) -> {
+                if (weight < 1) {
+                    throw new IllegalArgumentException("Must have lane weight >= 1 for " + type);
+                }
+            });
+            int maxLaneCapacity = EventLoop.MAX_CONCURRENT_EVENTS / Events.values().length;
+            if (laneCapacity < 1 || laneCapacity > maxLaneCapacity) {
+                throw new IllegalArgumentException("Must have 1 <= laneCapacity <= " + maxLaneCapacity);
+            }
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("Must have an overflowPolicy");
+            }
+            if (blockTimeoutMs < 0) {
+                throw new IllegalArgumentException("Must have blockTimeoutMs >= 0");
+            }
+            if (slowHandlerThresholdMs < 0) {
+                throw new IllegalArgumentException("Must have slowHandlerThresholdMs >= 0");
+            }
+            if (minReceiveLimit < 1 || maxReceiveLimit < minReceiveLimit) {
+                throw new IllegalArgumentException("Must have 1 <= minReceiveLimit <= maxReceiveLimit");
+            }
+            if (dedupWindowMs < 0) {
+                throw new IllegalArgumentException("Must have dedupWindowMs >= 0");
+            }
+            if (dedupCapacity < 2) {
+                throw new IllegalArgumentException("Must have dedupCapacity >= 2");
+            }
+            if (dedupWindowMs == 0 && !dedupDataKeyChannels.isEmpty()) {
+                throw new IllegalArgumentException("Must have dedupWindowMs > 0 to drop duplicate data keys");
+            }
+            if (reportIntervalMs < 0) {
+                throw new IllegalArgumentException("Must have reportIntervalMs >= 0");
+            }
+            return new EventLoopConfig(
+                batchSize,
+                drainTickMs,
+                Map.copyOf(laneWeights),
+                laneCapacity,
+                overflowPolicy,
+                blockTimeoutMs,
+                slowHandlerThresholdMs,
+                dumpSlowHandlerStacks,
+                minReceiveLimit,
+                maxReceiveLimit,
+                Objects.requireNonNull(sendPolicy),
+                Objects.requireNonNull(receiveMode),
+                Objects.requireNonNull(routing),
+                Objects.requireNonNull(partitionedChannels),
+                dedupWindowMs,
+                dedupCapacity,
+                Objects.requireNonNull(dedupDataKeyChannels),
+                Objects.requireNonNull(dataKeyFilter),
+                retryPolicy,
+                reportIntervalMs);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package za.engine.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import za.engine.InternalMessage;
+import za.engine.MessageListener;
+import za.engine.RegistryImpl;
+import za.engine.http.DrainableHttpClient;
+import za.engine.mq.MessageClient;
+import za.lib.Logger;
+
+/**
+ * A fixed set of event loops, each running on its own thread with its own http client
+ *
+ * Every loop has its own registry. Plugins are pinned to a loop (and subscribe through that loop's registry),
+ * so a plugin's callbacks still never run concurrently. All loops share one message queue, whose receiver
+ * routes each message to the loops that have subscribers for the message's channel. Messages of partitioned
+ * channels go to one of those loops instead, the same one for the same data key, so e.g. the politeness state of
+ * a host stays with one plugin instance.
+ */
+public final class EventLoopGroup implements Runnable {
+    private final Logger log;
+    private final List<EventLoop> loops;
+    private final List<RegistryImpl> registries;
+    private final AsyncMessageQueue asyncMessageQueue;
+    private final MessageListener router;
+    private final EventLoopConfig config;
+
+    /**
+     * @param rmqReceiveQueueNames mq queues to receive messages from, see MessageRouting
+     * @param rmqFactory creates mq clients for the shared message queue
+     * @param httpFactory creates one http client per loop
+     * @param registries one registry per loop, the group size is registries.size()
+     * @param dispatcher called on a loop's thread with that loop's registry, for every message routed to it
+     * @param config applies to every loop
+     */
+    public EventLoopGroup(
+            List<String> rmqReceiveQueueNames,
+            Supplier<MessageClient> rmqFactory,
+            Supplier<DrainableHttpClient> httpFactory,
+            List<RegistryImpl> registries,
+            BiConsumer<RegistryImpl, InternalMessage> dispatcher,
+            EventLoopConfig config) {
+        if (registries.isEmpty()) {
+            throw new IllegalArgumentException("Must have at least one event loop");
+        }
+        this.log = Logger.verbose(EventLoopGroup.class);
+        this.registries = List.copyOf(registries);
+        this.router = new Router();
+        this.config = config;
+        this.asyncMessageQueue = new AsyncMessageQueue(router, rmqReceiveQueueNames, rmqFactory,
+            this::canAcceptMessages, config.newReceiveLimiter(this::getCongestion),
+            config.sendPolicy(), config.receiveMode(), config.routing(), config.newDeduplicator(),
+            config.dataKeyFilter(), config.retryPolicy());
+        var loops = new ArrayList<EventLoop>(registries.size());
+        for (var registry : this.registries) {
+            loops.add(new EventLoop(asyncMessageQueue, httpFactory, message -> dispatcher.accept(registry, message), config));
+        }
+        this.loops = List.copyOf(loops);
+    }
+
+    public int size() {
+        return loops.size();
+    }
+
+    public EventLoop get(int index) {
+        return loops.get(index);
+    }
+
+    public RegistryImpl getRegistry(int index) {
+        return registries.get(index);
+    }
+
+    /**
+     * Runs loop 0 on the calling thread and every other loop on a new thread, blocks until loop 0 stops
+     */
+    @Override
+    public void run() {
+        asyncMessageQueue.start();
+        var threads = new ArrayList<Thread>(loops.size() - 1);
+        for (int i = 1; i < loops.size(); i++) {
+            var thread = new Thread(loops.get(i), "EventLoop_" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        var watchdog = startWatchdog();
+        var reporter = startReporter();
+        log.info("Started %d event loops", loops.size());
+        try {
+            loops.get(0).run();
+        } finally {
+            if (watchdog != null) {
+                watchdog.interrupt();
+            }
+            if (reporter != null) {
+                reporter.interrupt();
+            }
+            logReport();
+            for (int i = 1; i < loops.size(); i++) {
+                loops.get(i).stop();
+            }
+            for (var thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    log.warn("interrupted while joining %s", thread.getName());
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            asyncMessageQueue.stop();
+        }
+    }
+
+    public void stop() {  // thread-safe
+        loops.forEach(EventLoop::stop);
+    }
+
+    /**
+     * @return false while any loop is too full to take more received messages, since a message may be routed to any loop
+     */
+    public boolean canAcceptMessages() {  // thread-safe
+        for (var loop : loops) {
+            if (!loop.canAcceptMessages()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return occupancy of the fullest loop's queue, between 0 and 1
+     */
+    public double getQueueOccupancy() {  // thread-safe
+        double occupancy = 0;
+        for (var loop : loops) {
+            occupancy = Math.max(occupancy, loop.getQueueOccupancy());
+        }
+        return occupancy;
+    }
+
+    /**
+     * @return congestion of the most congested loop, between 0 and 1, see EventLoop.getCongestion()
+     */
+    public double getCongestion() {  // thread-safe
+        double congestion = 0;
+        for (var loop : loops) {
+            congestion = Math.max(congestion, loop.getCongestion());
+        }
+        return congestion;
+    }
+
+    /**
+     * @return latency histograms of every loop, one line per event type and plugin
+     */
+    public String report() {
+        var sb = new StringBuilder();
+        for (int i = 0; i < loops.size(); i++) {
+            sb.append("EventLoop_").append(i).append(":\n").append(loops.get(i).getTracer().report());
+        }
+        sb.append(asyncMessageQueue.getLimiter()).append('\n');
+        return sb.toString();
+    }
+
+    // null if the watchdog is disabled
+    private Thread startWatchdog() {
+        if (config.slowHandlerThresholdMs() == 0) {
+            return null;
+        }
+        var tracers = loops.stream().map(EventLoop::getTracer).toList();
+        var watchdog = new SlowHandlerWatchdog(log, tracers, config.slowHandlerThresholdMs(), config.dumpSlowHandlerStacks());
+        var thread = new Thread(watchdog, "EventLoop_Watchdog");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // null if only the final report is logged
+    private Thread startReporter() {
+        if (config.reportIntervalMs() == 0) {
+            return null;
+        }
+        var thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(config.reportIntervalMs());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                logReport();
+            }
+        }, "EventLoop_Reporter");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void logReport() {
+        log.info("Event loop latencies:\n%s", report());
+    }
+
+    // @VisibleForTesting
+    MessageListener getRouter() {
+        return router;
+    }
+
+    // a channel without subscribers still needs an owner, so that its messages are marked as received
+    private EventLoop defaultOwner(String channel) {
+        return loops.get(Math.floorMod(channel.hashCode(), loops.size()));
+    }
+
+    private final class Router implements MessageListener {
+        @Override
+        public void onSend(InternalMessage message) {  // thread-safe
+            defaultOwner(message.channel()).getMessageQueue().onSend(message);
+        }
+
+        @Override
+        public void onReceive(InternalMessage message) {  // thread-safe
+            // snapshot the owners first, plugins may subscribe concurrently
+            var owners = new int[loops.size()];
+            int count = 0;
+            for (int i = 0; i < registries.size(); i++) {
+                if (registries.get(i).hasSubscribers(message.channel())) {
+                    owners[count++] = i;
+                }
+            }
+            if (count == 0) {
+                defaultOwner(message.channel()).getMessageQueue().onReceive(message);
+                return;
+            }
+            if (count > 1 && config.partitionedChannels().contains(message.channel())) {
+                var partitionKey = message.dataKey().or(message::messageId).orElse(message.key().toString());
+                loops.get(owners[KeyHash.bucket(partitionKey, count)]).getMessageQueue().onReceive(message);
+                return;
+            }
+            if (count > 1) {
+                asyncMessageQueue.retain(message.key(), count - 1);  // every owning loop marks it received once
+            }
+            for (int i = 0; i < count; i++) {
+                loops.get(owners[i]).getMessageQueue().onReceive(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package za.engine.event;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Event loop queue with one lane (an EventRing) per event type and weighted round-robin scheduling
+ *
+ * Lanes are visited from the highest to the lowest weight. In every round a lane may yield up to `weight` events
+ * before the next lane gets its turn, so completions are handled ahead of new intake, which is handled ahead of
+ * sends, while no lane can be starved. Events without a type go to the lowest priority lane.
+ *
+ * offer() is thread-safe, everything else must be called from the consumer (event loop) thread,
+ * except for size() and depth() which may be read from anywhere.
+ */
+final class EventQueue {
+    private final EventRing[] lanes;  // indexed by Events.ordinal()
+    private final int[] weights;  // indexed by Events.ordinal()
+    private final int[] order;  // lane indexes by priority, highest first
+    private final int capacity;
+
+    // scheduling state, reader: consumer, writer: consumer
+    private final int[] credits;  // remaining credits of this round, indexed by position in `order`
+    private int cursor;  // position in `order`
+
+    EventQueue(int laneCapacity, Map<Events, Integer> laneWeights) {
+        var types = Events.values();
+        this.lanes = new EventRing[types.length];
+        this.weights = new int[types.length];
+        for (var type : types) {
+            int weight = laneWeights.getOrDefault(type, 1);
+            if (weight < 1) {
+                throw new IllegalArgumentException("Must have lane weight >= 1 for " + type);
+            }
+            lanes[type.ordinal()] = new EventRing(laneCapacity);
+            weights[type.ordinal()] = weight;
+        }
+        this.order = IntStream.range(0, types.length)
+            .boxed()
+            .sorted(Comparator.comparingInt((Integer lane) -> weights[lane]).reversed())  // stable, ties keep enum order
+            .mapToInt(Integer::intValue)
+            .toArray();
+        this.capacity = laneCapacity;
+        this.credits = new int[order.length];
+        refill();
+    }
+
+    /**
+     * Enqueues an event into its type's lane (non-blocking, thread-safe)
+     *
+     * @return false if the lane is full
+     */
+    boolean offer(Event e) {
+        return lanes[laneOf(e.type())].offer(e);
+    }
+
+    /**
+     * @return the lane of an event type, for producers that write a claimed slot in place
+     */
+    EventRing lane(Events type) {
+        return lanes[laneOf(type)];
+    }
+
+    /**
+     * Moves the next event according to lane priority and weights into `into` (consumer thread only)
+     *
+     * @return false if every lane is empty
+     */
+    boolean poll(Event into) {
+        int lane = selectLane();
+        if (lane < 0) {
+            return false;
+        }
+        credits[cursor]--;
+        return lanes[lane].poll(into);
+    }
+
+    /**
+     * Like poll(Event), but allocates the holder (consumer thread only)
+     *
+     * @return null if every lane is empty
+     */
+    Event poll() {
+        var into = new Event();
+        return poll(into) ? into : null;
+    }
+
+    /**
+     * Reads the event that poll() would return next (consumer thread only)
+     *
+     * @return the lane slot (only valid until the next poll), or null if every lane is empty
+     */
+    Event peek() {
+        int lane = selectLane();
+        return lane < 0 ? null : lanes[lane].peek();
+    }
+
+    boolean isEmpty() {
+        for (var lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        int size = 0;
+        for (var lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of queued events in the lane of the given event type
+     */
+    int depth(Events type) {
+        return lanes[laneOf(type)].size();
+    }
+
+    /**
+     * @return capacity of each lane
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return capacity of all lanes together
+     */
+    int totalCapacity() {
+        return capacity * lanes.length;
+    }
+
+    int weight(Events type) {
+        return weights[laneOf(type)];
+    }
+
+    private int laneOf(Events type) {
+        return type == null ? order[order.length - 1] : type.ordinal();
+    }
+
+    // moves the cursor to the next lane that has both events and credits, or returns -1 if all lanes are empty
+    private int selectLane() {
+        for (int visited = 0; visited <= order.length; visited++) {
+            int lane = order[cursor];
+            if (credits[cursor] > 0 && !lanes[lane].isEmpty()) {
+                return lane;
+            }
+            if (++cursor == order.length) {
+                cursor = 0;
+                refill();
+            }
+        }
+        return -1;
+    }
+
+    private void refill() {
+        for (int i = 0; i < order.length; i++) {
+            credits[i] = weights[order[i]];
+        }
+    }
+
+    @Override
+    public String toString() {
+        var depths = Arrays.stream(Events.values())
+            .map(type -> type + "=" + depth(type))
+            .toList();
+        return "EventQueue" + depths;
+    }
+}
@@ -0,0 +1,172 @@
+package za.engine.event;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of preallocated events
+ *
+ * Producers claim a sequence by advancing the tail with a CAS, write the payload into that sequence's slot,
+ * then publish it. The single consumer (the event loop thread) copies published slots out in order and never
+ * takes a lock. Slots are reused, so steady-state enqueueing and dequeueing do not allocate.
+ */
+final class EventRing {
+    // indexes into `sequences`, spaced apart so producers and the consumer do not share cache lines
+    private static final int TAIL = 16;  // next sequence to be claimed by a producer (writers: producers)
+    private static final int LIMIT = 32;  // cached tail limit, saves producers from reading HEAD on every offer
+    private static final int HEAD = 48;  // next sequence to be read by the consumer (writer: consumer)
+
+    private static final int MAX_SPINS = 128;
+
+    private final Event[] slots;
+    private final AtomicLongArray published;  // sequence + 1 of the last event published into each slot
+    private final AtomicLongArray sequences = new AtomicLongArray(64);
+    private final int mask;
+    private final int capacity;
+
+    EventRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Must have capacity >= 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;  // round up to a power of two, so indexes can be masked
+        }
+        this.slots = new Event[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Event();
+        }
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = capacity;
+        this.sequences.set(LIMIT, capacity);
+    }
+
+    /**
+     * Claims a slot for writing (non-blocking, thread-safe)
+     *
+     * The caller must write the slot (see slot()) and then publish() the sequence, without blocking in between.
+     *
+     * @return the claimed sequence, or -1 if the ring is full
+     */
+    long claim() {
+        long t;
+        do {
+            t = sequences.get(TAIL);
+            long limit = sequences.get(LIMIT);
+            if (t >= limit) {
+                limit = sequences.get(HEAD) + capacity;
+                if (t >= limit) {
+                    return -1;
+                }
+                sequences.lazySet(LIMIT, limit);  // racy, but any stale limit is still a safe (lower) limit
+            }
+        } while (!sequences.compareAndSet(TAIL, t, t + 1));
+        return t;
+    }
+
+    /**
+     * @return the slot of a claimed sequence
+     */
+    Event slot(long sequence) {
+        return slots[index(sequence)];
+    }
+
+    /**
+     * Makes a claimed and written slot visible to the consumer
+     */
+    void publish(long sequence) {
+        published.lazySet(index(sequence), sequence + 1);  // release, the slot's fields are written before this
+    }
+
+    /**
+     * Copies an event into the ring and stamps its enqueue time (non-blocking, thread-safe)
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(Event e) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return false;
+        }
+        var slot = slot(sequence);
+        slot.copyFrom(e);
+        slot.stamp(System.nanoTime());
+        publish(sequence);
+        return true;
+    }
+
+    /**
+     * Moves the oldest event into `into` and releases its slot (consumer thread only)
+     *
+     * @return false if the ring is empty
+     */
+    boolean poll(Event into) {
+        long h = sequences.get(HEAD);
+        if (!awaitPublished(h)) {
+            return false;
+        }
+        var slot = slots[index(h)];
+        into.copyFrom(slot);
+        slot.clear();
+        sequences.lazySet(HEAD, h + 1);  // release the slot only after it was cleared
+        return true;
+    }
+
+    /**
+     * Like poll(Event), but allocates the holder (consumer thread only)
+     *
+     * @return null if the ring is empty
+     */
+    Event poll() {
+        var into = new Event();
+        return poll(into) ? into : null;
+    }
+
+    /**
+     * Reads the oldest event without removing it (consumer thread only)
+     *
+     * @return the slot (only valid until the next poll), or null if the ring is empty
+     */
+    Event peek() {
+        long h = sequences.get(HEAD);
+        return awaitPublished(h) ? slots[index(h)] : null;
+    }
+
+    boolean isEmpty() {
+        return sequences.get(HEAD) == sequences.get(TAIL);
+    }
+
+    int size() {
+        long size = sequences.get(TAIL) - sequences.get(HEAD);  // may briefly include claimed but unpublished slots
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // false if nothing was claimed at this sequence, otherwise waits until the claimed slot is published
+    private boolean awaitPublished(long sequence) {
+        int i = index(sequence);
+        if (published.get(i) == sequence + 1) {
+            return true;
+        }
+        if (sequence == sequences.get(TAIL)) {
+            return false;
+        }
+        // a producer claimed this slot but has not published it yet; this window is a few instructions long,
+        // unless the producer was descheduled in between, so stop burning the core after a short spin
+        for (int spins = 0; published.get(i) != sequence + 1; spins++) {
+            if (spins < MAX_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+}
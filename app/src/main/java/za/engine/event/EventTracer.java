@@ -0,0 +1,144 @@
+package za.engine.event;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms of one event loop, and the state of the handler it is running right now
+ *
+ * Queue wait (enqueue to dispatch) and handler time are recorded per event type, handler time also per plugin.
+ * Events are attributed to the plugin that caused them: the sender of an mq message, or the owner of the http
+ * client that sent a request. Plugin callbacks that run inside another handler (e.g. message subscribers)
+ * report themselves through beginPluginCallback()/endPluginCallback().
+ *
+ * Recording is done by the event loop thread only, everything else may be read from any thread.
+ */
+public final class EventTracer {
+    private final LatencyHistogram[] queueWait;  // indexed by Events.ordinal()
+    private final LatencyHistogram[] handlerTime;  // indexed by Events.ordinal()
+    private final Map<String, LatencyHistogram> pluginHandlerTime = new ConcurrentHashMap<>();
+
+    // the running handler, read by the watchdog
+    private volatile Thread thread;
+    private final AtomicLong handlerSequence = new AtomicLong();  // incremented once per dispatch
+    private final AtomicLong handlerStartNanos = new AtomicLong();  // 0 while idle, published after the fields below
+    private Events handlerType;  // reader: watchdog (racy), writer: loop
+    private String handlerOwner;  // reader: watchdog (racy), writer: loop
+
+    public EventTracer() {
+        var types = Events.values();
+        this.queueWait = new LatencyHistogram[types.length];
+        this.handlerTime = new LatencyHistogram[types.length];
+        for (var type : types) {
+            queueWait[type.ordinal()] = new LatencyHistogram();
+            handlerTime[type.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram queueWait(Events type) {
+        return queueWait[type.ordinal()];
+    }
+
+    public LatencyHistogram handlerTime(Events type) {
+        return handlerTime[type.ordinal()];
+    }
+
+    /**
+     * @return null if no handler of the plugin has run yet
+     */
+    public LatencyHistogram pluginHandlerTime(String pluginId) {
+        return pluginHandlerTime.get(pluginId);
+    }
+
+    public Map<String, LatencyHistogram> pluginHandlerTimes() {
+        return Collections.unmodifiableMap(pluginHandlerTime);
+    }
+
+    /**
+     * Called by a plugin callback that runs inside the current handler
+     *
+     * @return start timestamp for endPluginCallback()
+     */
+    public long beginPluginCallback(String pluginId) {  // loop thread only
+        handlerOwner = pluginId;
+        return System.nanoTime();
+    }
+
+    public void endPluginCallback(String pluginId, long startNanos) {  // loop thread only
+        plugin(pluginId).record(System.nanoTime() - startNanos);
+        handlerOwner = null;
+    }
+
+    void bind(Thread thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * @param enqueuedNanos System.nanoTime() when the event was queued, 0 if unknown
+     * @return start timestamp for endHandler()
+     */
+    long beginHandler(Events type, String owner, long enqueuedNanos) {  // loop thread only
+        long now = System.nanoTime();
+        if (enqueuedNanos != 0) {
+            queueWait[type.ordinal()].record(now - enqueuedNanos);
+        }
+        handlerType = type;
+        handlerOwner = owner;
+        handlerSequence.lazySet(handlerSequence.get() + 1);
+        handlerStartNanos.lazySet(now);  // release, publishes the fields above to the watchdog
+        return now;
+    }
+
+    void endHandler(Events type, String owner, long startNanos) {  // loop thread only
+        long nanos = System.nanoTime() - startNanos;
+        handlerStartNanos.lazySet(0);
+        handlerTime[type.ordinal()].record(nanos);
+        if (owner != null) {
+            plugin(owner).record(nanos);
+        }
+    }
+
+    Thread thread() {
+        return thread;
+    }
+
+    long handlerSequence() {
+        return handlerSequence.get();
+    }
+
+    /**
+     * @return System.nanoTime() when the running handler started, or 0 if the loop is between handlers
+     */
+    long handlerStartNanos() {
+        return handlerStartNanos.get();
+    }
+
+    String describeHandler() {
+        var owner = handlerOwner;
+        return owner == null ? String.valueOf(handlerType) : handlerType + " of plugin " + owner;
+    }
+
+    private LatencyHistogram plugin(String pluginId) {
+        var histogram = pluginHandlerTime.get(pluginId);  // the common case does not allocate a lambda
+        return histogram != null ? histogram : pluginHandlerTime.computeIfAbsent(pluginId, _k -> new LatencyHistogram());
+    }
+
+    /**
+     * @return one line per event type and plugin that has recorded anything
+     */
+    public String report() {
+        var sb = new StringBuilder();
+        for (var type : Events.values()) {
+            if (queueWait(type).count() > 0 || handlerTime(type).count() > 0) {
+                sb.append(type).append(" queue wait: ").append(queueWait(type))
+                    .append(", handler: ").append(handlerTime(type)).append('\n');
+            }
+        }
+        new TreeMap<>(pluginHandlerTime).forEach((pluginId, histogram) ->
+            sb.append("plugin ").append(pluginId).append(" handler: ").append(histogram).append('\n'));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package za.engine.event;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import za.engine.InternalMessage;
+import za.engine.mq.MessageClient;
+
+/**
+ * Received messages that are not settled with the broker yet, keyed by InternalMessage.key
+ *
+ * Event loops complete messages in any order. The receiving thread settles them in delivery order: completed
+ * messages at the head of the table are acknowledged together with one multiple-ack once enough of them
+ * accumulated (or they waited long enough), failed messages are settled one by one by the FailureHandler, which
+ * requeues them unless told otherwise.
+ */
+final class InFlightTable {
+    public static final int ACK_BATCH_SIZE = 64;
+    public static final long ACK_INTERVAL_MS = 100;  // max time a completed message waits for its ack
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+
+    /**
+     * Settles a failed message with the acknowledger, on the receiving thread
+     */
+    interface FailureHandler {
+        /**
+         * @param failure why the message failed, from complete()
+         */
+        void onFailed(InternalMessage message, String failure, long deliveryTag, MessageClient.Acknowledger acknowledger)
+            throws IOException;
+    }
+
+    static final FailureHandler REQUEUE = (message, failure, deliveryTag, acknowledger) -> acknowledger.nack(deliveryTag, false, true);
+    static final String UNKNOWN_FAILURE = "Failed to handle message";
+
+    private final FailureHandler failureHandler;
+    private final Map<UUID, Entry> byKey = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> byDeliveryTag = new ArrayDeque<>();  // reader: receiving thread, writer: receiving thread
+    private final long ackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(ACK_INTERVAL_MS);
+
+    // completed but unacknowledged messages, reader: receiving thread, writer: receiving thread
+    private long unackedTag = -1;  // highest
+    private int unackedCount = 0;
+    private long firstUnackedNanos = 0;
+
+    private static final class Entry {
+        private final long deliveryTag;
+        private final InternalMessage message;  // null if not needed by the failure handler
+        private final long receivedNanos = System.nanoTime();
+        private final AtomicInteger pendingReceives = new AtomicInteger(1);
+        private volatile String failure;  // null unless a complete() failed
+        private volatile int outcome = PENDING;
+
+        private Entry(long deliveryTag, InternalMessage message) {
+            this.deliveryTag = deliveryTag;
+            this.message = message;
+        }
+    }
+
+    InFlightTable() {
+        this(REQUEUE);
+    }
+
+    InFlightTable(FailureHandler failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    void add(UUID key, long deliveryTag) {  // receiving thread only
+        add(key, deliveryTag, null);
+    }
+
+    void add(UUID key, long deliveryTag, InternalMessage message) {  // receiving thread only
+        var entry = new Entry(deliveryTag, message);
+        byKey.put(key, entry);
+        byDeliveryTag.addLast(entry);
+    }
+
+    /**
+     * Expect additional complete() calls for a message
+     */
+    void retain(UUID key, int extraReceives) {  // thread-safe
+        var entry = key == null ? null : byKey.get(key);
+        if (entry != null) {
+            entry.pendingReceives.addAndGet(extraReceives);
+        }
+    }
+
+    /**
+     * @param success false if the message should be redelivered
+     * @return System.nanoTime() when the message was received, or -1 if it is unknown or still pending elsewhere
+     */
+    long complete(UUID key, boolean success) {  // thread-safe
+        return complete(key, success ? null : UNKNOWN_FAILURE);
+    }
+
+    /**
+     * @param failure why the message failed and should be redelivered, null on success
+     * @return System.nanoTime() when the message was received, or -1 if it is unknown or still pending elsewhere
+     */
+    long complete(UUID key, String failure) {  // thread-safe
+        var entry = key == null ? null : byKey.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        if (failure != null) {
+            entry.failure = failure;
+        }
+        if (entry.pendingReceives.decrementAndGet() > 0) {
+            return -1;
+        }
+        byKey.remove(key);
+        entry.outcome = entry.failure != null ? FAILED : SUCCEEDED;  // publishes the outcome to the receiving thread
+        return entry.receivedNanos;
+    }
+
+    int size() {  // thread-safe
+        return byKey.size();
+    }
+
+    /**
+     * Acknowledges or requeues the completed messages at the head of the table
+     */
+    void settle(MessageClient.Acknowledger acknowledger, long nowNanos) throws IOException {  // receiving thread only
+        Entry head;
+        while ((head = byDeliveryTag.peekFirst()) != null && head.outcome != PENDING) {
+            byDeliveryTag.pollFirst();
+            if (head.outcome == SUCCEEDED) {
+                if (unackedCount++ == 0) {
+                    firstUnackedNanos = nowNanos;
+                }
+                unackedTag = head.deliveryTag;
+            } else {
+                flushAcks(acknowledger);  // a multiple-ack after the nack would not cover the earlier messages
+                failureHandler.onFailed(head.message, head.failure, head.deliveryTag, acknowledger);
+            }
+        }
+        if (unackedCount >= ACK_BATCH_SIZE || (unackedCount > 0 && nowNanos - firstUnackedNanos >= ackIntervalNanos)) {
+            flushAcks(acknowledger);
+        }
+    }
+
+    /**
+     * Acknowledges every completed message right away, e.g. before the receiving channel closes
+     */
+    void flush(MessageClient.Acknowledger acknowledger) throws IOException {  // receiving thread only
+        settle(acknowledger, System.nanoTime());
+        flushAcks(acknowledger);
+    }
+
+    private void flushAcks(MessageClient.Acknowledger acknowledger) throws IOException {
+        if (unackedCount > 0) {
+            acknowledger.ack(unackedTag, true);
+            unackedCount = 0;
+        }
+    }
+}
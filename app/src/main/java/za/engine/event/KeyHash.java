@@ -0,0 +1,38 @@
+package za.engine.event;
+
+/**
+ * Stable hashes of routing keys (message ids, data keys), the same on every node and every run
+ */
+final class KeyHash {
+    private KeyHash() {}
+
+    /**
+     * @return 64-bit FNV-1a hash of the key's chars
+     */
+    static long fnv1a(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): going from n to n + 1 buckets only moves 1 / (n + 1) of the keys,
+     * all of them to the new bucket
+     *
+     * @return bucket of the key, 0 <= bucket < buckets
+     */
+    static int bucket(String key, int buckets) {
+        long hash = fnv1a(key);
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            hash = hash * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((hash >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
@@ -0,0 +1,94 @@
+package za.engine.event;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with power-of-two buckets
+ *
+ * Bucket i counts durations in [2^(i-1), 2^i), so percentiles are upper bounds within a factor of two, which is
+ * enough to tell a 50us handler from a 50ms one. Recording does not allocate.
+ *
+ * record() has a single writer (the event loop thread), everything else may be read from any thread.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {  // single writer
+        if (nanos < 0) {
+            nanos = 0;  // nanoTime() is monotonic per JVM, but timestamps may come from another thread's clock read
+        }
+        int bucket = BUCKETS - Long.numberOfLeadingZeros(nanos);  // 0 for 0ns
+        if (bucket == BUCKETS) {
+            bucket = BUCKETS - 1;
+        }
+        // lazySet is enough with a single writer, readers only need to see increments eventually
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        count.lazySet(count.get() + 1);
+        totalNanos.lazySet(totalNanos.get() + nanos);
+        if (nanos > maxNanos.get()) {
+            maxNanos.lazySet(nanos);
+        }
+    }
+
+    public long count() {  // thread-safe
+        return count.get();
+    }
+
+    public long maxNanos() {  // thread-safe
+        return maxNanos.get();
+    }
+
+    public long meanNanos() {  // thread-safe
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return an upper bound of the duration below which `quantile` of the recorded durations fall
+     */
+    public long percentileNanos(double quantile) {  // thread-safe
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Must have 0 <= quantile <= 1");
+        }
+        long n = 0;
+        var snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min(upperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dus p50<=%dus p99<=%dus max=%dus",
+            count(),
+            TimeUnit.NANOSECONDS.toMicros(meanNanos()),
+            TimeUnit.NANOSECONDS.toMicros(percentileNanos(0.5)),
+            TimeUnit.NANOSECONDS.toMicros(percentileNanos(0.99)),
+            TimeUnit.NANOSECONDS.toMicros(maxNanos()));
+    }
+}
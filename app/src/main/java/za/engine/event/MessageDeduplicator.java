@@ -0,0 +1,97 @@
+package za.engine.event;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import za.engine.InternalMessage;
+
+/**
+ * Remembers the 64-bit hashes of recently received message ids, to drop redelivered and re-published duplicates
+ *
+ * Hashes are kept in two generations, the current one and the one before. The current generation becomes the
+ * previous one once it is a window old or holds half of the capacity, so an id is remembered for at least one
+ * window (unless the capacity is reached first) and at most two, and at most capacity hashes are kept.
+ *
+ * Messages of the data key channels are told apart by their data key instead, e.g. to fetch every URL of a
+ * crawl only once per window. The data key comes from the frame, the body is not decoded for it.
+ */
+final class MessageDeduplicator {
+    private final long windowNanos;
+    private final int generationCapacity;
+    private final ChannelSet dataKeyChannels;
+
+    // guarded by this
+    private Set<Long> current = new HashSet<>();
+    private Set<Long> previous = new HashSet<>();
+    private long currentSinceNanos;
+
+    /**
+     * @param windowMs how long a message id is remembered at least
+     * @param capacity max number of remembered message ids
+     */
+    MessageDeduplicator(long windowMs, int capacity) {
+        this(windowMs, capacity, ChannelSet.none());
+    }
+
+    /**
+     * @param dataKeyChannels channels whose messages are deduplicated by their data key
+     */
+    MessageDeduplicator(long windowMs, int capacity, ChannelSet dataKeyChannels) {
+        if (windowMs < 1) {
+            throw new IllegalArgumentException("Must have windowMs >= 1");
+        }
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Must have capacity >= 2");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.generationCapacity = capacity / 2;
+        this.dataKeyChannels = dataKeyChannels;
+        this.currentSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * Remembers the hash unless it is remembered already
+     *
+     * @return false if the hash was seen within the window, i.e. the message is a duplicate
+     */
+    synchronized boolean firstSeen(long hash, long nowNanos) {
+        if (nowNanos - currentSinceNanos >= windowNanos || current.size() >= generationCapacity) {
+            var recycled = previous;
+            recycled.clear();
+            previous = current;
+            current = recycled;
+            currentSinceNanos = nowNanos;
+        }
+        if (previous.contains(hash)) {
+            return false;
+        }
+        return current.add(hash);
+    }
+
+    /**
+     * Forgets a hash, e.g. because its message failed and will be delivered again
+     */
+    synchronized void forget(long hash) {
+        current.remove(hash);
+        previous.remove(hash);
+    }
+
+    /**
+     * @return hash of what tells a received message apart from others, null if nothing does
+     */
+    Long hash(InternalMessage message) {  // thread-safe
+        if (message.dataKey().isPresent() && dataKeyChannels.contains(message.channel())) {
+            // per channel, and apart from message ids
+            return KeyHash.fnv1a("dk:" + message.channel() + ":" + message.dataKey().get());
+        }
+        return message.messageId().map(MessageDeduplicator::hash).orElse(null);
+    }
+
+    /**
+     * @return 64-bit hash of the message id
+     */
+    static long hash(String messageId) {
+        return KeyHash.fnv1a(messageId);
+    }
+}
@@ -0,0 +1,152 @@
+package za.engine.event;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import za.engine.ChannelPattern;
+
+/**
+ * Routing table from plugin channels to mq queues
+ *
+ * A message goes to the first route that matches its context and channel. A route with several partitions
+ * spreads its channels over the queues <queueName>.0 ... <queueName>.<partitions - 1> by a consistent hash of
+ * the message's data key (or its id if it has none), so a hot channel can get several queues (and consumers) of
+ * its own, while messages with the same data key (e.g. URLs of one host) stay in one queue. Adding a partition
+ * only moves the keys that go to the new one. Each engine node subscribes to any subset of the routed queues.
+ *
+ * A context without a catch-all route ('*') gets the one of DEFAULT_SPEC appended, so every message has a route.
+ *
+ * spec format: in:crawl.*=za.crawl/4,in:*=za.i,out:*=za.o
+ */
+public final class MessageRouting {
+    public static final String DEFAULT_SPEC = "in:*=za.i,out:*=za.o";
+
+    private static final Pattern ROUTE_SPEC = Pattern.compile("(\\w+):([^=]+)=([^/]+)(?:/(\\d+))?");
+    private static final List<Route> DEFAULT_ROUTES = parseRoutes(DEFAULT_SPEC);
+
+    private final List<Route> routes;
+    private final Map<String, Route> byChannel = new ConcurrentHashMap<>();  // context + ':' + channel, caches route()
+
+    /**
+     * @param context message context the route applies to, "in" or "out"
+     * @param channelPattern plugin channels the route applies to
+     * @param queueName mq queue, or prefix of the partition queues
+     * @param partitions number of queues the matching channels are spread over, 1 for the queue itself
+     */
+    public record Route(String context, ChannelPattern channelPattern, String queueName, int partitions) {
+        public Route {
+            if (!context.equals("in") && !context.equals("out")) {
+                throw new IllegalArgumentException("Invalid context " + context);
+            }
+            if (channelPattern == null || queueName.isEmpty()) {
+                throw new IllegalArgumentException("Must have a channelPattern and a queueName");
+            }
+            if (partitions < 1) {
+                throw new IllegalArgumentException("Must have partitions >= 1");
+            }
+        }
+
+        /**
+         * @return every queue of this route
+         */
+        public List<String> queueNames() {
+            if (partitions == 1) {
+                return List.of(queueName);
+            }
+            var names = new ArrayList<String>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                names.add(partitionQueueName(i));
+            }
+            return names;
+        }
+
+        private String partitionQueueName(int partition) {
+            return queueName + "." + partition;
+        }
+
+        private boolean matches(String context, String channel) {
+            return this.context.equals(context) && channelPattern.matches(channel);
+        }
+    }
+
+    public MessageRouting(List<Route> routes) {
+        var all = new ArrayList<>(routes);
+        for (var fallback : DEFAULT_ROUTES) {
+            if (routes.stream().noneMatch(route -> route.context().equals(fallback.context()) && route.channelPattern().isCatchAll())) {
+                all.add(fallback);
+            }
+        }
+        this.routes = List.copyOf(all);
+    }
+
+    public static MessageRouting defaults() {
+        return parse(DEFAULT_SPEC);
+    }
+
+    public static MessageRouting parse(String spec) {
+        return new MessageRouting(parseRoutes(spec));
+    }
+
+    private static List<Route> parseRoutes(String spec) {
+        var routes = new ArrayList<Route>();
+        for (var entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            var matcher = ROUTE_SPEC.matcher(entry.trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Expected routes like: " + DEFAULT_SPEC + " but got " + entry);
+            }
+            int partitions = matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4));
+            routes.add(new Route(matcher.group(1), new ChannelPattern(matcher.group(2)), matcher.group(3), partitions));
+        }
+        return routes;
+    }
+
+    public List<Route> routes() {
+        return routes;
+    }
+
+    /**
+     * @param partitionKey picks the partition, the data key or message id
+     * @return the queue that messages of this context and channel are sent to
+     */
+    public String queueName(String context, String channel, String partitionKey) {  // thread-safe
+        var route = byChannel.computeIfAbsent(context + ':' + channel, key -> route(context, channel));
+        if (route.partitions() == 1) {
+            return route.queueName();
+        }
+        return route.partitionQueueName(KeyHash.bucket(partitionKey, route.partitions()));
+    }
+
+    /**
+     * @return every queue that messages of this context are routed to, e.g. to subscribe to all "in" queues
+     */
+    public List<String> queueNames(String context) {
+        var names = new LinkedHashSet<String>();
+        for (var route : routes) {
+            if (route.context().equals(context)) {
+                names.addAll(route.queueNames());
+            }
+        }
+        return List.copyOf(names);
+    }
+
+    private Route route(String context, String channel) {
+        for (var route : routes) {
+            if (route.matches(context, channel)) {
+                return route;
+            }
+        }
+        throw new IllegalStateException("Must have a catch-all route for context " + context + ", no route for channel " + channel);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageRouting" + routes;
+    }
+}
@@ -0,0 +1,187 @@
+package za.engine.event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import za.engine.MessageUtils;
+import za.engine.mq.MessageClient;
+
+/**
+ * Append-only file of outgoing messages that could not be kept in memory or sent, drained in order
+ *
+ * Records are appended at the end of the spool file, and the sender reads them from the committed read offset.
+ * The offset is persisted next to the spool after every committed chunk, so messages that were spooled but not
+ * sent when the engine stopped are sent by the next run (chunks that were sent but not committed are sent again).
+ * Once everything was read and committed, the file is truncated, so it only grows while the broker lags behind.
+ *
+ * record format: <int payload length><int length><queue name><int length><message id><int length><message>
+ * <headers><long delay ms>, see MessageUtils.encodeHeaders(); the delay of a spooled message starts once it is sent
+ */
+final class MessageSpool implements Closeable {
+    public static final String SPOOL_FILE_NAME = "outbound.spool";
+    public static final String OFFSET_FILE_NAME = "outbound.offset";
+
+    private final FileChannel file;
+    private final FileLock lock;  // one engine per spool directory
+    private final Path offsetPath;
+    private long readOffset;  // start of the oldest unsent record
+    private long endOffset;  // end of the newest complete record
+
+    /**
+     * A chunk of spooled messages, commit() it once they were sent
+     */
+    record Chunk(List<MessageClient.Outgoing> messages, long endOffset) {}
+
+    MessageSpool(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.file = FileChannel.open(directory.resolve(SPOOL_FILE_NAME),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = file.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;  // locked by this process
+        }
+        this.lock = lock;
+        if (lock == null) {
+            file.close();
+            throw new IllegalStateException("Spool directory is used by another engine: " + directory);
+        }
+        this.offsetPath = directory.resolve(OFFSET_FILE_NAME);
+        this.readOffset = Files.exists(offsetPath) ? Long.parseLong(Files.readString(offsetPath).trim()) : 0;
+        this.endOffset = recover();
+    }
+
+    synchronized void append(MessageClient.Outgoing message) throws IOException {  // thread-safe
+        var queueName = message.queueName().getBytes(StandardCharsets.UTF_8);
+        var messageId = message.messageId().getBytes(StandardCharsets.UTF_8);
+        var body = message.message();
+        var headers = MessageUtils.encodeHeaders(message.headers());
+        int payload = 12 + queueName.length + messageId.length + body.length + headers.length + 8;
+        var buf = ByteBuffer.allocate(4 + payload);
+        buf.putInt(payload);
+        buf.putInt(queueName.length).put(queueName);
+        buf.putInt(messageId.length).put(messageId);
+        buf.putInt(body.length).put(body);
+        buf.put(headers);
+        buf.putLong(message.delayMs());
+        buf.flip();
+        long position = endOffset;
+        while (buf.hasRemaining()) {
+            position += file.write(buf, position);
+        }
+        endOffset = position;
+    }
+
+    /**
+     * Reads the oldest unsent messages, without removing them
+     *
+     * @param maxBytes the chunk ends before the record that would exceed this, but holds at least one record
+     */
+    synchronized Chunk read(int maxMessages, long maxBytes) throws IOException {  // thread-safe
+        var messages = new ArrayList<MessageClient.Outgoing>();
+        long position = readOffset;
+        while (position < endOffset && messages.size() < maxMessages) {
+            int payload = readInt(position);
+            if (!messages.isEmpty() && position + 4 + payload - readOffset > maxBytes) {
+                break;
+            }
+            var buf = ByteBuffer.allocate(payload);
+            readFully(buf, position + 4);
+            buf.flip();
+            messages.add(new MessageClient.Outgoing(readString(buf), readString(buf), readBytes(buf), null,
+                MessageUtils.decodeHeaders(buf), buf.getLong()));
+            position += 4 + payload;
+        }
+        return new Chunk(messages, position);
+    }
+
+    /**
+     * Marks a chunk as sent, and truncates the spool once everything was sent
+     */
+    synchronized void commit(Chunk chunk) throws IOException {  // thread-safe
+        readOffset = chunk.endOffset();
+        if (readOffset == endOffset) {
+            file.truncate(0);
+            readOffset = 0;
+            endOffset = 0;
+        }
+        var tmp = offsetPath.resolveSibling(OFFSET_FILE_NAME + ".tmp");
+        Files.writeString(tmp, Long.toString(readOffset));
+        Files.move(tmp, offsetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized boolean isEmpty() {  // thread-safe
+        return readOffset == endOffset;
+    }
+
+    /**
+     * @return bytes of spooled and unsent messages
+     */
+    synchronized long size() {  // thread-safe
+        return endOffset - readOffset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.force(true);
+        lock.release();
+        file.close();
+    }
+
+    // finds the end of the last complete record, and drops a partial record that a crash left behind
+    private long recover() throws IOException {
+        long size = file.size();
+        if (readOffset > size) {
+            readOffset = 0;
+        }
+        long position = readOffset;
+        while (position + 4 <= size) {
+            long next = position + 4 + readInt(position);
+            if (next > size) {
+                break;
+            }
+            position = next;
+        }
+        if (position < size) {
+            file.truncate(position);
+        }
+        return position;
+    }
+
+    private int readInt(long position) throws IOException {
+        var buf = ByteBuffer.allocate(4);
+        readFully(buf, position);
+        return buf.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = file.read(buf, position + buf.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool at " + (position + buf.position()));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        return new String(readBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        var bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,23 @@
+package za.engine.event;
+
+/**
+ * What EventLoop.submit() does when a plugin-initiated event (http or mq send) finds its lane full
+ *
+ * Completions and received messages always block, they already hold work that cannot be dropped.
+ *
+ * The loop's own thread (e.g. a plugin that sends from a callback) can not wait for itself to make room. With BLOCK
+ * its events are spilled and dispatched after the lanes instead, http completions without a bound, anything else
+ * up to one lane capacity before it is rejected.
+ *
+ * A full lane is not the same as a full send queue: message sends the message queue can not take while the broker
+ * is down are held by the loop and the receiver pauses, see EventLoop.handleMessageQueueSend().
+ */
+public enum OverflowPolicy {
+    /** wait for room, up to EventLoopConfig.blockTimeoutMs, then reject (spills on the loop's own thread) */
+    BLOCK,
+    /** discard the event and count it, see EventLoop.getDroppedEvents() */
+    DROP,
+    /** throw an IllegalStateException */
+    REJECT,
+    ;
+}
@@ -0,0 +1,90 @@
+package za.engine.event;
+
+import java.util.function.Supplier;
+
+/**
+ * Adaptive limit of in-flight received messages (additive increase, multiplicative decrease)
+ *
+ * Every completed message reports its latency (receive to dispatch). While latencies stay near the lowest
+ * recently seen latency and the event loops are not congested, a limit that is actually in use grows by about
+ * one message per round trip. When latency more than doubles or the event queues or http backlogs fill up (the
+ * latency of a message that only starts http requests does not show their cost), the limit shrinks by 10%,
+ * at most once per round trip. Cheap messages therefore end up with a high limit, while messages that cause a
+ * lot of work per message end up with a low one.
+ */
+public final class ReceiveLimiter {
+    public static final double BACKOFF_RATIO = 0.9;  // multiplicative decrease
+    public static final double LATENCY_TOLERANCE = 2.0;  // latencies above baseline * tolerance mean congestion
+    public static final double CONGESTED_OCCUPANCY = 0.5;  // event queue or http backlog occupancy that means congestion
+    private static final int BASELINE_DRIFT_SHIFT = 6;  // the baseline moves 1/64 of the way to slower latencies
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Supplier<Double> queueOccupancy;
+
+    // guarded by this
+    private double limit;
+    private long baselineNanos = Long.MAX_VALUE;  // lowest recent latency, drifts up so it follows the workload
+    private long lastDecreaseNanos;
+
+    private volatile int currentLimit;
+
+    /**
+     * @param queueOccupancy occupancy of the receiving event queues or http backlogs, between 0 and 1
+     */
+    public ReceiveLimiter(int initialLimit, int minLimit, int maxLimit, Supplier<Double> queueOccupancy) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Must have 1 <= minLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueOccupancy = queueOccupancy;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.currentLimit = (int) limit;
+    }
+
+    /**
+     * @return max number of in-flight messages right now
+     */
+    public int limit() {  // thread-safe
+        return currentLimit;
+    }
+
+    public int minLimit() {
+        return minLimit;
+    }
+
+    public int maxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @param latencyNanos time from receiving the message to its dispatch
+     * @param inFlight number of in-flight messages when this one completed
+     */
+    public synchronized void onComplete(long latencyNanos, int inFlight, long nowNanos) {  // thread-safe
+        if (latencyNanos < baselineNanos) {
+            baselineNanos = Math.max(1, latencyNanos);
+        } else {
+            baselineNanos += (latencyNanos - baselineNanos) >> BASELINE_DRIFT_SHIFT;
+        }
+        boolean congested = queueOccupancy.get() > CONGESTED_OCCUPANCY
+            || latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+        if (congested) {
+            // one congestion episode affects every message in flight, so only back off once per round trip
+            if (nowNanos - lastDecreaseNanos >= latencyNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = nowNanos;
+            }
+        } else if (inFlight >= limit / 2) {  // do not grow a limit that is not used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        currentLimit = (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ReceiveLimiter{limit=%.2f, min=%d, max=%d, baseline=%dus}",
+            limit, minLimit, maxLimit, baselineNanos == Long.MAX_VALUE ? -1 : baselineNanos / 1000);
+    }
+}
@@ -0,0 +1,44 @@
+package za.engine.event;
+
+/**
+ * How received messages whose handling failed are retried
+ *
+ * A failed message is published again with a delay that doubles with every failed attempt, instead of being
+ * requeued and redelivered at once. Once maxAttempts deliveries failed, the message is published to the dead-letter
+ * queue of its queue (see DeadLetters), from where it can be replayed.
+ *
+ * @param maxAttempts deliveries of a message before it is given up, at least 1
+ * @param initialBackoffMs delay before the second delivery
+ * @param maxBackoffMs bounds the delay, at most the broker's max delay (one day)
+ */
+public record RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs) {
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10 * 60 * 1000;
+    public static final long MAX_BACKOFF_MS = 24 * 60 * 60 * 1000;
+
+    public RetryPolicy {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Must have maxAttempts >= 1");
+        }
+        if (initialBackoffMs < 1 || maxBackoffMs < initialBackoffMs || maxBackoffMs > MAX_BACKOFF_MS) {
+            throw new IllegalArgumentException("Must have 1 <= initialBackoffMs <= maxBackoffMs <= " + MAX_BACKOFF_MS);
+        }
+    }
+
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param failedAttempts deliveries that failed so far, at least 1
+     * @return delay before the next delivery
+     */
+    public long backoffMs(int failedAttempts) {
+        int doublings = failedAttempts - 1;
+        if (doublings >= Long.numberOfLeadingZeros(initialBackoffMs) - 1) {
+            return maxBackoffMs;  // would overflow
+        }
+        return Math.min(initialBackoffMs << doublings, maxBackoffMs);
+    }
+}
@@ -0,0 +1,74 @@
+package za.engine.event;
+
+import java.nio.file.Path;
+
+import za.engine.MessageUtils;
+import za.engine.codec.MessageCodecs;
+
+/**
+ * When AsyncMessageQueue flushes its outgoing batch: as soon as it is full, or once its oldest message has
+ * waited for the linger time, whichever comes first
+ *
+ * A short linger keeps latency low under light load, while heavy load fills batches before the linger expires.
+ *
+ * @param batchBytes flush once the batch holds this many (serialized) bytes
+ * @param batchMessages flush once the batch holds this many messages
+ * @param lingerMs max time the first unsent message waits for the batch to fill, 0 flushes every message at once
+ * @param spoolDirectory where messages overflow to while the batch is full or the broker is unreachable,
+ *                       null to keep them in memory only (and fail once SEND_CAPACITY is reached)
+ * @param wireVersion frame version messages are encoded with, see MessageUtils; receivers decode either, but
+ *                    nodes from before version 2 only read version 1
+ * @param codecs codec the body of a message is encoded with, by channel; the codec travels with the message
+ */
+public record SendPolicy(int batchBytes, int batchMessages, long lingerMs, Path spoolDirectory, int wireVersion,
+        MessageCodecs codecs) {
+    public static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+    public static final int DEFAULT_BATCH_MESSAGES = AsyncMessageQueue.SEND_LIMIT;
+    public static final long DEFAULT_LINGER_MS = 5;
+
+    public SendPolicy {
+        if (batchBytes < 1) {
+            throw new IllegalArgumentException("Must have batchBytes >= 1");
+        }
+        if (batchMessages < 1 || batchMessages > AsyncMessageQueue.SEND_CAPACITY) {
+            throw new IllegalArgumentException("Must have 1 <= batchMessages <= " + AsyncMessageQueue.SEND_CAPACITY);
+        }
+        if (lingerMs < 0) {
+            throw new IllegalArgumentException("Must have lingerMs >= 0");
+        }
+        if (wireVersion != MessageUtils.WIRE_V1 && wireVersion != MessageUtils.WIRE_V2) {
+            throw new IllegalArgumentException("Must have wireVersion " + MessageUtils.WIRE_V1 + " or " + MessageUtils.WIRE_V2);
+        }
+        if (codecs == null) {
+            throw new IllegalArgumentException("Must have codecs");
+        }
+    }
+
+    public SendPolicy(int batchBytes, int batchMessages, long lingerMs) {
+        this(batchBytes, batchMessages, lingerMs, null);
+    }
+
+    public SendPolicy(int batchBytes, int batchMessages, long lingerMs, Path spoolDirectory) {
+        this(batchBytes, batchMessages, lingerMs, spoolDirectory, MessageUtils.WIRE_V1);
+    }
+
+    public SendPolicy(int batchBytes, int batchMessages, long lingerMs, Path spoolDirectory, int wireVersion) {
+        this(batchBytes, batchMessages, lingerMs, spoolDirectory, wireVersion, MessageCodecs.defaults());
+    }
+
+    public SendPolicy withSpoolDirectory(Path spoolDirectory) {
+        return new SendPolicy(batchBytes, batchMessages, lingerMs, spoolDirectory, wireVersion, codecs);
+    }
+
+    public SendPolicy withWireVersion(int wireVersion) {
+        return new SendPolicy(batchBytes, batchMessages, lingerMs, spoolDirectory, wireVersion, codecs);
+    }
+
+    public SendPolicy withCodecs(MessageCodecs codecs) {
+        return new SendPolicy(batchBytes, batchMessages, lingerMs, spoolDirectory, wireVersion, codecs);
+    }
+
+    public static SendPolicy defaults() {
+        return new SendPolicy(DEFAULT_BATCH_BYTES, DEFAULT_BATCH_MESSAGES, DEFAULT_LINGER_MS);
+    }
+}
@@ -0,0 +1,81 @@
+package za.engine.event;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import za.lib.Logger;
+
+/**
+ * Flags event loop handlers (including plugin callbacks) that run for longer than a threshold
+ *
+ * A slow handler stalls every other event of its loop. Each slow dispatch is logged once, optionally with the
+ * stack of the loop thread, which shows where the handler is stuck.
+ */
+public final class SlowHandlerWatchdog implements Runnable {
+    private final Logger log;
+    private final List<EventTracer> tracers;
+    private final long thresholdNanos;
+    private final boolean dumpStacks;
+    private final long[] lastFlagged;  // handler sequence flagged last, per tracer, reader: this, writer: this
+    private final AtomicLong slowHandlers = new AtomicLong();
+
+    public SlowHandlerWatchdog(Logger log, List<EventTracer> tracers, long thresholdMs, boolean dumpStacks) {
+        if (thresholdMs < 1) {
+            throw new IllegalArgumentException("Must have thresholdMs >= 1");
+        }
+        this.log = log;
+        this.tracers = List.copyOf(tracers);
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        this.dumpStacks = dumpStacks;
+        this.lastFlagged = new long[tracers.size()];
+    }
+
+    @Override
+    public void run() {
+        long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 4);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            check(System.nanoTime());
+        }
+    }
+
+    /**
+     * @return number of slow handlers that were flagged by this check
+     */
+    // @VisibleForTesting
+    int check(long nowNanos) {
+        int flagged = 0;
+        for (int i = 0; i < tracers.size(); i++) {
+            var tracer = tracers.get(i);
+            long sequence = tracer.handlerSequence();
+            long start = tracer.handlerStartNanos();
+            if (start == 0 || sequence == lastFlagged[i] || nowNanos - start < thresholdNanos) {
+                continue;
+            }
+            lastFlagged[i] = sequence;
+            flagged++;
+            slowHandlers.incrementAndGet();
+            var thread = tracer.thread();
+            var threadName = thread == null ? "unknown" : thread.getName();
+            log.warn("Slow handler: %s on %s has been running for %d ms",
+                tracer.describeHandler(), threadName, TimeUnit.NANOSECONDS.toMillis(nowNanos - start));
+            if (dumpStacks && thread != null) {
+                var sb = new StringBuilder();
+                for (var frame : thread.getStackTrace()) {
+                    sb.append("\n\tat ").append(frame);
+                }
+                log.warn("Stack of %s:%s", threadName, sb.toString());
+            }
+        }
+        return flagged;
+    }
+
+    public long getSlowHandlers() {  // thread-safe
+        return slowHandlers.get();
+    }
+}
@@ -3,7 +3,6 @@ package za.engine.event.lib;
 import java.util.function.Consumer;
 
 import za.engine.event.EventLoop;
-import za.engine.event.Events;
 import za.lib.HttpClient;
 
 /**
@@ -11,16 +10,19 @@ import za.lib.HttpClient;
  */
 public class EventedHttpClient implements HttpClient {
     private final EventLoop eventLoop;
+    private final String owner;  // plugin id for tracing, or null
 
     public EventedHttpClient(EventLoop eventLoop) {
+        this(eventLoop, null);
+    }
+
+    public EventedHttpClient(EventLoop eventLoop, String owner) {
         this.eventLoop = eventLoop;
+        this.owner = owner;
     }
 
     @Override
     public void send(Request req, Consumer<Response> next) {
-        eventLoop.submit(Events.HTTP_SEND.wrap(new SendEventData(req, next)));
+        eventLoop.submitHttpSend(req, next, owner);
     }
-
-    public record SendEventData(Request req, Consumer<Response> next) {}
-    public record ReceiveEventData(Response res, Consumer<Response> next) {}
 }
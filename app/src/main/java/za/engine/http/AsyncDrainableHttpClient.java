@@ -29,6 +29,10 @@ public final class AsyncDrainableHttpClient implements DrainableHttpClient, Auto
     private final ArrayBlockingQueue<QueueData> responseQueue;  // reader: this, writer: client
     /** count of all non-finished requests (includes sendQueue.size() + all requests not in responseQueue) */
     private int requestCount;  // reader: this, writer: this
+    /** count of requests handed to the client whose responses were not drained yet, never above concurrency */
+    private int inFlightCount;  // reader: this, writer: this
+    /** notified from the client's threads whenever a response is queued */
+    private volatile Runnable drainListener = () -> {};
 
     public AsyncDrainableHttpClient(HttpClientFacade client, int concurrency, Logger log) {
         this.client = client;
@@ -39,6 +43,7 @@ public final class AsyncDrainableHttpClient implements DrainableHttpClient, Auto
         sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_BACKLOG);
         responseQueue = new ArrayBlockingQueue<>(concurrency);
         requestCount = 0;
+        inFlightCount = 0;
     }
 
     /**
@@ -69,42 +74,45 @@ public final class AsyncDrainableHttpClient implements DrainableHttpClient, Auto
                 e.printStackTrace();
                 System.exit(1);
             }
+            drainListener.run();
         };
-        // part 1: drain send queue
+        // part 1: drain response queue, which frees up concurrency for the sends below
         {
-            int batch = Math.min(sendQueue.size(), concurrency);
-            batch = Math.min(responseQueue.remainingCapacity(), batch);
+            List<QueueData> qds = new ArrayList<>(concurrency);
+            responseQueue.drainTo(qds, concurrency /* TODO use a batchSize field instead */);
+            qds.forEach(qd -> {
+                try {
+                    // todo so we could just have one function in AsyncRuntime...
+                    qd.getResponseCallback().accept(qd.getResponse());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    log.error("skipping: runtime threw exception for %s: %s", qd, e);
+                }
+            });
+            requestCount -= qds.size();
+            inFlightCount -= qds.size();
+        }
+        // part 2: drain send queue, without exceeding concurrency (so the response queue can never overflow)
+        {
+            int batch = Math.min(sendQueue.size(), concurrency - inFlightCount);
             if (batch > 0) {
                 List<QueueData> qds = new ArrayList<>(batch);
                 sendQueue.drainTo(qds, batch);
                 qds.forEach(qd -> {
                     try {
+                        inFlightCount++;
                         client.send(qd, callback);
                         //Thread.sleep(1000L); TODO custom timeout or slow-down logic; should be pluggable
                     } catch (Exception e) {
                         // todo put an error into the responsequeue instead
                         log.error("Dropping request due to exception sending request: %s", qd.getRequest());
                         e.printStackTrace();
+                        inFlightCount--;
                         requestCount--;
                     }
                 });
             }
         }
-        // part 2: drain response queue
-        {
-            List<QueueData> qds = new ArrayList<>(concurrency);
-            responseQueue.drainTo(qds, concurrency /* TODO use a batchSize field instead */);
-            qds.forEach(qd -> {
-                try {
-                    // todo so we could just have one function in AsyncRuntime...
-                    qd.getResponseCallback().accept(qd.getResponse());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    log.error("skipping: runtime threw exception for %s: %s", qd, e);
-                }
-            });
-            requestCount -= qds.size();
-        }
         return requestCount > 0;
     }
 
@@ -123,6 +131,17 @@ public final class AsyncDrainableHttpClient implements DrainableHttpClient, Auto
         }
     }
 
+    @Override
+    public double getBacklogOccupancy() {
+        int waiting = sendQueue.size();  // thread-safe
+        return waiting / (double) (waiting + concurrency);
+    }
+
+    @Override
+    public void setDrainListener(Runnable listener) {
+        this.drainListener = Objects.requireNonNull(listener);
+    }
+
     @Override
     public void close() throws Exception {
         client.close();
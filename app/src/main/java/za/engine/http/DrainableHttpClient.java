@@ -7,7 +7,7 @@ import za.lib.HttpClient;
  */
 public sealed interface DrainableHttpClient extends HttpClient permits AsyncDrainableHttpClient, RemoteHttpClient {
     /**
-     * Non-blocking queue draining
+     * Non-blocking queue draining, runs the response callbacks of send() on the calling thread
      *
      * @return true if there are more requests to drain
      */
@@ -21,4 +21,22 @@ public sealed interface DrainableHttpClient extends HttpClient permits AsyncDrai
      * @throws InterruptedException if the thread was interrupted, causing the blocking loop to terminate
      */
     void drainFully() throws InterruptedException;
+
+    /**
+     * Requests that wait to be handed to the client, relative to the ones it may have in flight (thread-safe)
+     *
+     * @return waiting / (waiting + concurrency), between 0 and 1; 0.5 once as many requests wait as the
+     *         concurrency limit allows in flight
+     */
+    double getBacklogOccupancy();
+
+    /**
+     * Register a callback for when a response is ready to be drained
+     *
+     * The listener is called from the http client's own threads, so it must be thread-safe and must not block.
+     * Use it to schedule a drain() instead of polling drain() while requests are in flight.
+     *
+     * @param listener called once per response that becomes available (not null)
+     */
+    void setDrainListener(Runnable listener);
 }
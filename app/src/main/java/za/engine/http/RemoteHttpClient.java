@@ -78,4 +78,14 @@ public final class RemoteHttpClient implements DrainableHttpClient {
     public void drainFully() throws InterruptedException {
         http.drainFully();
     }
+
+    @Override
+    public double getBacklogOccupancy() {
+        return http.getBacklogOccupancy();
+    }
+
+    @Override
+    public void setDrainListener(Runnable listener) {
+        http.setDrainListener(listener);
+    }
 }
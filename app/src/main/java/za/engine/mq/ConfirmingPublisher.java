@@ -0,0 +1,197 @@
+package za.engine.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rabbitmq.client.*;
+
+import za.lib.Logger;
+
+/**
+ * A long-lived publishing channel with publisher confirms, owned by one sending thread
+ *
+ * Messages of a batch are pipelined with basicPublish and confirmed asynchronously by the broker, so a batch costs
+ * one round-trip instead of one channel per message. A batch completes once every message was confirmed; nacked
+ * messages, messages without a confirm in time and messages outstanding on a failed channel are published again.
+ */
+final class ConfirmingPublisher {
+    public static final long CONFIRM_TIMEOUT_MS = 5000;
+    public static final int MAX_PUBLISH_ATTEMPTS = 3;
+
+    private final Logger log = Logger.verbose(getClass());
+    private final Connection connection;
+    private final Set<String> declaredQueues = new HashSet<>();  // queue declarations outlive channels
+    private Channel channel;  // reader: sending thread, writer: sending thread
+
+    // confirm state of the current attempt, written by the connection thread through the ConfirmListener
+    private final ReentrantLock confirmLock = new ReentrantLock();
+    private final Condition confirmed = confirmLock.newCondition();
+    private final NavigableMap<Long, MessageClient.Outgoing> unconfirmed = new ConcurrentSkipListMap<>();  // by publish sequence
+    private final List<MessageClient.Outgoing> nacked = new ArrayList<>();  // guarded by confirmLock
+
+    ConfirmingPublisher(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Publishes a batch and blocks until the broker confirmed all of it (sending thread only)
+     *
+     * @throws IOException if some messages were still not confirmed after MAX_PUBLISH_ATTEMPTS
+     * @throws IllegalArgumentException if a message has a delay the broker can not hold, nothing was published
+     */
+    void publish(List<MessageClient.Outgoing> batch) throws IOException, TimeoutException, InterruptedException {
+        DelayTiers.check(batch);
+        var pending = batch;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            if (attempt > MAX_PUBLISH_ATTEMPTS) {
+                throw new IOException(pending.size() + " messages were not confirmed after " + MAX_PUBLISH_ATTEMPTS + " attempts");
+            }
+            if (attempt > 1) {
+                log.warn("Publishing %d unconfirmed messages again, attempt %d", pending.size(), attempt);
+            }
+            pending = publishOnce(pending);
+        }
+    }
+
+    /**
+     * @return the messages that have to be published again
+     */
+    private List<MessageClient.Outgoing> publishOnce(List<MessageClient.Outgoing> batch)
+    throws IOException, TimeoutException, InterruptedException {
+        int next = 0;  // index of the first message of the batch that is not tracked yet
+        try {
+            var ch = channel();
+            while (next < batch.size()) {
+                var outgoing = batch.get(next);
+                if (declaredQueues.add(outgoing.queueName())) {
+                    ch.queueDeclare(outgoing.queueName(), false, false, false, null);
+                }
+                var routingKey = outgoing.delayMs() > 0 ? declareDelayQueue(ch, outgoing) : outgoing.queueName();
+                unconfirmed.put(ch.getNextPublishSeqNo(), outgoing);  // before publishing, the confirm may be quick
+                next++;
+                var props = new AMQP.BasicProperties.Builder()
+                    .messageId(outgoing.messageId())
+                    .headers(outgoing.headers().isEmpty() ? null : Map.<String, Object>copyOf(outgoing.headers()))
+                    .build();
+                ch.basicPublish("", routingKey, props, outgoing.message());
+            }
+            if (awaitConfirms(TimeUnit.MILLISECONDS.toNanos(CONFIRM_TIMEOUT_MS))) {
+                return takeFailed(List.of());
+            }
+            log.warn("%d messages were not confirmed within %d ms", unconfirmed.size(), CONFIRM_TIMEOUT_MS);
+        } catch (IOException | ShutdownSignalException e) {
+            log.warn("Publishing channel failed: %s", e);
+            declaredQueues.clear();  // the failure may have been a declaration
+        }
+        // the channel is in an unknown state, late confirms of its sequence numbers must not reach the next attempt
+        closeChannel();
+        return takeFailed(batch.subList(next, batch.size()));
+    }
+
+    /**
+     * Messages wait in a delay queue without consumers until its ttl expires, then the broker dead-letters them
+     * into their queue
+     *
+     * @return name of the delay queue
+     */
+    private String declareDelayQueue(Channel ch, MessageClient.Outgoing outgoing) throws IOException {
+        long tierMs = DelayTiers.tierMs(outgoing.delayMs());
+        var queueName = DelayTiers.queueName(outgoing.queueName(), tierMs);
+        if (declaredQueues.add(queueName)) {
+            ch.queueDeclare(queueName, false, false, false, Map.of(
+                "x-message-ttl", tierMs,
+                "x-dead-letter-exchange", "",
+                "x-dead-letter-routing-key", outgoing.queueName()));
+        }
+        return queueName;
+    }
+
+    private boolean awaitConfirms(long timeoutNanos) throws InterruptedException {
+        confirmLock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (!unconfirmed.isEmpty()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = confirmed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            confirmLock.unlock();
+        }
+    }
+
+    // nacked and unconfirmed messages in publish order, followed by the unpublished rest of the batch
+    private List<MessageClient.Outgoing> takeFailed(List<MessageClient.Outgoing> unpublished) {
+        confirmLock.lock();
+        try {
+            var failed = new ArrayList<>(nacked);
+            failed.addAll(unconfirmed.values());
+            failed.addAll(unpublished);
+            nacked.clear();
+            unconfirmed.clear();
+            return failed;
+        } finally {
+            confirmLock.unlock();
+        }
+    }
+
+    private Channel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            var ch = connection.createChannel();
+            ch.confirmSelect();
+            ch.addConfirmListener(new ConfirmListener() {
+                @Override
+                public void handleAck(long sequence, boolean multiple) {
+                    settle(sequence, multiple, false);
+                }
+
+                @Override
+                public void handleNack(long sequence, boolean multiple) {
+                    settle(sequence, multiple, true);
+                }
+            });
+            channel = ch;
+        }
+        return channel;
+    }
+
+    private void settle(long sequence, boolean multiple, boolean nack) {  // connection thread
+        confirmLock.lock();
+        try {
+            var settled = multiple ? unconfirmed.headMap(sequence, true) : unconfirmed.subMap(sequence, true, sequence, true);
+            if (nack) {
+                nacked.addAll(settled.values());
+            }
+            settled.clear();
+            confirmed.signal();
+        } finally {
+            confirmLock.unlock();
+        }
+    }
+
+    private void closeChannel() throws TimeoutException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException | ShutdownSignalException e) {
+            log.warn("Failed to close publishing channel: %s", e);
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,77 @@
+package za.engine.mq;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
+
+/**
+ * Messages that can not be handled go to a dead-letter queue next to their queue, instead of being dropped
+ *
+ * A dead letter keeps the message id and body it was received with. Its headers tell why it failed, how often
+ * it was delivered and where it came from, so it can be inspected and replayed into its queue once the cause
+ * was fixed (see MessageClient.replayDeadLetters).
+ */
+public final class DeadLetters {
+    public static final String QUEUE_SUFFIX = ".dlq";
+    public static final String REASON_HEADER = "za-dead-reason";
+    public static final String ORIGIN_QUEUE_HEADER = "za-origin-queue";
+    public static final String ORIGIN_CHANNEL_HEADER = "za-origin-channel";
+    public static final int MAX_REASON_LENGTH = 1024;  // a stack trace belongs in the log, not in every message
+    public static final String DECODE_FAILED = "Failed to decode message";
+
+    private DeadLetters() {}
+
+    /**
+     * @return name of the dead-letter queue of a queue
+     */
+    public static String queueName(String queueName) {
+        return queueName + QUEUE_SUFFIX;
+    }
+
+    /**
+     * @param queueName queue the message was received from
+     * @param attempts deliveries of the message that failed
+     * @param channel channel of the message, empty if it could not be decoded
+     */
+    public static MessageClient.Outgoing deadLetter(String queueName, String messageId, byte[] message,
+            Map<String, String> headers, int attempts, String channel, String reason) {
+        var deadHeaders = new HashMap<>(headers);
+        deadHeaders.put(InternalMessage.ATTEMPT_HEADER, Integer.toString(attempts));
+        deadHeaders.put(ORIGIN_QUEUE_HEADER, queueName);
+        deadHeaders.put(ORIGIN_CHANNEL_HEADER, channel);
+        deadHeaders.put(REASON_HEADER, reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason);
+        return new MessageClient.Outgoing(queueName(queueName), messageId == null ? UUID.randomUUID().toString() : messageId,
+            message, null, deadHeaders, 0);
+    }
+
+    /**
+     * A received message that could not be decoded, it would fail again on every redelivery
+     */
+    static MessageClient.Outgoing undecodable(String queueName, String messageId, byte[] message, Map<String, String> headers) {
+        int attempts;
+        try {
+            attempts = Integer.parseInt(headers.getOrDefault(InternalMessage.ATTEMPT_HEADER, "0")) + 1;
+        } catch (NumberFormatException e) {
+            attempts = 1;
+        }
+        return deadLetter(queueName, messageId, message, headers, attempts, MessageUtils.channel(message).orElse(""),
+            DECODE_FAILED);
+    }
+
+    /**
+     * @param queueName queue the dead letter was dead-lettered from, if it does not say so itself
+     * @return the dead letter as it was sent to its queue, delivered like a new message
+     */
+    public static MessageClient.Outgoing revive(String queueName, String messageId, byte[] message, Map<String, String> headers) {
+        var liveHeaders = new HashMap<>(headers);
+        var originQueue = liveHeaders.remove(ORIGIN_QUEUE_HEADER);
+        liveHeaders.remove(ORIGIN_CHANNEL_HEADER);
+        liveHeaders.remove(REASON_HEADER);
+        liveHeaders.remove(InternalMessage.ATTEMPT_HEADER);  // gets all attempts again
+        return new MessageClient.Outgoing(originQueue == null ? queueName : originQueue, messageId, message, null,
+            liveHeaders, 0);
+    }
+}
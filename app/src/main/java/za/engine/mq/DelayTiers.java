@@ -0,0 +1,59 @@
+package za.engine.mq;
+
+import java.util.List;
+
+import za.lib.Plugin;
+
+/**
+ * Fixed delays that delayed messages are rounded up to, every tier of a queue gets a delay queue of its own
+ *
+ * A delay queue holds messages of a single delay, so its oldest message is always the next one due and the
+ * queue can be drained in order. Rounding up keeps the number of delay queues small, a message is never
+ * delivered before its delay passed.
+ */
+final class DelayTiers {
+    public static final long MAX_DELAY_MS = Plugin.MAX_DELAY.toMillis();
+
+    private static final long[] TIERS_MS = {
+        1_000, 2_000, 5_000, 10_000, 20_000, 30_000,
+        60_000, 2 * 60_000, 5 * 60_000, 10 * 60_000, 20 * 60_000, 30 * 60_000,
+        3_600_000, 2 * 3_600_000, 6 * 3_600_000, 12 * 3_600_000, MAX_DELAY_MS,
+    };
+
+    private DelayTiers() {}
+
+    /**
+     * @return the smallest tier of at least delayMs
+     */
+    static long tierMs(long delayMs) {
+        if (delayMs < 1 || delayMs > MAX_DELAY_MS) {
+            throw new IllegalArgumentException("Must have 1 <= delayMs <= " + MAX_DELAY_MS + " but got " + delayMs);
+        }
+        for (long tier : TIERS_MS) {
+            if (tier >= delayMs) {
+                return tier;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Checks a batch before any of it is sent, so a bad delay does not leave the batch half sent
+     *
+     * @throws IllegalArgumentException if a delayed message of the batch has no tier
+     */
+    static void check(List<MessageClient.Outgoing> batch) {
+        for (var outgoing : batch) {
+            if (outgoing.delayMs() != 0) {
+                tierMs(outgoing.delayMs());
+            }
+        }
+    }
+
+    /**
+     * @return name of the queue that holds messages for queueName until the tier's delay passed
+     */
+    static String queueName(String queueName, long tierMs) {
+        return queueName + ".delay." + tierMs;
+    }
+}
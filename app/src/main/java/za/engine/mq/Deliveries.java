@@ -0,0 +1,26 @@
+package za.engine.mq;
+
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receive loop helpers shared by the message clients, so their flow control and settling stay the same
+ */
+final class Deliveries {
+    static final long FLOW_CONTROL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);  // also the settle interval while idle
+
+    private Deliveries() {}
+
+    /**
+     * @param unacked unsettled deliveries by delivery tag
+     * @param multiple also every unsettled delivery with a lower tag
+     * @return view of the deliveries settled by an ack or nack, clear it to remove them
+     * @throws IllegalStateException if the delivery tag is not unsettled
+     */
+    static <T> NavigableMap<Long, T> settled(NavigableMap<Long, T> unacked, long deliveryTag, boolean multiple) {
+        if (!unacked.containsKey(deliveryTag)) {
+            throw new IllegalStateException("Unknown or already settled delivery tag " + deliveryTag);
+        }
+        return multiple ? unacked.headMap(deliveryTag, true) : unacked.subMap(deliveryTag, true, deliveryTag, true);
+    }
+}
@@ -0,0 +1,196 @@
+package za.engine.mq;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Named in-process queues shared by the LocalMessageClients of one engine
+ *
+ * Queues are lock-free (a ConcurrentLinkedQueue with a separate size counter) and bounded, a send that does not
+ * fit fails like a send to an unreachable broker. Receivers park while their queue is empty and are unparked by
+ * the next send, so an idle receiver does not spin. Delayed messages are added by a timer thread once they are due,
+ * they count against the capacity of their queue while they wait.
+ *
+ * Nothing outside the process can consume a local queue. Queues that no receiver of the engine reads (e.g. its
+ * output queues) should be marked with discard(), or they fill up and then reject every send.
+ */
+public final class LocalBroker {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 20;
+
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private volatile ScheduledExecutorService timer;  // started by the first delayed message
+
+    public LocalBroker() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity max messages per queue
+     */
+    public LocalBroker(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Must have queueCapacity >= 1");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Takes a message from a queue, e.g. to read the engine's output in a benchmark (non-blocking, thread-safe)
+     *
+     * @return null if the queue is empty
+     */
+    public MessageClient.Outgoing poll(String queueName) {
+        return queue(queueName).poll();
+    }
+
+    public int size(String queueName) {  // thread-safe
+        return queue(queueName).size.get();
+    }
+
+    /**
+     * Drops every message sent to a queue from now on, for queues nobody receives from (thread-safe)
+     */
+    public void discard(String queueName) {
+        queue(queueName).discarding = true;
+    }
+
+    /**
+     * @return number of messages dropped since the queue was marked with discard()
+     */
+    public long discarded(String queueName) {  // thread-safe
+        return queue(queueName).discarded.get();
+    }
+
+    Queue queue(String queueName) {  // thread-safe
+        return queues.computeIfAbsent(queueName, name -> new Queue(queueCapacity));
+    }
+
+    /**
+     * Adds a message that room was reserved for once its delay passed (thread-safe)
+     */
+    void schedule(Queue queue, MessageClient.Outgoing message) {
+        timer().schedule(() -> {
+            queue.add(message);
+            queue.signal();
+        }, message.delayMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private ScheduledExecutorService timer() {
+        var timer = this.timer;
+        if (timer == null) {
+            synchronized (this) {
+                timer = this.timer;
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        var thread = new Thread(runnable, "LocalBroker_Timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.timer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    static final class Queue {
+        private final ConcurrentLinkedQueue<MessageClient.Outgoing> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();  // ConcurrentLinkedQueue.size() is O(n)
+        private final AtomicLong discarded = new AtomicLong();
+        private volatile boolean discarding;  // set before the first send, see LocalBroker.discard()
+        private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+        private final int capacity;
+
+        private Queue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Reserves room for messages, to be filled with add()
+         *
+         * @return false if they do not fit
+         */
+        boolean reserve(int count) {
+            if (discarding) {
+                return true;
+            }
+            if (size.addAndGet(count) > capacity) {
+                size.addAndGet(-count);
+                return false;
+            }
+            return true;
+        }
+
+        void release(int count) {
+            if (!discarding) {
+                size.addAndGet(-count);
+            }
+        }
+
+        boolean discards() {
+            return discarding;
+        }
+
+        /**
+         * Adds a message that room was reserved for
+         */
+        void add(MessageClient.Outgoing message) {
+            if (discarding) {
+                discarded.incrementAndGet();
+                return;
+            }
+            messages.offer(message);
+        }
+
+        void requeue(MessageClient.Outgoing message) {
+            size.incrementAndGet();
+            messages.offer(message);
+            signal();
+        }
+
+        void signal() {
+            for (var waiter : waiters) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        MessageClient.Outgoing poll() {
+            var message = messages.poll();
+            if (message != null) {
+                size.decrementAndGet();
+            }
+            return message;
+        }
+
+        /**
+         * Takes a message, parks until one is sent or the timeout passed while the queue is empty
+         */
+        MessageClient.Outgoing poll(long timeoutNanos) {
+            var message = poll();
+            if (message != null) {
+                return message;
+            }
+            var thread = Thread.currentThread();
+            waiters.add(thread);
+            try {
+                message = poll();  // a send between the first poll and add() did not unpark us
+                if (message == null) {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                    message = poll();
+                }
+                return message;
+            } finally {
+                waiters.remove(thread);
+            }
+        }
+    }
+}
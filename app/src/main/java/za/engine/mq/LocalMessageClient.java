@@ -0,0 +1,186 @@
+package za.engine.mq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
+import za.lib.Logger;
+
+/**
+ * In-process message client for single-node deployments and benchmarks, backed by a LocalBroker
+ *
+ * Sent messages are handed to the receiving client as they are, without a broker hop. The receiver decodes the
+ * encoded message lazily, so a plugin that modifies a body after sending it does not change what was sent. Unless
+ * roundTrip is set, an immutable body (e.g. a received message that is sent on) is handed over without decoding
+ * it again. Delivery is at-least-once within the process: unacknowledged messages are
+ * requeued when a receiver nacks them or stops receiving. Both receive modes behave the same, every message is
+ * taken from the queue as soon as the receiver can take more. Delayed messages wait in memory, they are lost
+ * when the process stops. Messages that can not be decoded go to the dead-letter queue of their queue. Only the
+ * encoded message is queued, unless the source is handed over.
+ */
+public class LocalMessageClient implements MessageClient {
+    private final Logger log = Logger.verbose(getClass());
+    private final LocalBroker broker;
+    private final boolean roundTrip;
+
+    /**
+     * @param roundTrip decode every received message from its encoded form, like a remote broker would
+     */
+    public LocalMessageClient(LocalBroker broker, boolean roundTrip) {
+        this.broker = broker;
+        this.roundTrip = roundTrip;
+    }
+
+    @Override
+    public void send(String queueName, String message) throws IOException, TimeoutException {
+        sendBatch(List.of(new Outgoing(queueName, UUID.randomUUID().toString(), message)));
+    }
+
+    /**
+     * Adds the whole batch, or fails without adding anything if a queue is full
+     */
+    @Override
+    public void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException {
+        var counts = new HashMap<String, Integer>();
+        for (var outgoing : batch) {
+            counts.merge(outgoing.queueName(), 1, Integer::sum);
+        }
+        var reserved = new HashMap<LocalBroker.Queue, Integer>();
+        for (var entry : counts.entrySet()) {
+            var queue = broker.queue(entry.getKey());
+            if (!queue.reserve(entry.getValue())) {
+                reserved.forEach(LocalBroker.Queue::release);
+                throw new IOException("Local queue " + entry.getKey() + " is full");
+            }
+            reserved.put(queue, entry.getValue());
+        }
+        for (var outgoing : batch) {
+            var queue = broker.queue(outgoing.queueName());
+            var queued = handsOver(outgoing) ? outgoing : withoutSource(outgoing);  // a live body is not held
+            if (outgoing.delayMs() > 0 && !queue.discards()) {
+                broker.schedule(queue, queued);
+            } else {
+                queue.add(queued);
+            }
+        }
+        reserved.keySet().forEach(LocalBroker.Queue::signal);
+    }
+
+    @Override
+    public void receiveBlocking(String queueName, ReceiveMode mode, Receiver receiver)
+    throws InterruptedException, IOException, TimeoutException {
+        var queue = broker.queue(queueName);
+        NavigableMap<Long, Outgoing> unacked = new TreeMap<>();  // reader: receiving thread, writer: receiving thread
+        Acknowledger acknowledger = new Acknowledger() {
+            @Override
+            public void ack(long deliveryTag, boolean multiple) {
+                Deliveries.settled(unacked, deliveryTag, multiple).clear();
+            }
+
+            @Override
+            public void nack(long deliveryTag, boolean multiple, boolean requeue) {
+                var settled = Deliveries.settled(unacked, deliveryTag, multiple);
+                if (requeue) {
+                    settled.values().forEach(queue::requeue);
+                }
+                settled.clear();
+            }
+        };
+        long nextDeliveryTag = 1;
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                receiver.settle(acknowledger);
+                if (!receiver.canReceiveMore()) {
+                    receiver.awaitCapacity(Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                    continue;
+                }
+                var outgoing = queue.poll(Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                if (outgoing == null) {
+                    continue;
+                }
+                long deliveryTag = nextDeliveryTag++;
+                var message = toInternalMessage(outgoing);
+                if (message.isPresent()) {
+                    unacked.put(deliveryTag, outgoing);
+                    receiver.onReceive(message.get(), deliveryTag);
+                } else {
+                    log.warn("Failed to decode message id=%s, moving it to the dead-letter queue", outgoing.messageId());
+                    deadLetter(queueName, queue, outgoing);
+                }
+            }
+        } finally {
+            try {
+                receiver.flush(acknowledger);
+            } finally {
+                unacked.values().forEach(queue::requeue);  // like closing a channel
+                unacked.clear();
+            }
+        }
+    }
+
+    private void deadLetter(String queueName, LocalBroker.Queue queue, Outgoing outgoing) {
+        try {
+            sendBatch(List.of(DeadLetters.undecodable(queueName, outgoing.messageId(), outgoing.message(), outgoing.headers())));
+        } catch (IOException | TimeoutException e) {
+            log.warn("Failed to dead-letter message id=%s, requeueing it: %s", outgoing.messageId(), e);
+            queue.requeue(outgoing);
+        }
+    }
+
+    @Override
+    public int replayDeadLetters(String queueName, int max) throws IOException, TimeoutException {
+        var deadLetters = broker.queue(DeadLetters.queueName(queueName));
+        int replayed = 0;
+        Outgoing deadLetter;
+        while (replayed < max && (deadLetter = deadLetters.poll()) != null) {
+            try {
+                sendBatch(List.of(DeadLetters.revive(queueName, deadLetter.messageId(), deadLetter.message(), deadLetter.headers())));
+            } catch (IOException e) {
+                deadLetters.requeue(deadLetter);
+                throw e;
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    // whether the receiver gets the source instead of decoding the message
+    private boolean handsOver(Outgoing outgoing) {
+        var source = outgoing.source();
+        return !roundTrip && source != null && MessageUtils.isImmutable(source.serializableBody());
+    }
+
+    private static Outgoing withoutSource(Outgoing outgoing) {
+        if (outgoing.source() == null) {
+            return outgoing;
+        }
+        return new Outgoing(outgoing.queueName(), outgoing.messageId(), outgoing.message(), null, outgoing.headers(),
+            outgoing.delayMs());
+    }
+
+    private Optional<InternalMessage> toInternalMessage(Outgoing outgoing) {
+        var source = outgoing.source();
+        if (!handsOver(outgoing)) {
+            return MessageUtils.decode(UUID.randomUUID(), outgoing.messageId(), outgoing.message(), outgoing.headers());
+        }
+        return Optional.of(new InternalMessage(
+            UUID.randomUUID(),  // every delivery is tracked by its own key
+            source.context(),
+            source.channel(),
+            source.pluginId(),
+            Optional.of(outgoing.messageId()),
+            source.serializableBody(),
+            outgoing.headers(),
+            source.dataKey()));
+    }
+}
@@ -1,6 +1,12 @@
 package za.engine.mq;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -9,6 +15,150 @@ import za.engine.InternalMessage;
 
 public interface MessageClient {
     void send(String queueName, String message) throws IOException, TimeoutException;
-    void receiveBlocking(String queueName, Supplier<Boolean> canReceiveMore, Consumer<InternalMessage> onReceive)
+
+    /**
+     * Send a batch of messages, returns once the broker accepted all of them
+     *
+     * @throws IllegalArgumentException if the batch has a message the broker can never take, e.g. with a delay
+     *                                  over the max (see DelayTiers)
+     */
+    void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException, InterruptedException;
+
+    /**
+     * @param messageId set as the AMQP message id, stays the same when a message is published again
+     * @param message the encoded message, see MessageUtils.encode(InternalMessage, int)
+     * @param source the message before encoding, or null if it is gone (e.g. after spooling);
+     *               in-process clients may hand it over instead of decoding the message again
+     * @param headers delivered along with the message, see InternalMessage.headers
+     * @param delayMs the message is delivered once this many milliseconds passed, 0 delivers it right away
+     */
+    record Outgoing(String queueName, String messageId, byte[] message, InternalMessage source,
+                    Map<String, String> headers, long delayMs) {
+        public Outgoing(String queueName, String messageId, String message) {
+            this(queueName, messageId, message, null);
+        }
+
+        public Outgoing(String queueName, String messageId, String message, InternalMessage source) {
+            this(queueName, messageId, message.getBytes(StandardCharsets.UTF_8), source, Map.of(), 0);
+        }
+
+        // compares the encoded message by its content
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Outgoing o && queueName.equals(o.queueName) && messageId.equals(o.messageId)
+                && Arrays.equals(message, o.message) && Objects.equals(source, o.source) && headers.equals(o.headers)
+                && delayMs == o.delayMs;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queueName, messageId, Arrays.hashCode(message), source, headers, delayMs);
+        }
+
+        @Override
+        public String toString() {
+            return "Outgoing[queueName=" + queueName + ", messageId=" + messageId + ", message=" + message.length
+                + " bytes, headers=" + headers + ", delayMs=" + delayMs + "]";
+        }
+    }
+
+    /**
+     * Receive messages until interrupted, with manual acknowledgements
+     *
+     * Every delivered message stays unacknowledged (and is redelivered if this node dies) until the receiver
+     * settles it. settle() is called by the receiving thread between receives, since acknowledgements must use
+     * the channel that received the messages.
+     */
+    void receiveBlocking(String queueName, ReceiveMode mode, Receiver receiver)
         throws InterruptedException, IOException, TimeoutException;
+
+    /**
+     * Moves messages from the dead-letter queue of a queue back to the queue they were dead-lettered from, to be
+     * delivered like new messages (see DeadLetters)
+     *
+     * @param max stop after this many messages
+     * @return number of replayed messages, less than max once the dead-letter queue is empty
+     */
+    int replayDeadLetters(String queueName, int max) throws InterruptedException, IOException, TimeoutException;
+
+    enum ReceiveMode {
+        /** fetch one message per round-trip, only while the receiver can take more */
+        POLL,
+        /** the broker pushes up to Receiver.prefetch() unacknowledged messages ahead */
+        PUSH
+    }
+
+    /**
+     * Receive messages until interrupted, every message is acknowledged once it was passed to onReceive
+     */
+    default void receiveBlocking(String queueName, Supplier<Boolean> canReceiveMore, Consumer<InternalMessage> onReceive)
+            throws InterruptedException, IOException, TimeoutException {
+        receiveBlocking(queueName, ReceiveMode.POLL, new Receiver() {
+            private long delivered = -1;  // reader: receiving thread, writer: receiving thread
+            private long acked = -1;
+
+            @Override
+            public boolean canReceiveMore() {
+                return canReceiveMore.get();
+            }
+
+            @Override
+            public void onReceive(InternalMessage message, long deliveryTag) {
+                try {
+                    onReceive.accept(message);
+                } finally {
+                    delivered = deliveryTag;
+                }
+            }
+
+            @Override
+            public void settle(Acknowledger acknowledger) throws IOException {
+                if (delivered > acked) {
+                    acknowledger.ack(delivered, true);
+                    acked = delivered;
+                }
+            }
+        });
+    }
+
+    interface Receiver {
+        boolean canReceiveMore();
+
+        /**
+         * Blocks until canReceiveMore() may have become true, or the timeout passed
+         */
+        default void awaitCapacity(long timeoutNanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(timeoutNanos);
+        }
+
+        /**
+         * @return max unacknowledged messages the broker may push ahead in PUSH mode, 0 for no limit
+         */
+        default int prefetch() {
+            return 0;
+        }
+
+        /**
+         * @param deliveryTag increases with every delivery of the receiving channel
+         */
+        void onReceive(InternalMessage message, long deliveryTag);
+
+        void settle(Acknowledger acknowledger) throws IOException;
+
+        /**
+         * Settle everything that can be settled now, called once before receiving ends
+         */
+        default void flush(Acknowledger acknowledger) throws IOException {
+            settle(acknowledger);
+        }
+    }
+
+    interface Acknowledger {
+        /**
+         * @param multiple also acknowledge every unsettled delivery with a lower tag
+         */
+        void ack(long deliveryTag, boolean multiple) throws IOException;
+
+        void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException;
+    }
 }
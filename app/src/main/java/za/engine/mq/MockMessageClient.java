@@ -1,42 +1,170 @@
 package za.engine.mq;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
 
 import za.engine.InternalMessage;
 
 public class MockMessageClient implements MessageClient {
     private final LinkedBlockingQueue<InternalMessage> messages = new LinkedBlockingQueue<>();
+    private final List<String> sentMessages = new CopyOnWriteArrayList<>();
+    private final List<Outgoing> sentBatchMessages = new CopyOnWriteArrayList<>();
+    private final Map<String, ConcurrentLinkedDeque<Outgoing>> deadLetters = new ConcurrentHashMap<>();  // by dead-letter queue
+    private final NavigableMap<Long, InternalMessage> delivered = new ConcurrentSkipListMap<>();
+    private final Set<Long> acked = ConcurrentHashMap.newKeySet();
+    private final Set<Long> nacked = ConcurrentHashMap.newKeySet();
+    private volatile boolean available = true;
+    private long nextDeliveryTag = 1;  // reader: receiving thread, writer: receiving thread
 
     public void addMockReceivableMessage(InternalMessage message) {
         messages.offer(message);
     }
 
+    public List<String> getSentMessages() {
+        return sentMessages;
+    }
+
+    /**
+     * @return messages sent with sendBatch(), which carry their message id
+     */
+    public List<Outgoing> getSentBatchMessages() {
+        return sentBatchMessages;
+    }
+
+    /**
+     * @return messages waiting in the dead-letter queue of a queue, see DeadLetters
+     */
+    public List<Outgoing> getDeadLetters(String queueName) {
+        var queue = deadLetters.get(DeadLetters.queueName(queueName));
+        return queue == null ? List.of() : List.copyOf(queue);
+    }
+
+    /**
+     * While unavailable, sending fails like it does with an unreachable broker
+     */
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
     @Override
     public void send(String queueName, String message) throws IOException, TimeoutException {
-        // do nothing for now
+        if (!available) {
+            throw new IOException("Mock broker is unavailable");
+        }
+        sentMessages.add(message);
+    }
+
+    @Override
+    public void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException {
+        if (!available) {
+            throw new IOException("Mock broker is unavailable");
+        }
+        DelayTiers.check(batch);
+        for (var outgoing : batch) {
+            send(outgoing.queueName(), new String(outgoing.message(), StandardCharsets.UTF_8));
+            if (outgoing.queueName().endsWith(DeadLetters.QUEUE_SUFFIX)) {
+                deadLetters.computeIfAbsent(outgoing.queueName(), key -> new ConcurrentLinkedDeque<>()).add(outgoing);
+            }
+        }
+        sentBatchMessages.addAll(batch);
     }
 
     @Override
-    public void receiveBlocking(String queueName, Supplier<Boolean> canReceiveMore, Consumer<InternalMessage> onReceive)
+    public int replayDeadLetters(String queueName, int max) throws IOException, TimeoutException {
+        var queue = deadLetters.get(DeadLetters.queueName(queueName));
+        int replayed = 0;
+        Outgoing deadLetter;
+        while (queue != null && replayed < max && (deadLetter = queue.poll()) != null) {
+            try {
+                sendBatch(List.of(DeadLetters.revive(queueName, deadLetter.messageId(), deadLetter.message(), deadLetter.headers())));
+            } catch (IOException e) {
+                queue.addFirst(deadLetter);
+                throw e;
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * @return delivery tags that were acknowledged
+     */
+    public Set<Long> getAcked() {
+        return acked;
+    }
+
+    /**
+     * @return delivery tags that were negatively acknowledged
+     */
+    public Set<Long> getNacked() {
+        return nacked;
+    }
+
+    @Override
+    public void receiveBlocking(String queueName, ReceiveMode mode, Receiver receiver)
     throws InterruptedException, IOException, TimeoutException {
-        while (true) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
+        Acknowledger acknowledger = new Acknowledger() {
+            @Override
+            public void ack(long deliveryTag, boolean multiple) {
+                settle(deliveryTag, multiple, acked);
             }
-            if (messages.isEmpty() || !canReceiveMore.get()) {
-                Thread.yield();
-                continue;
+
+            @Override
+            public void nack(long deliveryTag, boolean multiple, boolean requeue) {
+                settle(deliveryTag, multiple, nacked);
+                if (requeue) {
+                    messages.offer(delivered.get(deliveryTag));
+                }
             }
-            var message = messages.poll();
-            if (message == null) {
-                Thread.yield();
-                continue;
+        };
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                receiver.settle(acknowledger);
+                if (!receiver.canReceiveMore()) {
+                    receiver.awaitCapacity(Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                    continue;
+                }
+                if (messages.isEmpty()) {
+                    Thread.yield();
+                    continue;
+                }
+                var message = messages.poll();
+                if (message == null) {
+                    Thread.yield();
+                    continue;
+                }
+                long deliveryTag = nextDeliveryTag++;
+                delivered.put(deliveryTag, message);
+                receiver.onReceive(message, deliveryTag);
             }
-            onReceive.accept(message);
+        } finally {
+            receiver.flush(acknowledger);
+        }
+    }
+
+    private void settle(long deliveryTag, boolean multiple, Set<Long> into) {
+        if (!delivered.containsKey(deliveryTag) || acked.contains(deliveryTag) || nacked.contains(deliveryTag)) {
+            throw new IllegalStateException("Unknown or already settled delivery tag " + deliveryTag);
+        }
+        if (multiple) {
+            delivered.headMap(deliveryTag, true).keySet().stream()
+                .filter(tag -> !acked.contains(tag) && !nacked.contains(tag))
+                .forEach(into::add);
+        } else {
+            into.add(deliveryTag);
         }
     }
 }
@@ -1,12 +1,15 @@
 package za.engine.mq;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
 
 import com.rabbitmq.client.*;
 
@@ -18,10 +21,12 @@ public class RabbitMQClient implements MessageClient {
     private static final int QUEUE_EMPTY_WARNING_PERIOD_MS = 15000;
     private static final int CONNECT_RETRY_GAP_MS = 3000;
     private static final int MAX_CONNECT_RETRIES = 10;
+    private static final int REPLAY_BATCH_SIZE = 256;  // dead letters per confirmed publish
    
     private final Logger log = Logger.verbose(getClass());
     private final ConnectionFactory connectionFactory;
     private final ThreadLocal<Connection> connectionPool = new ThreadLocal<>();
+    private final ThreadLocal<ConfirmingPublisher> publishers = new ThreadLocal<>();  // one channel per sending thread
 
     public RabbitMQClient(ConnectionFactory connectionFactory) {
         this.connectionFactory = connectionFactory;
@@ -58,26 +63,73 @@ public class RabbitMQClient implements MessageClient {
 
     @Override
     public void send(String queueName, String message) throws IOException, TimeoutException {
-        try (var channel = connectionPool.get().createChannel();) {
-            channel.queueDeclare(queueName, false, false, false, null);
-            channel.basicPublish("", queueName, null, message.getBytes());
+        try {
+            sendBatch(List.of(new Outgoing(queueName, UUID.randomUUID().toString(), message)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a publisher confirm", e);
         }
     }
 
     @Override
-    public void receiveBlocking(final String queueName, Supplier<Boolean> canReceiveMore, Consumer<InternalMessage> onReceive)
+    public void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException, InterruptedException {
+        var publisher = publishers.get();
+        if (publisher == null) {
+            publisher = new ConfirmingPublisher(connectionPool.get());
+            publishers.set(publisher);
+        }
+        publisher.publish(batch);
+    }
+
+    @Override
+    public void receiveBlocking(final String queueName, ReceiveMode mode, Receiver receiver)
     throws InterruptedException, IOException, TimeoutException {
         var channel = connectionPool.get().createChannel();
+        Acknowledger acknowledger = new Acknowledger() {
+            @Override
+            public void ack(long deliveryTag, boolean multiple) throws IOException {
+                channel.basicAck(deliveryTag, multiple);
+            }
+
+            @Override
+            public void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+                channel.basicNack(deliveryTag, multiple, requeue);
+            }
+        };
+        try {
+            switch (mode) {
+                case POLL -> poll(channel, queueName, receiver, acknowledger);
+                case PUSH -> consume(channel, queueName, receiver, acknowledger);
+            }
+        } finally {
+            try {
+                receiver.flush(acknowledger);
+            } catch (IOException e) {
+                log.warn("Failed to settle messages: %s", e);
+            }
+            // whatever is still unsettled, including prefetched messages, is redelivered once the channel closes
+            try {
+                channel.close();
+            } catch (IOException | ShutdownSignalException e) {
+                log.warn("Failed to close receiving channel: %s", e);
+            }
+        }
+    }
+
+    // one basicGet round-trip per message
+    private void poll(Channel channel, String queueName, Receiver receiver, Acknowledger acknowledger)
+    throws InterruptedException, IOException {
         long lastNullCheckTime = System.currentTimeMillis();
         while (true) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
-            if (!canReceiveMore.get()) {
-                Thread.yield();  // TODO wait()/notify() with the flow controller
+            receiver.settle(acknowledger);
+            if (!receiver.canReceiveMore()) {
+                receiver.awaitCapacity(Deliveries.FLOW_CONTROL_WAIT_NANOS);
                 continue;
             }
-            var getResponse = channel.basicGet(queueName, true);
+            var getResponse = channel.basicGet(queueName, false);
             long now = System.currentTimeMillis();
             if (getResponse == null) {  // occurs if we start this node on an empty queue
                 if (now - lastNullCheckTime >= QUEUE_EMPTY_WARNING_PERIOD_MS) {
@@ -88,15 +140,100 @@ public class RabbitMQClient implements MessageClient {
                 continue;
             }
             lastNullCheckTime = now;
-            String messageId = getResponse.getProps().getMessageId();
-            String encodedMessage = new String(getResponse.getBody(), StandardCharsets.UTF_8);
-            UUID internalKey = UUID.randomUUID();
-            Optional<InternalMessage> message = MessageUtils.decode(internalKey, messageId, encodedMessage);
-            if (message.isPresent()) {
-                onReceive.accept(message.get());
-            } else {
-                log.warn("Failed to decode message id=%s", messageId);
+            onDelivery(channel, queueName, receiver, getResponse.getEnvelope(), getResponse.getProps(), getResponse.getBody());
+        }
+    }
+
+    // the broker pushes up to receiver.prefetch() unacknowledged messages, which are handed to the receiving thread
+    private void consume(Channel channel, String queueName, Receiver receiver, Acknowledger acknowledger)
+    throws InterruptedException, IOException {
+        var deliveries = new LinkedBlockingQueue<Delivery>();  // writer: connection thread, reader: receiving thread
+        int prefetch = receiver.prefetch();
+        channel.basicQos(prefetch);
+        channel.basicConsume(queueName, false, (consumerTag, delivery) -> deliveries.add(delivery), consumerTag -> {
+            log.warn("Consumer %s of queue %s was cancelled", consumerTag, queueName);
+        });
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
+            receiver.settle(acknowledger);
+            if (receiver.prefetch() != prefetch) {  // follow the adaptive receive limit
+                prefetch = receiver.prefetch();
+                channel.basicQos(prefetch);
+            }
+            if (!receiver.canReceiveMore()) {
+                receiver.awaitCapacity(Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                continue;
+            }
+            // time out now and then to settle completed messages
+            var delivery = deliveries.poll(Deliveries.FLOW_CONTROL_WAIT_NANOS, TimeUnit.NANOSECONDS);
+            if (delivery != null) {
+                onDelivery(channel, queueName, receiver, delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+            }
+        }
+    }
+
+    private void onDelivery(Channel channel, String queueName, Receiver receiver, Envelope envelope, AMQP.BasicProperties props,
+            byte[] body) throws InterruptedException, IOException {
+        long deliveryTag = envelope.getDeliveryTag();
+        String messageId = props.getMessageId();
+        UUID internalKey = UUID.randomUUID();
+        var headers = headers(props);
+        Optional<InternalMessage> message = MessageUtils.decode(internalKey, messageId, body, headers);
+        if (message.isPresent()) {
+            receiver.onReceive(message.get(), deliveryTag);
+            return;
+        }
+        log.warn("Failed to decode message id=%s, moving it to the dead-letter queue", messageId);
+        try {
+            sendBatch(List.of(DeadLetters.undecodable(queueName, messageId, body, headers)));  // confirmed
+            channel.basicAck(deliveryTag, false);
+        } catch (IOException | TimeoutException e) {  // e.g. not confirmed, the receiver must go on
+            log.warn("Failed to dead-letter message id=%s, requeueing it: %s", messageId, e);
+            channel.basicNack(deliveryTag, false, true);
+        }
+    }
+
+    @Override
+    public int replayDeadLetters(String queueName, int max) throws InterruptedException, IOException, TimeoutException {
+        var channel = connectionPool.get().createChannel();
+        try {
+            int replayed = 0;
+            while (replayed < max) {
+                var batch = new ArrayList<Outgoing>();
+                long lastDeliveryTag = -1;
+                GetResponse response;
+                while (batch.size() < Math.min(REPLAY_BATCH_SIZE, max - replayed)
+                        && (response = channel.basicGet(DeadLetters.queueName(queueName), false)) != null) {
+                    var props = response.getProps();
+                    batch.add(DeadLetters.revive(queueName, props.getMessageId(), response.getBody(), headers(props)));
+                    lastDeliveryTag = response.getEnvelope().getDeliveryTag();
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                sendBatch(batch);  // confirmed before the dead letters are acknowledged, at-least-once
+                channel.basicAck(lastDeliveryTag, true);
+                replayed += batch.size();
+            }
+            return replayed;
+        } finally {
+            channel.close();  // a failed batch goes back to the dead-letter queue
         }
     }
+
+    // our own headers, the broker adds others (e.g. x-death) and delivers string values as LongStrings
+    private static Map<String, String> headers(AMQP.BasicProperties props) {
+        if (props.getHeaders() == null) {
+            return Map.of();
+        }
+        var headers = new HashMap<String, String>();
+        props.getHeaders().forEach((key, value) -> {
+            if (key.startsWith("za-") && value != null) {
+                headers.put(key, value.toString());
+            }
+        });
+        return headers;
+    }
 }
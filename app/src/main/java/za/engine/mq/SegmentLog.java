@@ -0,0 +1,305 @@
+package za.engine.mq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import za.engine.MessageUtils;
+import za.lib.Logger;
+
+/**
+ * One durable queue, stored as memory-mapped append-only segment files
+ *
+ * Every segment file is named after the offset (record number) of its first record and is mapped as a whole.
+ * Appending is a single write into the mapped tail segment: the payload first, then its length with release
+ * semantics, so the consumer never sees a partially written record (a zero length means nothing was appended
+ * there yet). A record that does not fit the tail segment ends it with an end marker and starts a new segment.
+ *
+ * The consumer reads records straight out of the mapped segments and commits the offset of its first
+ * unacknowledged record to a mapped offset file. Segments that lie entirely below the committed offset are
+ * deleted. After a restart the consumer resumes at the committed offset, so unacknowledged messages are
+ * delivered again. Mapped writes survive a crash of the process, but only reach the disk for sure once a
+ * segment is rotated or the log is closed.
+ *
+ * record format: <int length><long append time ms><int message id length><message id><int headers length><headers>
+ * <message>, length covers everything after it, records are padded to 4 bytes so every length can be accessed
+ * atomically
+ */
+final class SegmentLog implements Closeable {
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String OFFSET_FILE_NAME = "consumer.offset";
+
+    private static final int END_OF_SEGMENT = -1;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Logger log = Logger.verbose(getClass());
+    private final Path directory;
+    private final int segmentBytes;
+    private final MappedByteBuffer committedOffset;  // writer: consumer thread
+    private final List<Segment> segments = new ArrayList<>();  // oldest first, guarded by this
+    private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+
+    // writer state, guarded by this
+    private Segment tail;
+    private int writePosition;
+    private volatile long nextOffset;  // offset of the next appended record, read without the lock by waiters
+    private boolean consumed;  // a queue has one consumer at a time
+
+    record Segment(long baseOffset, Path path, MappedByteBuffer buffer) {}
+
+    /**
+     * A record as stored in the log
+     */
+    record Record(long offset, long appendMillis, String messageId, byte[] message, Map<String, String> headers) {}
+
+    SegmentLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try (var file = FileChannel.open(directory.resolve(OFFSET_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.committedOffset = file.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        List<Long> baseOffsets;
+        try (Stream<Path> files = Files.list(directory)) {
+            baseOffsets = files
+                .map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .toList();
+        }
+        for (long baseOffset : baseOffsets) {
+            segments.add(mapSegment(baseOffset));
+        }
+        if (segments.isEmpty()) {
+            segments.add(mapSegment(committedOffset()));
+        }
+        recoverTail();
+    }
+
+    /**
+     * Appends a record with one write into the mapped tail segment (thread-safe)
+     */
+    synchronized void append(String messageId, byte[] body, Map<String, String> headers) throws IOException {
+        var id = messageId.getBytes(StandardCharsets.UTF_8);
+        var encodedHeaders = MessageUtils.encodeHeaders(headers);
+        int length = Long.BYTES + 2 * Integer.BYTES + id.length + encodedHeaders.length + body.length;
+        int size = recordSize(length);
+        if (size > segmentBytes - Integer.BYTES) {  // room for the end marker
+            throw new IOException("Message of " + length + " bytes does not fit a segment of " + segmentBytes + " bytes");
+        }
+        if (writePosition + size > segmentBytes - Integer.BYTES) {
+            rotate();
+        }
+        var buffer = tail.buffer();  // absolute writes only, readers of the same buffer are not disturbed
+        int position = writePosition + Integer.BYTES;
+        buffer.putLong(position, System.currentTimeMillis());
+        position += Long.BYTES;
+        buffer.putInt(position, id.length);
+        buffer.put(position + Integer.BYTES, id);
+        position += Integer.BYTES + id.length;
+        buffer.putInt(position, encodedHeaders.length);
+        buffer.put(position + Integer.BYTES, encodedHeaders);
+        position += Integer.BYTES + encodedHeaders.length;
+        buffer.put(position, body);
+        INT.setRelease(buffer, writePosition, length);  // publishes the record
+        writePosition += size;
+        nextOffset++;
+        for (var waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Opens the consumer at the committed offset, there is one consumer at a time
+     */
+    synchronized Cursor openCursor() {
+        if (consumed) {
+            throw new IllegalStateException("Log " + directory + " already has a consumer");
+        }
+        consumed = true;
+        long offset = Math.max(committedOffset(), segments.get(0).baseOffset());
+        Segment segment = segments.get(0);
+        for (var s : segments) {
+            if (s.baseOffset() <= offset) {
+                segment = s;
+            }
+        }
+        var cursor = new Cursor(segment);
+        while (cursor.offset < offset && cursor.next() != null) {
+            // skip acknowledged records
+        }
+        return cursor;
+    }
+
+    synchronized void closeCursor() {
+        consumed = false;
+    }
+
+    /**
+     * Parks until a record is appended at or after the offset, or the timeout passed
+     */
+    void awaitAppend(long offset, long timeoutNanos) {  // thread-safe
+        var thread = Thread.currentThread();
+        waiters.add(thread);
+        try {
+            if (nextOffset <= offset) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            waiters.remove(thread);
+        }
+    }
+
+    /**
+     * Persists the consumer offset and deletes the segments below it (consumer thread only)
+     *
+     * @param offset every record before this one was acknowledged
+     */
+    void commit(long offset) {
+        committedOffset.putLong(0, offset);
+        synchronized (this) {
+            while (segments.size() > 1 && segments.get(1).baseOffset() <= offset) {
+                var segment = segments.remove(0);
+                try {
+                    Files.deleteIfExists(segment.path());  // the mapping stays valid until it is collected
+                } catch (IOException e) {
+                    log.warn("Failed to delete segment %s: %s", segment.path(), e);
+                }
+            }
+        }
+    }
+
+    long committedOffset() {
+        return committedOffset.getLong(0);
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        tail.buffer().force();
+        committedOffset.force();
+    }
+
+    /**
+     * Reads records in order straight out of the mapped segments (consumer thread only)
+     */
+    final class Cursor {
+        private Segment segment;
+        private int position;
+        private long offset;
+
+        private Cursor(Segment segment) {
+            this.segment = segment;
+            this.offset = segment.baseOffset();
+        }
+
+        /**
+         * @return offset of the next record
+         */
+        long offset() {
+            return offset;
+        }
+
+        /**
+         * @return the next record, or null if none was appended yet
+         */
+        Record next() {
+            while (true) {
+                var buffer = segment.buffer();
+                int length = (int) INT.getAcquire(buffer, position);
+                if (length == 0) {
+                    return null;
+                }
+                if (length == END_OF_SEGMENT) {
+                    segment = segmentAfter(segment);  // the writer adds the next segment before ending this one
+                    position = 0;
+                    continue;
+                }
+                var record = buffer.slice(position + Integer.BYTES, length);
+                long appendMillis = record.getLong();
+                var id = new byte[record.getInt()];
+                record.get(id);
+                int headersLength = record.getInt();
+                var headers = MessageUtils.decodeHeaders(record.slice(record.position(), headersLength));
+                record.position(record.position() + headersLength);
+                var body = new byte[record.remaining()];
+                record.get(body);
+                position += recordSize(length);
+                return new Record(offset++, appendMillis, new String(id, StandardCharsets.UTF_8), body, headers);
+            }
+        }
+    }
+
+    private synchronized Segment segmentAfter(Segment segment) {
+        for (var s : segments) {
+            if (s.baseOffset() > segment.baseOffset()) {
+                return s;
+            }
+        }
+        throw new IllegalStateException("Missing the segment after " + segment.path());
+    }
+
+    // finds the end of the tail segment's records, a record without its length was never published
+    private void recoverTail() throws IOException {
+        tail = segments.get(segments.size() - 1);
+        var buffer = tail.buffer();
+        long offset = tail.baseOffset();
+        int position = 0;
+        while (true) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length == END_OF_SEGMENT) {  // the next segment went missing, start it again
+                writePosition = position;
+                nextOffset = offset;
+                rotate();
+                return;
+            }
+            position += recordSize(length);
+            offset++;
+        }
+        writePosition = position;
+        nextOffset = offset;
+    }
+
+    private void rotate() throws IOException {  // guarded by this
+        var next = mapSegment(nextOffset);
+        segments.add(next);
+        INT.setRelease(tail.buffer(), writePosition, END_OF_SEGMENT);
+        tail.buffer().force();
+        tail = next;
+        writePosition = 0;
+    }
+
+    private static int recordSize(int length) {
+        return (Integer.BYTES + length + 3) & ~3;
+    }
+
+    private Segment mapSegment(long baseOffset) throws IOException {
+        var path = directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+        try (var file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(baseOffset, path, file.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package za.engine.mq;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import za.engine.MessageUtils;
+import za.lib.Logger;
+
+/**
+ * Broker-less persistent message client, every queue is a memory-mapped segment log on local disk
+ *
+ * Sending appends to the queue's log. Receiving reads the log in order from the committed consumer offset, and
+ * the offset moves past a message once it and every message before it were settled, so messages that were not
+ * acknowledged before a restart are delivered again. A nack with requeue appends the message to the log again.
+ * Both receive modes behave the same. Delayed messages wait in delay logs of their own, see SegmentLogStore. Messages that can not be
+ * decoded are appended to the dead-letter log of their queue. If that fails, the offset stays at the message and
+ * receiving pauses until a retry succeeds.
+ */
+public class SegmentLogMessageClient implements MessageClient {
+    private static final long DEAD_LETTER_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Logger log = Logger.verbose(getClass());
+    private final SegmentLogStore store;
+
+    public SegmentLogMessageClient(SegmentLogStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void send(String queueName, String message) throws IOException, TimeoutException {
+        store.log(queueName).append(UUID.randomUUID().toString(), message.getBytes(StandardCharsets.UTF_8), Map.of());
+    }
+
+    @Override
+    public void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException {
+        DelayTiers.check(batch);
+        for (var outgoing : batch) {
+            var log = outgoing.delayMs() > 0 ? store.delayLog(outgoing.queueName(), outgoing.delayMs()) : store.log(outgoing.queueName());
+            log.append(outgoing.messageId(), outgoing.message(), outgoing.headers());
+        }
+    }
+
+    @Override
+    public void receiveBlocking(String queueName, ReceiveMode mode, Receiver receiver)
+    throws InterruptedException, IOException, TimeoutException {
+        var segmentLog = store.log(queueName);
+        var cursor = segmentLog.openCursor();
+        NavigableMap<Long, SegmentLog.Record> unacked = new TreeMap<>();  // by delivery tag (offset + 1), receiving thread only
+        Deque<SegmentLog.Record> undecodable = new ArrayDeque<>();  // failed to dead-letter, receiving thread only
+        Acknowledger acknowledger = new Acknowledger() {
+            @Override
+            public void ack(long deliveryTag, boolean multiple) {
+                Deliveries.settled(unacked, deliveryTag, multiple).clear();
+                commit(segmentLog, cursor, unacked, undecodable);
+            }
+
+            @Override
+            public void nack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+                var settled = Deliveries.settled(unacked, deliveryTag, multiple);
+                if (requeue) {
+                    for (var record : settled.values()) {
+                        segmentLog.append(record.messageId(), record.message(), record.headers());
+                    }
+                }
+                settled.clear();
+                commit(segmentLog, cursor, unacked, undecodable);
+            }
+        };
+        long retryAtNanos = 0;
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                receiver.settle(acknowledger);
+                if (!undecodable.isEmpty()) {
+                    if (System.nanoTime() - retryAtNanos < 0) {
+                        TimeUnit.NANOSECONDS.sleep(Deliveries.FLOW_CONTROL_WAIT_NANOS);  // still settles meanwhile
+                        continue;
+                    }
+                    if (!deadLetter(queueName, undecodable.peek())) {
+                        retryAtNanos = System.nanoTime() + DEAD_LETTER_RETRY_NANOS;
+                        continue;
+                    }
+                    undecodable.clear();
+                    commit(segmentLog, cursor, unacked, undecodable);
+                }
+                if (!receiver.canReceiveMore()) {
+                    receiver.awaitCapacity(Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                    continue;
+                }
+                var record = cursor.next();
+                if (record == null) {
+                    segmentLog.awaitAppend(cursor.offset(), Deliveries.FLOW_CONTROL_WAIT_NANOS);
+                    continue;
+                }
+                long deliveryTag = record.offset() + 1;
+                var message = MessageUtils.decode(UUID.randomUUID(), record.messageId(), record.message(), record.headers());
+                if (message.isPresent()) {
+                    unacked.put(deliveryTag, record);
+                    receiver.onReceive(message.get(), deliveryTag);
+                } else {
+                    log.warn("Failed to decode message id=%s, moving it to the dead-letter queue", record.messageId());
+                    if (!deadLetter(queueName, record)) {
+                        undecodable.add(record);  // the offset must not move past it
+                        retryAtNanos = System.nanoTime() + DEAD_LETTER_RETRY_NANOS;
+                        continue;
+                    }
+                    commit(segmentLog, cursor, unacked, undecodable);
+                }
+            }
+        } finally {
+            try {
+                receiver.flush(acknowledger);
+            } finally {
+                segmentLog.closeCursor();  // unsettled messages stay after the committed offset
+            }
+        }
+    }
+
+    /**
+     * Replays from the committed offset of the dead-letter log, which must not be received from at the same time
+     */
+    @Override
+    public int replayDeadLetters(String queueName, int max) throws IOException {
+        var deadLetters = store.log(DeadLetters.queueName(queueName));
+        var cursor = deadLetters.openCursor();
+        try {
+            int replayed = 0;
+            SegmentLog.Record record;
+            while (replayed < max && (record = cursor.next()) != null) {
+                var revived = DeadLetters.revive(queueName, record.messageId(), record.message(), record.headers());
+                store.log(revived.queueName()).append(revived.messageId(), revived.message(), revived.headers());
+                deadLetters.commit(record.offset() + 1);
+                replayed++;
+            }
+            return replayed;
+        } finally {
+            deadLetters.closeCursor();
+        }
+    }
+
+    // false if it could not be dead-lettered, the receiver goes on and retries it
+    private boolean deadLetter(String queueName, SegmentLog.Record record) {
+        try {
+            sendBatch(List.of(DeadLetters.undecodable(queueName, record.messageId(), record.message(), record.headers())));
+            return true;
+        } catch (IOException | UncheckedIOException | TimeoutException e) {  // e.g. the dead-letter log can not be opened
+            log.warn("Failed to dead-letter message id=%s, retrying it: %s", record.messageId(), e);
+            return false;
+        }
+    }
+
+    // moves the committed offset up to the first unsettled message, or the first one that still has to be dead-lettered
+    private static void commit(SegmentLog segmentLog, SegmentLog.Cursor cursor, NavigableMap<Long, SegmentLog.Record> unacked,
+            Deque<SegmentLog.Record> undecodable) {
+        long offset = unacked.isEmpty() ? cursor.offset() : unacked.firstKey() - 1;
+        if (!undecodable.isEmpty()) {
+            offset = Math.min(offset, undecodable.peek().offset());
+        }
+        if (offset > segmentLog.committedOffset()) {
+            segmentLog.commit(offset);
+        }
+    }
+}
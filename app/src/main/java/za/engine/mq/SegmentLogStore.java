@@ -0,0 +1,209 @@
+package za.engine.mq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import za.lib.Logger;
+
+/**
+ * Durable queues of one engine, each in its own directory of memory-mapped segment files (see SegmentLog)
+ *
+ * Shared by the SegmentLogMessageClients of an engine, like a LocalBroker.
+ *
+ * Delayed messages are appended to a delay log per queue and delay tier (see DelayTiers). All messages of a delay
+ * log wait equally long, so a mover thread only has to watch the oldest message of every delay log, and appends
+ * it to its queue once it is due. Delay logs are durable like queues, a restart resumes moving them. A delay log that
+ * fails to move (e.g. its queue can not be written) is retried with a backoff, the others keep moving meanwhile.
+ */
+public final class SegmentLogStore implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String DELAY_INFIX = ".delay.";
+    private static final long MAX_MOVER_WAIT_MS = 100;  // how late a message of a new delay log may be moved
+    private static final long MOVER_RETRY_BACKOFF_MS = 1000;  // after a delay log failed to move, doubles per failure
+    private static final long MAX_MOVER_RETRY_BACKOFF_MS = 60_000;
+
+    private final Logger log = Logger.verbose(getClass());
+
+    private final Path root;
+    private final int segmentBytes;
+    private final Map<String, SegmentLog> logs = new ConcurrentHashMap<>();
+    private final Map<String, DelayLog> delayLogs = new ConcurrentHashMap<>();
+    private Thread mover;  // guarded by this, started by the first delay log
+
+    // the mover is the consumer of a delay log, only the mover thread touches cursor and due
+    private static final class DelayLog {
+        private final SegmentLog log;
+        private final String queueName;
+        private final long tierMs;
+        private SegmentLog.Cursor cursor;
+        private SegmentLog.Record due;  // oldest record that was not moved yet
+        private int failures;  // in a row
+        private long retryAtMillis;  // not moved before, after a failure
+
+        private DelayLog(SegmentLog log, String queueName, long tierMs) {
+            this.log = log;
+            this.queueName = queueName;
+            this.tierMs = tierMs;
+        }
+    }
+
+    public SegmentLogStore(Path root) {
+        this(root, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes size of every segment file, also bounds the size of a message
+     */
+    public SegmentLogStore(Path root, int segmentBytes) {
+        if (segmentBytes < 64) {
+            throw new IllegalArgumentException("Must have segmentBytes >= 64");
+        }
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        resumeDelayLogs();
+    }
+
+    SegmentLog log(String queueName) {  // thread-safe
+        if (queueName.isEmpty() || queueName.contains("/") || queueName.contains("\\") || queueName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid queue name " + queueName);
+        }
+        return logs.computeIfAbsent(queueName, name -> {
+            try {
+                return new SegmentLog(root.resolve(name), segmentBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open the log of queue " + name, e);
+            }
+        });
+    }
+
+    /**
+     * @return the log that holds messages for the queue until the delay passed, rounded up to its tier
+     */
+    SegmentLog delayLog(String queueName, long delayMs) {  // thread-safe
+        long tierMs = DelayTiers.tierMs(delayMs);
+        var name = DelayTiers.queueName(queueName, tierMs);
+        return delayLogs.computeIfAbsent(name, key -> {
+            var delayLog = new DelayLog(log(key), queueName, tierMs);
+            startMover();
+            return delayLog;
+        }).log;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mover != null) {
+                mover.interrupt();
+                try {
+                    mover.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        logs.values().forEach(SegmentLog::close);
+    }
+
+    // delay logs left over from the last run still have messages to move
+    private void resumeDelayLogs() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> dirs = Files.list(root)) {
+            dirs.map(dir -> dir.getFileName().toString()).forEach(name -> {
+                int infix = name.lastIndexOf(DELAY_INFIX);
+                if (infix > 0) {
+                    delayLog(name.substring(0, infix), Long.parseLong(name.substring(infix + DELAY_INFIX.length())));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list the queues in " + root, e);
+        }
+    }
+
+    private synchronized void startMover() {
+        if (mover == null) {
+            mover = new Thread(this::runMover, "SegmentLogStore_DelayMover");
+            mover.setDaemon(true);
+            mover.start();
+        }
+    }
+
+    private void runMover() {  // mover thread only
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long waitMs = MAX_MOVER_WAIT_MS;
+                for (var delayLog : delayLogs.values()) {
+                    waitMs = Math.min(waitMs, tryMoveDue(delayLog));
+                }
+                Thread.sleep(Math.max(waitMs, 1));
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            for (var delayLog : delayLogs.values()) {
+                if (delayLog.cursor != null) {
+                    delayLog.log.closeCursor();
+                }
+            }
+        }
+    }
+
+    /**
+     * Like moveDue(), but a failure only backs off this delay log, its messages stay in it until they were moved
+     *
+     * @return ms until the delay log should be looked at again
+     */
+    private long tryMoveDue(DelayLog delayLog) {  // mover thread only
+        long now = System.currentTimeMillis();
+        if (now < delayLog.retryAtMillis) {
+            return delayLog.retryAtMillis - now;
+        }
+        try {
+            long waitMs = moveDue(delayLog);
+            delayLog.failures = 0;
+            return waitMs;
+        } catch (IOException | RuntimeException e) {
+            int doublings = Math.min(delayLog.failures++, 6);
+            long backoffMs = Math.min(MOVER_RETRY_BACKOFF_MS << doublings, MAX_MOVER_RETRY_BACKOFF_MS);
+            delayLog.retryAtMillis = now + backoffMs;
+            log.warn("Failed to move delayed messages to %s, trying again in %d ms: %s", delayLog.queueName, backoffMs, e);
+            return backoffMs;
+        }
+    }
+
+    /**
+     * Moves every due message of a delay log to its queue
+     *
+     * @return ms until the next message is due
+     */
+    private long moveDue(DelayLog delayLog) throws IOException {  // mover thread only
+        if (delayLog.cursor == null) {
+            delayLog.cursor = delayLog.log.openCursor();
+        }
+        var queue = log(delayLog.queueName);
+        while (true) {
+            if (delayLog.due == null) {
+                delayLog.due = delayLog.cursor.next();
+                if (delayLog.due == null) {
+                    return MAX_MOVER_WAIT_MS;
+                }
+            }
+            var record = delayLog.due;
+            long remainingMs = record.appendMillis() + delayLog.tierMs - System.currentTimeMillis();
+            if (remainingMs > 0) {
+                return remainingMs;
+            }
+            queue.append(record.messageId(), record.message(), record.headers());
+            delayLog.log.commit(record.offset() + 1);  // a crash in between moves it twice, at least once
+            delayLog.due = null;
+        }
+    }
+}
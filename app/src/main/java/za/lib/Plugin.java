@@ -1,16 +1,23 @@
 package za.lib;
 
+import java.time.Duration;
 import java.util.Map;
 import java.util.function.BiConsumer;
 
 /**
  * Single threaded engine interface
  * 
+ * Each plugin is pinned to one event loop, so its callbacks never run concurrently,
+ * even when the engine runs several event loops (--event-loops)
+ * 
  * Plugin design tips:
  * -  small (single-peer): Call http() in a loop (see lib.tools.AsyncRuntime)
  * -  large (multi-peer): Do not loop. Use in() and out() apis with only a few http() calls
  */
 public abstract class Plugin {
+    /** longest delay of in(channel, message, delay) */
+    public static final Duration MAX_DELAY = Duration.ofDays(1);
+
     private Config config_ = null;
    
     // only public for people who want to build their own engine
@@ -23,8 +30,24 @@ public abstract class Plugin {
             Map<String, Object> userSettings,
             BiConsumer<String, Object> in,
             BiConsumer<String, Object> out,
+            DelayedSender inLater,
             String id
-    ) {}
+    ) {
+        /**
+         * For engines without delayed messages, in(channel, message, delay) throws unless the delay is zero
+         */
+        public Config(Logger log, Registry registry, HttpClient http, Map<String, Object> userSettings,
+                BiConsumer<String, Object> in, BiConsumer<String, Object> out, String id) {
+            this(log, registry, http, userSettings, in, out, (channel, message, delay) -> {
+                throw new IllegalStateException("Must have an engine that supports delayed messages");
+            }, id);
+        }
+    }
+
+    @FunctionalInterface
+    public interface DelayedSender {
+        void send(String channel, Object message, Duration delay);
+    }
 
     public void onEnable() {}
 
@@ -50,6 +73,23 @@ public abstract class Plugin {
         config_.in().accept(channel, message);
     }
 
+    /**
+     * Like in(channel, message), but the message is delivered once the delay passed (or a bit later, the mq
+     * rounds delays up to a few fixed tiers), e.g. to process something again in 10 minutes without a hot loop
+     *
+     * @param delay at most MAX_DELAY
+     */
+    public void in(String channel, Object message, Duration delay) {
+        if (delay.isNegative() || delay.compareTo(MAX_DELAY) > 0) {
+            throw new IllegalArgumentException("Must have 0 <= delay <= " + MAX_DELAY + " but got " + delay);
+        }
+        if (delay.isZero()) {
+            in(channel, message);
+        } else {
+            config_.inLater().send(channel, message, delay);
+        }
+    }
+
     public void out(String channel, Object message) {
         config_.out().accept(channel, message);
     }
@@ -0,0 +1,34 @@
+package za.engine;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ChannelPatternTest {
+    @Test
+    public void testPlainChannelsMatchOnlyThemselves() {
+        var pattern = new ChannelPattern("crawl.fetch");
+        assertTrue(pattern.matches("crawl.fetch"));
+        assertFalse(pattern.matches("crawl-fetch"));
+        assertFalse(pattern.matches("crawl.fetch.page"));
+        assertFalse(pattern.isCatchAll());
+    }
+
+    @Test
+    public void testWildcardsMatchAnyCharacters() {
+        var pattern = new ChannelPattern("crawl.*.page");
+        assertTrue(pattern.matches("crawl.fetch.page"));
+        assertTrue(pattern.matches("crawl..page"));
+        assertFalse(pattern.matches("crawlXfetch.page"));
+        assertFalse(pattern.matches("crawl.fetch.pages"));
+        assertTrue(new ChannelPattern("*").isCatchAll());
+        assertTrue(new ChannelPattern("*").matches("anything"));
+    }
+
+    @Test
+    public void testEmptyPatternsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ChannelPattern(""));
+    }
+}
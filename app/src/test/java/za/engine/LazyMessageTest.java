@@ -0,0 +1,132 @@
+package za.engine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.codec.MessageCodec;
+import za.engine.codec.MessageCodecs;
+
+public class LazyMessageTest {
+    private static final Map<String, Object> BODY = Map.of("a", 1, "b", "two", "c", List.of(3, Map.of("d", 4)), "e", 5.5);
+
+    @Test
+    public void testFieldsAreReadWithoutDecodingTheBody() throws Exception {
+        for (var codec : List.of(MessageCodecs.JSON, MessageCodecs.CBOR)) {
+            var message = encoded(codec, BODY);
+            assertEquals(1, message.get("a"));
+            assertEquals(List.of(3, Map.of("d", 4)), message.get("c"));
+            assertEquals(5.5, message.get("e"));
+            assertNull(message.get("missing"));
+            assertTrue(message.containsKey("b"));
+            assertFalse(message.containsKey("missing"));
+            assertFalse(message.isDecoded(), codec.name());
+            assertEquals(BODY, message);
+            assertTrue(message.isDecoded());
+            assertEquals("two", message.get("b"));
+        }
+    }
+
+    @Test
+    public void testManyLookupsDecodeTheBody() throws Exception {
+        var body = new HashMap<String, Object>();
+        for (int i = 0; i <= LazyMessage.MAX_FIELD_LOOKUPS; i++) {
+            body.put("f" + i, i);
+        }
+        var message = encoded(MessageCodecs.JSON, body);
+        for (int i = 0; i < LazyMessage.MAX_FIELD_LOOKUPS; i++) {
+            assertEquals(i, message.get("f" + i));
+        }
+        assertFalse(message.isDecoded());
+        assertEquals(LazyMessage.MAX_FIELD_LOOKUPS, message.get("f" + LazyMessage.MAX_FIELD_LOOKUPS));
+        assertTrue(message.isDecoded());
+    }
+
+    @Test
+    public void testNullValues() {
+        var bytes = "{\"a\":null}".getBytes(StandardCharsets.UTF_8);
+        var message = LazyMessage.encoded("id", MessageCodecs.JSON, bytes, 0, bytes.length);
+        assertTrue(message.containsKey("a"));
+        assertNull(message.get("a"));
+        assertEquals(1, message.size());
+    }
+
+    @Test
+    public void testIsImmutable() throws Exception {
+        var message = encoded(MessageCodecs.JSON, BODY);
+        assertThrows(UnsupportedOperationException.class, () -> message.put("a", 2));
+        assertThrows(UnsupportedOperationException.class, () -> message.remove("a"));
+        assertThrows(UnsupportedOperationException.class, message::clear);
+        var decoded = LazyMessage.decoded("id", new HashMap<>(BODY));
+        assertThrows(UnsupportedOperationException.class, () -> decoded.put("a", 2));
+        assertEquals(BODY.hashCode(), message.hashCode());
+        assertEquals(BODY.hashCode(), decoded.hashCode());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNestedValuesAreImmutable() throws Exception {
+        var lookedUp = encoded(MessageCodecs.JSON, BODY);
+        var list = (List<Object>) lookedUp.get("c");
+        assertThrows(UnsupportedOperationException.class, () -> list.add(6));
+        var decoded = encoded(MessageCodecs.CBOR, BODY);
+        assertEquals(BODY, decoded);
+        var map = (Map<String, Object>) ((List<Object>) decoded.get("c")).get(1);
+        assertThrows(UnsupportedOperationException.class, () -> map.put("d", 7));
+        var nested = new ArrayList<Object>(List.of(3));
+        var copied = LazyMessage.decoded("id", Map.of("c", nested));
+        nested.add(4);
+        assertEquals(List.of(3), copied.get("c"), "the sender's list is copied");
+    }
+
+    @Test
+    public void testDuplicateFieldsReadTheSameWayDecodedOrNot() throws Exception {
+        var bytes = "{\"a\":1,\"b\":2,\"a\":3}".getBytes(StandardCharsets.UTF_8);
+        var lookedUp = LazyMessage.encoded("id", MessageCodecs.JSON, bytes, 0, bytes.length);
+        var decoded = LazyMessage.encoded("id", MessageCodecs.JSON, bytes, 0, bytes.length);
+        assertEquals(3, lookedUp.get("a"));
+        assertFalse(lookedUp.isDecoded());
+        assertEquals(2, decoded.size());
+        assertEquals(3, decoded.get("a"));
+    }
+
+    @Test
+    public void testBrokenBodiesFailOnAccess() {
+        var bytes = "{\"a\":1,\"b\":[".getBytes(StandardCharsets.UTF_8);
+        var message = LazyMessage.encoded("id", MessageCodecs.JSON, bytes, 0, bytes.length);
+        assertThrows(UncheckedIOException.class, () -> message.get("a"), "a later duplicate could follow, like with decode()");
+        assertThrows(UncheckedIOException.class, () -> message.get("c"));
+        assertThrows(UncheckedIOException.class, message::size);
+    }
+
+    @Test
+    public void testSubscribersShareTheMessage() throws Exception {
+        var registry = new RegistryImpl();
+        var received = new ArrayList<Object>();
+        registry.subscribe("chan", received::add);
+        registry.subscribe("chan", received::add);
+        var bytes = MessageCodecs.JSON.encode(BODY);
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("id"),
+            LazyMessage.encoded("id", MessageCodecs.JSON, bytes, 0, bytes.length));
+        MessageUtils.dispatch(registry, message);
+        assertEquals(2, received.size());
+        assertSame(message.serializableBody(), received.get(0));
+        assertSame(received.get(0), received.get(1));
+    }
+
+    private static LazyMessage encoded(MessageCodec codec, Map<String, Object> body) throws Exception {
+        var bytes = codec.encode(body);
+        var framed = new byte[bytes.length + 4];
+        System.arraycopy(bytes, 0, framed, 2, bytes.length);
+        return LazyMessage.encoded("id", codec, framed, 2, bytes.length);
+    }
+}
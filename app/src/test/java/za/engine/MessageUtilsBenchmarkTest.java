@@ -0,0 +1,131 @@
+package za.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import za.engine.codec.MessageCodec;
+import za.engine.codec.MessageCodecs;
+
+/**
+ * Size and CPU benchmark of the wire formats, version 1 (text, Base64 body) against version 2 (binary frame), and
+ * of the JSON codec against the CBOR codec in version 2 frames, and of the memory a decode allocates
+ *
+ * Results are printed to stdout (times are only meaningful relative to each other)
+ */
+public class MessageUtilsBenchmarkTest {
+    private static final int ITERATIONS = 20_000;
+    private static final int[] BODY_CHARS = {16, 256, 4096};
+    private static final int ALLOCATION_ITERATIONS = 200;
+    private static final int ALLOCATION_BODY_CHARS = 50 * 1024;
+    private static final ObjectMapper LEGACY_MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<String, Object>> LEGACY_BODY_TYPE = new TypeReference<>() {};
+
+    @Test
+    public void benchmarkWireFormats() {
+        for (int version : new int[] {MessageUtils.WIRE_V1, MessageUtils.WIRE_V2}) {  // warm up
+            run(message(256), version, MessageCodecs.JSON, ITERATIONS);
+        }
+        run(message(256), MessageUtils.WIRE_V2, MessageCodecs.CBOR, ITERATIONS);
+        System.out.println("MessageUtilsBenchmarkTest: body chars | v1 bytes | v2 bytes | v2 cbor bytes | v1 encode+decode (ns) | v2 encode+decode (ns) | v2 cbor encode+decode (ns)");
+        for (int chars : BODY_CHARS) {
+            var message = message(chars);
+            int v1Bytes = MessageUtils.encode(message, MessageUtils.WIRE_V1).get().length;
+            int v2Bytes = MessageUtils.encode(message, MessageUtils.WIRE_V2).get().length;
+            int cborBytes = MessageUtils.encode(message, MessageUtils.WIRE_V2, MessageCodecs.CBOR).get().length;
+            double v1Nanos = run(message, MessageUtils.WIRE_V1, MessageCodecs.JSON, ITERATIONS);
+            double v2Nanos = run(message, MessageUtils.WIRE_V2, MessageCodecs.JSON, ITERATIONS);
+            double cborNanos = run(message, MessageUtils.WIRE_V2, MessageCodecs.CBOR, ITERATIONS);
+            System.out.printf("MessageUtilsBenchmarkTest: %10d | %8d | %8d | %13d | %21.0f | %21.0f | %26.0f%n",
+                chars, v1Bytes, v2Bytes, cborBytes, v1Nanos, v2Nanos, cborNanos);
+        }
+    }
+
+    @Test
+    public void benchmarkDecodeAllocations() throws Exception {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var message = message(ALLOCATION_BODY_CHARS);
+        var v1 = MessageUtils.encode(message, MessageUtils.WIRE_V1).get();
+        var v2 = MessageUtils.encode(message, MessageUtils.WIRE_V2).get();
+        var cbor = MessageUtils.encode(message, MessageUtils.WIRE_V2, MessageCodecs.CBOR).get();
+        var cborHeaders = Map.of(InternalMessage.CODEC_HEADER, MessageCodecs.CBOR.name());
+        var rows = new LinkedHashMap<String, Callable<Object>>();
+        rows.put("v1 as String (before)", () -> decodeAsString(v1));
+        rows.put("v1", () -> MessageUtils.decode(message.key(), "id", v1, Map.of()).get());
+        rows.put("v2", () -> MessageUtils.decode(message.key(), "id", v2, Map.of()).get());
+        rows.put("v2 cbor", () -> MessageUtils.decode(message.key(), "id", cbor, cborHeaders).get());
+        rows.put("v2, 2 fields read", () -> readTwoFields(MessageUtils.decode(message.key(), "id", v2, Map.of()).get()));
+        rows.put("v2, all fields read", () -> ((Map<?, ?>) MessageUtils.decode(message.key(), "id", v2, Map.of()).get().serializableBody()).size());
+        var allocated = new LinkedHashMap<String, Long>();
+        for (int round = 0; round < 2; round++) {  // the first round warms up
+            for (var row : rows.entrySet()) {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+                    row.getValue().call();
+                }
+                allocated.put(row.getKey(), (threads.getCurrentThreadAllocatedBytes() - before) / ALLOCATION_ITERATIONS);
+            }
+        }
+        System.out.println("MessageUtilsBenchmarkTest: decode of a " + ALLOCATION_BODY_CHARS + " chars body | frame bytes | allocated bytes per decode");
+        var frameBytes = List.of(v1.length, v1.length, v2.length, cbor.length, v2.length, v2.length);
+        int i = 0;
+        for (var row : allocated.entrySet()) {
+            System.out.printf("MessageUtilsBenchmarkTest: %-21s | %11d | %26d%n", row.getKey(), frameBytes.get(i++), row.getValue());
+        }
+        assertTrue(allocated.get("v1") < allocated.get("v1 as String (before)"), allocated.toString());
+    }
+
+    private static Object readTwoFields(InternalMessage message) {
+        var body = (Map<?, ?>) message.serializableBody();
+        return body.get("user") + ":" + body.get("count");
+    }
+
+    // the version 1 decode before frames were parsed in place: the frame as a String, split into Strings, the
+    // Base64 body decoded into bytes, those into a String, and that String parsed
+    private static Object decodeAsString(byte[] frame) throws IOException {
+        var parts = new String(frame, StandardCharsets.UTF_8).split(":");
+        var body = new String(Base64.getDecoder().decode("dk".equals(parts[4]) ? parts[6] : parts[5]));
+        return LEGACY_MAPPER.readValue(body, LEGACY_BODY_TYPE);
+    }
+
+    // ns per encode and decode round trip
+    private static double run(InternalMessage message, int version, MessageCodec codec, int iterations) {
+        var headers = new HashMap<String, String>();
+        MessageCodecs.record(headers, codec);
+        int checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            var encoded = MessageUtils.encode(message, version, codec).get();
+            var decoded = MessageUtils.decode(message.key(), "id", encoded, headers).get();
+            checksum += ((Map<?, ?>) decoded.serializableBody()).size();
+        }
+        long nanos = System.nanoTime() - start;
+        assertEquals(iterations * ((Map<?, ?>) message.serializableBody()).size(), checksum);
+        return (double) nanos / iterations;
+    }
+
+    private static InternalMessage message(int bodyChars) {
+        var body = new LinkedHashMap<String, Object>();
+        body.put("_dk", "user");
+        body.put("user", "user-42");
+        body.put("count", 7);
+        body.put("text", "x".repeat(bodyChars));
+        return new InternalMessage(UUID.randomUUID(), "in", "bench-chan", "BenchPlugin_af749dc3", Optional.empty(), body);
+    }
+}
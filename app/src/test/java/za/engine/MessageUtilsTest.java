@@ -1,12 +1,19 @@
 package za.engine;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import org.junit.jupiter.api.Test;
 
+import za.engine.codec.MessageCodecs;
+
 public class MessageUtilsTest {
     private static final String CONTEXT = "in";
     private static final String CHANNEL = "unit-test-chan";
@@ -64,7 +71,142 @@ public class MessageUtilsTest {
 
     @Test
     public void testDecode() {
-        fail("need to write a test for MessageHandler#decode()");
+        var key = UUID.randomUUID();
+        var message = MessageUtils.decode(key, "id", "1:in:unit-test-chan:123:dk:dmFsdWU=:eyJrZXkiOiJ2YWx1ZSJ9").get();
+        assertEquals(key, message.key());
+        assertEquals(CONTEXT, message.context());
+        assertEquals(CHANNEL, message.channel());
+        assertEquals(PLUGIN_ID, message.pluginId());
+        assertEquals(Optional.of("id"), message.messageId());
+        assertEquals(Map.of("key", "value"), message.serializableBody());
+        assertEquals("id", ((za.lib.Message) message.serializableBody()).id());
+        assertEquals(Map.of(), message.headers());
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", "1:in:unit-test-chan:123:null").isEmpty());
+        assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", "3:in:unit-test-chan:123::e30=").isEmpty());
+        assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", "garbage").isEmpty());
+        assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", new byte[] {2, 0, 0}, Map.of()).isEmpty(), "truncated");
+    }
+
+    @Test
+    public void testVersion1BytesDecode() {
+        var map = Map.of("key", "value");
+        var bytes = MessageUtils.encode(new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), map), MessageUtils.WIRE_V1).get();
+        assertEquals("1:in:unit-test-chan:123:dk:dmFsdWU=:eyJrZXkiOiJ2YWx1ZSJ9", new String(bytes, StandardCharsets.UTF_8));
+        var message = MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of(InternalMessage.ATTEMPT_HEADER, "2")).get();
+        assertEquals(map, message.serializableBody());
+        assertEquals(2, message.attempt());
+    }
+
+    @Test
+    public void testMalformedDeliveryHeadersReadAsDefaults() {
+        var message = new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), Map.of(),
+            Map.of(InternalMessage.ATTEMPT_HEADER, "x", InternalMessage.DELAY_HEADER, "99999999999999999999"));
+        assertEquals(0, message.attempt());
+        assertEquals(0, message.delayMs());
+    }
+
+    @Test
+    public void testVersion2RoundTrip() {
+        var map = new LinkedHashMap<String, Object>();
+        map.put("k1", "v1");
+        map.put("_dk", "k2");
+        map.put("k2", "v\u00e9");
+        map.put("n", 42);
+        var bytes = MessageUtils.encode(new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), map), MessageUtils.WIRE_V2).get();
+        assertEquals(MessageUtils.WIRE_V2, bytes[0]);
+        var message = MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of()).get();
+        assertEquals(CONTEXT, message.context());
+        assertEquals(CHANNEL, message.channel());
+        assertEquals(PLUGIN_ID, message.pluginId());
+        assertEquals(map, message.serializableBody());
+        assertEquals(Optional.of(CHANNEL), MessageUtils.channel(bytes));
+    }
+
+    @Test
+    public void testVersion2DecodesFromTheBufferPosition() {
+        var bytes = MessageUtils.encode(new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), Map.of("a", 1)), MessageUtils.WIRE_V2).get();
+        var framed = ByteBuffer.allocate(bytes.length + 3).put(new byte[] {9, 9, 9}).put(bytes).flip().position(3);
+        assertEquals(Map.of("a", 1), MessageUtils.decode(UUID.randomUUID(), "id", framed, Map.of()).get().serializableBody());
+        var direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertEquals(Map.of("a", 1), MessageUtils.decode(UUID.randomUUID(), "id", direct, Map.of()).get().serializableBody());
+    }
+
+    @Test
+    public void testVersion1DecodesFromTheBufferPosition() {
+        var bytes = "1:in:chan:123:dk:dg==:eyJrIjoidiJ9".getBytes(StandardCharsets.UTF_8);
+        var framed = ByteBuffer.allocate(bytes.length + 3).put(new byte[] {9, 9, 9}).put(bytes).flip().position(3);
+        var message = MessageUtils.decode(UUID.randomUUID(), "id", framed, Map.of()).get();
+        assertEquals("chan", message.channel());
+        assertEquals("123", message.pluginId());
+        assertEquals(Map.of("k", "v"), message.serializableBody());
+        var direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertEquals(Map.of("k", "v"), MessageUtils.decode(UUID.randomUUID(), "id", direct, Map.of()).get().serializableBody());
+    }
+
+    @Test
+    public void testBrokenVersion1Frames() {
+        for (var frame : List.of("", "1", "1:in:chan:123:", "1:in:chan:123:null", "1:in:chan:123:dk:dg==", "2:in:chan:123::e30=",
+                "11:in:chan:123::e30=", "1:in:chan:123:xx::e30=")) {
+            assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", frame.getBytes(StandardCharsets.UTF_8), Map.of()).isEmpty(), frame);
+        }
+    }
+
+    @Test
+    public void testVersion2IsSmallerThanVersion1() {
+        var map = Map.of("key", "x".repeat(300));
+        var message = new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), map);
+        int v1 = MessageUtils.encode(message, MessageUtils.WIRE_V1).get().length;
+        int v2 = MessageUtils.encode(message, MessageUtils.WIRE_V2).get().length;
+        assertTrue(v2 < v1 * 0.8, "no Base64 of the body and data key, v1 " + v1 + " bytes, v2 " + v2 + " bytes");
+    }
+
+    @Test
+    public void testBodiesAreDecodedWithTheRecordedCodec() {
+        var map = Map.<String, Object>of("k", "v", "n", 7, "list", List.of(1, "two"));
+        var headers = Map.of(InternalMessage.CODEC_HEADER, MessageCodecs.CBOR.name());
+        var message = new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), map, headers);
+        for (int version : new int[] {MessageUtils.WIRE_V1, MessageUtils.WIRE_V2}) {
+            var bytes = MessageUtils.encode(message, version).get();
+            assertEquals(map, MessageUtils.decode(UUID.randomUUID(), "id", bytes, headers).get().serializableBody());
+            var notJson = MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of()).get();  // decoded on access
+            assertThrows(UncheckedIOException.class, () -> ((Map<?, ?>) notJson.serializableBody()).size(), "CBOR is not JSON");
+            assertTrue(MessageUtils.isUndecodable(notJson));
+        }
+        var json = MessageUtils.encode(message, MessageUtils.WIRE_V2, MessageCodecs.JSON).get();
+        assertEquals(map, MessageUtils.decode(UUID.randomUUID(), "id", json, Map.of()).get().serializableBody());
+    }
+
+    @Test
+    public void testUnknownCodecsAreNotDecoded() {
+        var bytes = MessageUtils.encode(new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), Map.of("a", 1)), MessageUtils.WIRE_V2).get();
+        assertTrue(MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of(InternalMessage.CODEC_HEADER, "nope")).isEmpty());
+    }
+
+    @Test
+    public void testDataKeysAreReadWithoutDecodingTheBody() {
+        var map = Map.of("_dk", "host", "host", "example.com", "url", "https://example.com/a");
+        var message = new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), map);
+        assertEquals(Optional.of("example.com"), message.dataKey());
+        for (int version : new int[] {MessageUtils.WIRE_V1, MessageUtils.WIRE_V2}) {
+            var bytes = MessageUtils.encode(message, version).get();
+            var decoded = MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of()).get();
+            assertEquals(Optional.of("example.com"), decoded.dataKey());
+            assertFalse(((LazyMessage) decoded.serializableBody()).isDecoded());
+        }
+        var noKey = new InternalMessage(UUID.randomUUID(), CONTEXT, CHANNEL, PLUGIN_ID, Optional.empty(), Map.of("a", 1, "b", 2));
+        assertEquals(Optional.empty(), noKey.dataKey());
+        var bytes = MessageUtils.encode(noKey, MessageUtils.WIRE_V2).get();
+        assertEquals(Optional.empty(), MessageUtils.decode(UUID.randomUUID(), "id", bytes, Map.of()).get().dataKey());
+    }
+
+    @Test
+    public void testChannelOfVersion1() {
+        assertEquals(Optional.of("chan"), MessageUtils.channel("1:in:chan:123::e30=".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Optional.empty(), MessageUtils.channel("garbage".getBytes(StandardCharsets.UTF_8)));
     }
 
     // it is hard for us humans to read base64
@@ -0,0 +1,82 @@
+package za.engine.codec;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+
+public class MessageCodecsTest {
+    @Test
+    public void testRoundTrips() throws IOException {
+        var body = Map.<String, Object>of("s", "v\u00e9", "n", 42, "d", 1.5, "b", true, "list", List.of(1, "two"),
+            "map", Map.of("k", "v"));
+        for (var codec : List.of(MessageCodecs.JSON, MessageCodecs.CBOR)) {
+            var bytes = codec.encode(body);
+            var framed = new byte[bytes.length + 2];
+            System.arraycopy(bytes, 0, framed, 1, bytes.length);
+            assertEquals(body, codec.decode(framed, 1, bytes.length), codec.name());
+        }
+    }
+
+    @Test
+    public void testDecodeField() throws IOException {
+        var body = Map.<String, Object>of("skip", Map.of("nested", List.of(1, 2)), "n", 42, "list", List.of("a"));
+        for (var codec : List.of(MessageCodecs.JSON, MessageCodecs.CBOR)) {
+            var bytes = codec.encode(body);
+            assertEquals(42, codec.decodeField(bytes, 0, bytes.length, "n"), codec.name());
+            assertEquals(List.of("a"), codec.decodeField(bytes, 0, bytes.length, "list"));
+            assertEquals(Map.of("nested", List.of(1, 2)), codec.decodeField(bytes, 0, bytes.length, "skip"));
+            assertSame(MessageCodec.NO_FIELD, codec.decodeField(bytes, 0, bytes.length, "nested"), "top-level fields only");
+        }
+    }
+
+    @Test
+    public void testCborIsSmallerThanJson() throws IOException {
+        var body = Map.<String, Object>of("count", 123456789, "ratio", 0.25, "flags", List.of(true, false, true));
+        assertTrue(MessageCodecs.CBOR.encode(body).length < MessageCodecs.JSON.encode(body).length);
+    }
+
+    @Test
+    public void testChannelRules() {
+        var codecs = MessageCodecs.parse("metrics.*=cbor, audit=json,*=cbor");
+        assertSame(MessageCodecs.CBOR, codecs.forChannel("metrics.cpu"));
+        assertSame(MessageCodecs.JSON, codecs.forChannel("audit"));
+        assertSame(MessageCodecs.CBOR, codecs.forChannel("other"));
+        assertSame(MessageCodecs.JSON, MessageCodecs.defaults().forChannel("other"));
+        assertSame(MessageCodecs.JSON, new MessageCodecs(List.of()).forChannel("other"));
+    }
+
+    @Test
+    public void testRecordedCodecWinsOverTheChannel() {
+        var codecs = MessageCodecs.parse("*=json");
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.empty(), Map.of(),
+            Map.of(InternalMessage.CODEC_HEADER, "cbor"));
+        assertSame(MessageCodecs.CBOR, codecs.forMessage(message));
+        assertSame(MessageCodecs.CBOR, MessageCodecs.recorded(message.headers()));
+        assertSame(MessageCodecs.JSON, MessageCodecs.recorded(Map.of()));
+    }
+
+    @Test
+    public void testJsonIsNotRecorded() {
+        var headers = new HashMap<String, String>();
+        MessageCodecs.record(headers, MessageCodecs.CBOR);
+        assertEquals(Map.of(InternalMessage.CODEC_HEADER, "cbor"), headers);
+        MessageCodecs.record(headers, MessageCodecs.JSON);
+        assertEquals(Map.of(), headers);
+    }
+
+    @Test
+    public void testUnknownCodecs() {
+        assertThrows(IllegalArgumentException.class, () -> MessageCodecs.byName("nope"));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodecs.parse("*=nope"));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodecs.parse("cbor"));
+    }
+}
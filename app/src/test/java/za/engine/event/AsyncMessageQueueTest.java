@@ -1,15 +1,30 @@
 package za.engine.event;
 
-import static org.junit.jupiter.api.Assertions.fail;
-import static org.mockito.Mockito.mock;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
 import za.engine.MessageListener;
+import za.engine.codec.MessageCodecs;
 import za.engine.event.lib.EventedMessageListener;
+import za.engine.mq.DeadLetters;
 import za.engine.mq.MockMessageClient;
 import za.engine.mq.MessageClient;
 
@@ -28,7 +43,522 @@ public class AsyncMessageQueueTest {
     }
 
     @Test
-    public void testSendingMessages() {
-        fail("unimplemented testSendingMessages for amq");
+    public void testReceiverPausesWhileTheReceiverHasNoCapacity() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var hasCapacity = new AtomicBoolean(false);
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        var amq = new AsyncMessageQueue(receiver, receiverQueueName, () -> client, hasCapacity::get, limiter, SendPolicy.defaults(),
+            MessageClient.ReceiveMode.PUSH);
+        amq.start();
+        try {
+            Thread.sleep(100);
+            verify(receiver, never()).onReceive(any());
+            hasCapacity.set(true);
+            verify(receiver, timeout(1000)).onReceive(message);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testReceiverResumesOnceAMessageCompletes() throws InterruptedException {
+        var client = new MockMessageClient();
+        var first = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("first"), Map.of());
+        var second = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("second"), Map.of());
+        client.addMockReceivableMessage(first);
+        client.addMockReceivableMessage(second);
+        var limiter = new ReceiveLimiter(1, 1, 1, () -> 0.0);
+        var amq = new AsyncMessageQueue(receiver, receiverQueueName, () -> client, () -> true, limiter, SendPolicy.defaults(),
+            MessageClient.ReceiveMode.PUSH);
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(first);
+            Thread.sleep(50);
+            verify(receiver, never()).onReceive(second);
+            amq.markReceived(first.key(), true);
+            verify(receiver, timeout(1000)).onReceive(second);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testCompletedMessagesReportTheirLatencyToTheLimiter() {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var limiter = mock(ReceiveLimiter.class);
+        when(limiter.limit()).thenReturn(10);
+        var amq = new AsyncMessageQueue(receiver, receiverQueueName, () -> client, () -> true, limiter, SendPolicy.defaults(),
+            MessageClient.ReceiveMode.PUSH);
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            assertEquals(1, amq.getInFlightMessages());
+            amq.retain(message.key(), 1);  // delivered to two event loops
+            amq.markReceived(message.key(), true);
+            verify(limiter, never()).onComplete(anyLong(), anyInt(), anyLong());
+            amq.markReceived(message.key(), true);
+            verify(limiter, times(1)).onComplete(anyLong(), eq(1), anyLong());
+            assertEquals(0, amq.getInFlightMessages());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testMessagesAreAcknowledgedOnlyAfterCompletion() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var amq = sender(client, SendPolicy.defaults());
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            Thread.sleep(InFlightTable.ACK_INTERVAL_MS * 2);
+            assertTrue(client.getAcked().isEmpty(), "not acknowledged before it was handled");
+            assertEquals(1, amq.getUnsettledMessages());
+            amq.markReceived(message.key(), true);
+            awaitSettled(client.getAcked(), 1, 1000);  // within the ack interval
+            assertEquals(0, amq.getUnsettledMessages());
+            assertTrue(client.getNacked().isEmpty());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testFailedMessagesAreRequeued() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var amq = sender(client, SendPolicy.defaults());
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            amq.markReceived(message.key(), false);
+            awaitSettled(client.getNacked(), 1, 1000);
+            verify(receiver, timeout(1000).times(2)).onReceive(message);  // redelivered
+            amq.markReceived(message.key(), true);
+            awaitSettled(client.getAcked(), 1, 1000);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testFailedMessagesAreRetriedWithBackoff() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var amq = retrying(client, new RetryPolicy(3, 1000, 60_000));
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            amq.markReceived(message.key(), false);
+            awaitSettled(client.getAcked(), 1, 1000);  // republished, so the failed delivery is done
+            assertTrue(client.getNacked().isEmpty());
+            var retry = client.getSentBatchMessages().get(0);
+            assertEquals(receiverQueueName, retry.queueName());
+            assertEquals("messageId", retry.messageId());
+            assertEquals("1", retry.headers().get(InternalMessage.ATTEMPT_HEADER));
+            assertEquals(1000, retry.delayMs());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testMessagesAreDeadLetteredAfterMaxAttempts() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of(),
+            Map.of(InternalMessage.ATTEMPT_HEADER, "2"));
+        client.addMockReceivableMessage(message);
+        var amq = retrying(client, new RetryPolicy(3, 1000, 60_000));
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            amq.markFailed(message.key(), "java.lang.RuntimeException: boom");
+            awaitSettled(client.getAcked(), 1, 1000);
+            assertTrue(client.getNacked().isEmpty());
+            var deadLetter = client.getSentBatchMessages().get(0);
+            assertEquals(DeadLetters.queueName(receiverQueueName), deadLetter.queueName());
+            assertEquals("messageId", deadLetter.messageId());
+            assertEquals(0, deadLetter.delayMs());
+            assertEquals(Map.of(
+                InternalMessage.ATTEMPT_HEADER, "3",
+                DeadLetters.REASON_HEADER, "java.lang.RuntimeException: boom",
+                DeadLetters.ORIGIN_QUEUE_HEADER, receiverQueueName,
+                DeadLetters.ORIGIN_CHANNEL_HEADER, "chan"), deadLetter.headers());
+            Thread.sleep(50);
+            verify(receiver, times(1)).onReceive(message);  // not requeued
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testUndecodableBodiesAreDeadLetteredAtOnce() throws InterruptedException {
+        var client = new MockMessageClient();
+        var cbor = MessageUtils.encode(message(0), MessageUtils.WIRE_V2, MessageCodecs.CBOR).get();
+        var message = MessageUtils.decode(UUID.randomUUID(), "messageId", cbor, Map.of()).get();  // not recorded
+        client.addMockReceivableMessage(message);
+        var amq = retrying(client, new RetryPolicy(3, 1000, 60_000));
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            amq.markFailed(message.key(), "java.io.UncheckedIOException: Failed to decode message messageId");
+            awaitSettled(client.getAcked(), 1, 1000);
+            var deadLetter = client.getSentBatchMessages().get(0);
+            assertEquals(DeadLetters.queueName(receiverQueueName), deadLetter.queueName());
+            assertEquals("1", deadLetter.headers().get(InternalMessage.ATTEMPT_HEADER));
+            var body = MessageUtils.decode(UUID.randomUUID(), "messageId", deadLetter.message(),
+                Map.of(InternalMessage.CODEC_HEADER, "cbor")).get().serializableBody();
+            assertEquals(message(0).serializableBody(), body, "the body is sent on as it was received");
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testSendingMessages() throws InterruptedException {
+        var client = new MockMessageClient();
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 100, 5));
+        amq.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                amq.sendAsync(message(i));
+            }
+            // a partial batch is sent once the first message lingered for 5ms, not after seconds
+            awaitSent(client, 3, 1000);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(MessageUtils.encode(message(i)).get(), client.getSentMessages().get(i));
+            }
+            var ids = client.getSentBatchMessages().stream().map(MessageClient.Outgoing::messageId).distinct().toList();
+            assertEquals(3, ids.size(), "every message has its own message id");
+            assertFalse(ids.contains(null));
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testSendingVersion2Frames() throws InterruptedException {
+        var client = new MockMessageClient();
+        var amq = sender(client, SendPolicy.defaults().withWireVersion(MessageUtils.WIRE_V2));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            awaitSent(client, 1, 1000);
+            var sent = client.getSentBatchMessages().get(0);
+            assertEquals(MessageUtils.WIRE_V2, sent.message()[0]);
+            var decoded = MessageUtils.decode(UUID.randomUUID(), sent.messageId(), sent.message(), sent.headers()).get();
+            assertEquals(message(0).serializableBody(), decoded.serializableBody());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testSendingWithTheCodecOfTheChannel() throws InterruptedException {
+        var client = new MockMessageClient();
+        var amq = sender(client, SendPolicy.defaults().withCodecs(MessageCodecs.parse("ch*=cbor,*=json")));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            amq.sendAsync(new InternalMessage(UUID.randomUUID(), "out", "other", "pluginId", Optional.empty(), Map.of("i", 1)));
+            awaitSent(client, 2, 1000);
+            var cbor = client.getSentBatchMessages().get(0);
+            assertEquals("cbor", cbor.headers().get(InternalMessage.CODEC_HEADER));
+            var decoded = MessageUtils.decode(UUID.randomUUID(), cbor.messageId(), cbor.message(), cbor.headers()).get();
+            assertEquals(message(0).serializableBody(), decoded.serializableBody());
+            var json = client.getSentBatchMessages().get(1);
+            assertFalse(json.headers().containsKey(InternalMessage.CODEC_HEADER), "JSON stays readable by older nodes");
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testFullBatchesAreSentWithoutLingering() throws InterruptedException {
+        var client = new MockMessageClient();
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 10, 60_000));
+        amq.start();
+        try {
+            for (int i = 0; i < 11; i++) {
+                amq.sendAsync(message(i));
+            }
+            awaitSent(client, 10, 1000);
+            Thread.sleep(50);
+            assertEquals(10, client.getSentMessages().size(), "the 11th message lingers");
+        } finally {
+            amq.stop();
+        }
+        awaitSent(client, 11, 1000);  // stop() flushes the rest
+    }
+
+    @Test
+    public void testBatchesAreAlsoBoundedByBytes() throws InterruptedException {
+        var client = new MockMessageClient();
+        int size = MessageUtils.encode(message(0)).get().length();
+        var amq = sender(client, new SendPolicy(2 * size, 1000, 60_000));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            Thread.sleep(50);
+            assertTrue(client.getSentMessages().isEmpty());
+            amq.sendAsync(message(1));
+            awaitSent(client, 2, 1000);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testMessagesTheBrokerCanNotTakeAreDeadLetteredAlone() throws InterruptedException {
+        var client = new MockMessageClient();
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 3, 60_000));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            amq.sendAsync(new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.empty(), Map.of(),
+                Map.of(InternalMessage.DELAY_HEADER, Long.toString(Duration.ofDays(2).toMillis()))));
+            amq.sendAsync(message(2));
+            awaitSent(client, 3, 1000);
+            amq.sendAsync(message(3));  // the sender is still alive
+            amq.sendAsync(message(4));
+            amq.sendAsync(message(5));
+            awaitSent(client, 6, 1000);
+            for (int i : new int[] {0, 2, 3, 4, 5}) {
+                assertTrue(client.getSentMessages().contains(MessageUtils.encode(message(i)).get()), "message " + i);
+            }
+            var deadLetters = client.getSentBatchMessages().stream()
+                .filter(outgoing -> outgoing.queueName().endsWith(DeadLetters.QUEUE_SUFFIX))
+                .toList();
+            assertEquals(1, deadLetters.size());
+            assertEquals(0, deadLetters.get(0).delayMs());
+            assertTrue(deadLetters.get(0).headers().get(DeadLetters.REASON_HEADER).contains("IllegalArgumentException"));
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testUnexpectedClientFailuresKeepTheBatch() throws InterruptedException {
+        var client = new MockMessageClient() {
+            private int failures = 2;
+
+            @Override
+            public void sendBatch(List<Outgoing> batch) throws IOException, TimeoutException {
+                if (failures-- > 0) {
+                    throw new IllegalStateException("channel is already closed");
+                }
+                super.sendBatch(batch);
+            }
+        };
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 1000, 0));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            awaitSent(client, 1, 5000);
+            assertEquals(MessageUtils.encode(message(0)).get(), client.getSentMessages().get(0), "sent again, not dropped");
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testOutputIsKeptInMemoryWhileTheBrokerIsDown() throws InterruptedException {
+        var client = new MockMessageClient();
+        client.setAvailable(false);
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 1000, 0));
+        amq.start();
+        try {
+            for (int i = 0; i < AsyncMessageQueue.SEND_CAPACITY; i++) {
+                amq.sendAsync(message(i));
+            }
+            assertFalse(amq.canSend());
+            assertFalse(amq.trySendAsync(message(-1)), "the caller holds it back");
+            var e = assertThrows(IllegalStateException.class, () -> amq.sendAsync(message(-1)));
+            assertTrue(e.getMessage().startsWith("Send queue full"), e.getMessage());
+            Thread.sleep(50);  // the sender fails at least once
+            client.setAvailable(true);
+            awaitSent(client, AsyncMessageQueue.SEND_CAPACITY, 5000);
+            for (int i = 0; i < AsyncMessageQueue.SEND_CAPACITY; i += 997) {
+                assertEquals(MessageUtils.encode(message(i)).get(), client.getSentMessages().get(i), "in order");
+            }
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testOutputIsSpooledWhileTheBrokerIsDown(@TempDir Path spoolDir) throws InterruptedException {
+        var client = new MockMessageClient();
+        client.setAvailable(false);
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 2, 0, spoolDir));
+        amq.start();
+        try {
+            amq.sendAsync(message(0));
+            Thread.sleep(100);  // the sender fails to send it
+            for (int i = 1; i < 10; i++) {
+                amq.sendAsync(message(i));
+            }
+            long deadline = System.currentTimeMillis() + 1000;
+            while (amq.getSpooledBytes() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(amq.getSpooledBytes() > 0, "later messages go to the spool");
+            client.setAvailable(true);
+            awaitSent(client, 10, 5000);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(MessageUtils.encode(message(i)).get(), client.getSentMessages().get(i), "in order");
+            }
+            assertEquals(0, amq.getSpooledBytes());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testAFullBatchOverflowsToTheSpool(@TempDir Path spoolDir) throws InterruptedException {
+        var client = new MockMessageClient();
+        client.setAvailable(false);
+        var amq = sender(client, new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 1000, 60_000, spoolDir));
+        amq.start();
+        try {
+            for (int i = 0; i < AsyncMessageQueue.SEND_CAPACITY + 10; i++) {
+                amq.sendAsync(message(i));  // would throw without a spool
+            }
+            assertTrue(amq.getSpooledBytes() > 0);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testSentMessagesFollowTheRoutingTable() throws InterruptedException {
+        var client = new MockMessageClient();
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        var amq = new AsyncMessageQueue(receiver, List.of(receiverQueueName), () -> client, () -> true, limiter,
+            new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 2, 0), MessageClient.ReceiveMode.PUSH,
+            MessageRouting.parse("out:hot=za.hot/2,out:*=za.o"));
+        amq.start();
+        try {
+            amq.sendAsync(new InternalMessage(UUID.randomUUID(), "out", "hot", "pluginId", Optional.of("a"), Map.of()));
+            amq.sendAsync(message(0));
+            awaitSent(client, 2, 1000);
+            var queueNames = client.getSentBatchMessages().stream().map(MessageClient.Outgoing::queueName).toList();
+            assertEquals(List.of("za.hot." + Math.floorMod("a".hashCode(), 2), "za.o"), queueNames);
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testDuplicatesAreAcknowledgedAndDropped() throws InterruptedException {
+        var client = new MockMessageClient();
+        var first = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        var duplicate = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(first);
+        client.addMockReceivableMessage(duplicate);
+        var amq = deduplicating(client);
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(first);
+            amq.markReceived(first.key(), true);
+            awaitSettled(client.getAcked(), 2, 1000);
+            verify(receiver, never()).onReceive(duplicate);
+            assertEquals(1, amq.getDroppedDuplicates());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testRedeliveriesOfFailedMessagesAreNotDropped() throws InterruptedException {
+        var client = new MockMessageClient();
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("messageId"), Map.of());
+        client.addMockReceivableMessage(message);
+        var amq = deduplicating(client);
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(message);
+            amq.markReceived(message.key(), false);
+            verify(receiver, timeout(1000).times(2)).onReceive(message);
+            assertEquals(0, amq.getDroppedDuplicates());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    @Test
+    public void testFilteredMessagesAreAcknowledgedAndDropped() throws InterruptedException {
+        var client = new MockMessageClient();
+        var kept = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("kept"), null,
+            Map.of(), Optional.of("www.example.com"));
+        var dropped = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("dropped"), null,
+            Map.of(), Optional.of("www.example.org"));
+        client.addMockReceivableMessage(dropped);
+        client.addMockReceivableMessage(kept);
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        var amq = new AsyncMessageQueue(receiver, List.of(receiverQueueName), () -> client, () -> true, limiter,
+            SendPolicy.defaults(), MessageClient.ReceiveMode.PUSH, MessageRouting.defaults(), null,
+            DataKeyFilter.parse("chan=*.example.com"), null);
+        amq.start();
+        try {
+            verify(receiver, timeout(1000)).onReceive(kept);
+            amq.markReceived(kept.key(), true);
+            awaitSettled(client.getAcked(), 2, 1000);
+            verify(receiver, never()).onReceive(dropped);
+            assertEquals(1, amq.getDroppedFiltered());
+        } finally {
+            amq.stop();
+        }
+    }
+
+    private AsyncMessageQueue deduplicating(MockMessageClient client) {
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        return new AsyncMessageQueue(receiver, List.of(receiverQueueName), () -> client, () -> true, limiter,
+            SendPolicy.defaults(), MessageClient.ReceiveMode.PUSH, MessageRouting.defaults(),
+            new MessageDeduplicator(60_000, 1024), null);
+    }
+
+    private AsyncMessageQueue retrying(MockMessageClient client, RetryPolicy retryPolicy) {
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        return new AsyncMessageQueue(receiver, List.of(receiverQueueName), () -> client, () -> true, limiter,
+            SendPolicy.defaults(), MessageClient.ReceiveMode.PUSH, MessageRouting.defaults(), null, retryPolicy);
+    }
+
+    private AsyncMessageQueue sender(MockMessageClient client, SendPolicy policy) {
+        var limiter = new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0);
+        return new AsyncMessageQueue(receiver, receiverQueueName, () -> client, () -> true, limiter, policy,
+            MessageClient.ReceiveMode.PUSH);
+    }
+
+    private static InternalMessage message(int i) {
+        return new InternalMessage(UUID.randomUUID(), "out", "chan", "pluginId", Optional.empty(), Map.of("i", i));
+    }
+
+    private static void awaitSettled(Set<Long> tags, int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (tags.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("settled " + tags.size() + " of " + count + " messages");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitSent(MockMessageClient client, int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (client.getSentMessages().size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("sent " + client.getSentMessages().size() + " of " + count + " messages");
+            }
+            Thread.sleep(1);
+        }
     }
 }
@@ -0,0 +1,46 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+
+public class DataKeyFilterTest {
+    @Test
+    public void testTheFirstMatchingRuleDecides() {
+        var filter = DataKeyFilter.parse("fetch=*.example.com|*.example.org,*=a*");
+        assertTrue(filter.keeps(message("fetch", "www.example.com")));
+        assertTrue(filter.keeps(message("fetch", "www.example.org")));
+        assertFalse(filter.keeps(message("fetch", "a.example.net")), "the catch-all rule does not apply");
+        assertTrue(filter.keeps(message("crawl", "a.example.net")));
+        assertFalse(filter.keeps(message("crawl", "www.example.com")));
+    }
+
+    @Test
+    public void testMessagesWithoutRuleOrDataKeyAreKept() {
+        var filter = DataKeyFilter.parse("fetch=*.example.com");
+        assertTrue(filter.keeps(message("crawl", "www.example.net")));
+        assertTrue(filter.keeps(new InternalMessage(UUID.randomUUID(), "in", "fetch", "pluginId", Optional.empty(),
+            null, Map.of(), Optional.empty())));
+        assertTrue(DataKeyFilter.none().keeps(message("fetch", "www.example.net")));
+        assertTrue(DataKeyFilter.parse("").isEmpty());
+    }
+
+    @Test
+    public void testInvalidSpecsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> DataKeyFilter.parse("fetch"));
+        assertThrows(IllegalArgumentException.class, () -> DataKeyFilter.parse("=a*"));
+        assertThrows(IllegalArgumentException.class, () -> DataKeyFilter.parse("fetch=|"));
+    }
+
+    private static InternalMessage message(String channel, String dataKey) {
+        // no body, the filter must not need one
+        return new InternalMessage(UUID.randomUUID(), "in", channel, "pluginId", Optional.empty(), null, Map.of(),
+            Optional.of(dataKey));
+    }
+}
@@ -0,0 +1,81 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+import za.engine.event.lib.EventedHttpClient;
+import za.engine.event.lib.EventedMessageListener;
+import za.engine.http.AsyncDrainableHttpClient;
+import za.lib.HttpClient;
+import za.lib.Logger;
+
+/**
+ * Allocation profile of the event path, measured with the per-thread allocation counter of the JVM
+ *
+ * Submits and dispatches events on the test thread, so every byte allocated by submit, poll and dispatch is
+ * counted. Results are printed to stdout.
+ */
+public class EventLoopAllocationTest {
+    private static final int WARM_UP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+    private static final int EVENTS_PER_ROUND = 128;  // below the batch size, so one batch drains a round
+
+    @Test
+    public void testTypedSubmitDoesNotAllocateInTheSteadyState() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        var loop = newEventLoop();
+        Consumer<HttpClient.Response> callback = res -> {};
+        var wrapped = Events.HTTP_RECEIVE.wrap(null);
+
+        Runnable typed = () -> loop.submitHttpReceive(null, callback);
+        Runnable boxed = () -> loop.submit(Events.HTTP_RECEIVE.wrap(wrapped.data()));
+        run(loop, typed, WARM_UP_ROUNDS);
+        run(loop, boxed, WARM_UP_ROUNDS);
+
+        long tid = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid);
+        run(loop, typed, ROUNDS);
+        double typedBytes = (threads.getThreadAllocatedBytes(tid) - before) / (double) (ROUNDS * EVENTS_PER_ROUND);
+
+        before = threads.getThreadAllocatedBytes(tid);
+        run(loop, boxed, ROUNDS);
+        double boxedBytes = (threads.getThreadAllocatedBytes(tid) - before) / (double) (ROUNDS * EVENTS_PER_ROUND);
+
+        System.out.printf("EventLoopAllocationTest: typed submit %.2f bytes/event, submit(Event) %.2f bytes/event%n",
+            typedBytes, boxedBytes);
+        assertTrue(typedBytes < 1.0, "expected near-zero bytes per event, was " + typedBytes);
+    }
+
+    private static void run(EventLoop loop, Runnable submit, int rounds) {
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < EVENTS_PER_ROUND; i++) {
+                submit.run();
+            }
+            loop.processEventBatch();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EventLoop newEventLoop() {
+        return new EventLoop(
+            Logger.silent(),
+            new EventQueue(EventLoopConfig.defaults().laneCapacity(), EventLoopConfig.defaults().laneWeights()),
+            mock(AsyncDrainableHttpClient.class),
+            mock(EventedHttpClient.class),
+            mock(EventedMessageListener.class),
+            mock(AsyncMessageQueue.class),
+            (Consumer<InternalMessage>) mock(Consumer.class),
+            EventLoopConfig.defaults());
+    }
+}
@@ -0,0 +1,114 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+import za.engine.RegistryImpl;
+import za.engine.http.AsyncDrainableHttpClient;
+import za.engine.mq.MockMessageClient;
+
+public class EventLoopGroupTest {
+    private List<RegistryImpl> registries;
+    private BiConsumer<RegistryImpl, InternalMessage> dispatcher;
+    private EventLoopGroup group;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        registries = List.of(new RegistryImpl(), new RegistryImpl(), new RegistryImpl());
+        dispatcher = mock(BiConsumer.class);
+        group = new EventLoopGroup(
+            List.of("mock-input-queue-name"),
+            MockMessageClient::new,
+            () -> mock(AsyncDrainableHttpClient.class),
+            registries,
+            dispatcher,
+            EventLoopConfig.defaults());
+    }
+
+    @Test
+    public void testEveryLoopHasItsOwnRegistryAndHttpClient() {
+        assertEquals(3, group.size());
+        for (int i = 0; i < group.size(); i++) {
+            assertSame(registries.get(i), group.getRegistry(i));
+            for (int j = 0; j < i; j++) {
+                assertNotSame(group.get(i).getHttp(), group.get(j).getHttp());
+            }
+        }
+    }
+
+    @Test
+    public void testMessagesAreRoutedToTheOwningLoop() {
+        registries.get(1).subscribe("chan", message -> {});
+        var message = message("chan");
+        group.getRouter().onReceive(message);
+        assertEquals(0, group.get(0).processEventBatch());
+        assertEquals(1, group.get(1).processEventBatch());
+        assertEquals(0, group.get(2).processEventBatch());
+        verify(dispatcher, times(1)).accept(registries.get(1), message);
+        verifyNoMoreInteractions(dispatcher);
+    }
+
+    @Test
+    public void testMessagesAreFannedOutToEveryOwningLoop() {
+        registries.get(0).subscribe("chan", message -> {});
+        registries.get(2).subscribe("chan", message -> {});
+        var message = message("chan");
+        group.getRouter().onReceive(message);
+        assertEquals(1, group.get(0).processEventBatch());
+        assertEquals(0, group.get(1).processEventBatch());
+        assertEquals(1, group.get(2).processEventBatch());
+        verify(dispatcher, times(1)).accept(registries.get(0), message);
+        verify(dispatcher, times(1)).accept(registries.get(2), message);
+    }
+
+    @Test
+    public void testPartitionedChannelsGoToOneLoopByDataKey() {
+        group = new EventLoopGroup(List.of("mock-input-queue-name"), MockMessageClient::new,
+            () -> mock(AsyncDrainableHttpClient.class), registries, dispatcher,
+            new EventLoopConfig.Builder().partitionedChannels(ChannelSet.parse("crawl.*")).build());
+        for (var registry : registries) {
+            registry.subscribe("crawl.fetch", message -> {});
+        }
+        int[] firstLoop = new int[1];
+        for (int i = 0; i < 10; i++) {
+            var message = new InternalMessage(UUID.randomUUID(), "in", "crawl.fetch", "pluginId", Optional.of("id" + i),
+                Map.of("url", "https://example.com/" + i, "_dk", "host", "host", "example.com"));
+            group.getRouter().onReceive(message);
+            int dispatched = 0;
+            for (int loop = 0; loop < group.size(); loop++) {
+                int count = group.get(loop).processEventBatch();
+                if (count > 0 && i == 0) {
+                    firstLoop[0] = loop;
+                }
+                dispatched += count;
+            }
+            assertEquals(1, dispatched);
+            verify(dispatcher, times(1)).accept(registries.get(firstLoop[0]), message);  // same host, same loop
+        }
+    }
+
+    @Test
+    public void testMessagesWithoutSubscribersStillHaveOneOwner() {
+        group.getRouter().onReceive(message("nobody-listens"));
+        int dispatched = 0;
+        for (int i = 0; i < group.size(); i++) {
+            dispatched += group.get(i).processEventBatch();
+        }
+        assertEquals(1, dispatched);
+    }
+
+    private static InternalMessage message(String channel) {
+        return new InternalMessage(UUID.randomUUID(), "in", channel, "pluginId", Optional.of("messageId"), Map.of());
+    }
+}
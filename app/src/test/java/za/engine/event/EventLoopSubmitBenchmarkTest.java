@@ -0,0 +1,158 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+import za.engine.event.lib.EventedHttpClient;
+import za.engine.event.lib.EventedMessageListener;
+import za.engine.http.AsyncDrainableHttpClient;
+import za.lib.HttpClient;
+import za.lib.Logger;
+
+/**
+ * Contention benchmark for EventLoop.submit()
+ *
+ * Compares the lock-free laned ring buffers against the previous synchronized submit/wait/notify queue,
+ * results are printed to stdout (numbers are only meaningful relative to each other)
+ */
+public class EventLoopSubmitBenchmarkTest {
+    private static final int EVENTS_PER_RUN = 1 << 20;
+    private static final int[] PRODUCERS = {1, 4, 16};
+
+    @Test
+    public void benchmarkSubmitThroughput() throws InterruptedException {
+        runRingBuffer(1, EVENTS_PER_RUN / 4);  // warm up
+        runMonitor(1, EVENTS_PER_RUN / 4);
+        System.out.println("EventLoopSubmitBenchmarkTest: producers | ring buffer (events/s) | synchronized monitor (events/s)");
+        for (int producers : PRODUCERS) {
+            double ring = runRingBuffer(producers, EVENTS_PER_RUN);
+            double monitor = runMonitor(producers, EVENTS_PER_RUN);
+            System.out.printf("EventLoopSubmitBenchmarkTest: %9d | %22.0f | %31.0f%n", producers, ring, monitor);
+        }
+    }
+
+    private static double runRingBuffer(int producers, int events) throws InterruptedException {
+        var counter = new CountingCallback();
+        @SuppressWarnings("unchecked")
+        var loop = new EventLoop(
+            Logger.silent(),
+            new EventQueue(EventLoopConfig.defaults().laneCapacity(), EventLoopConfig.defaults().laneWeights()),
+            mock(AsyncDrainableHttpClient.class),
+            mock(EventedHttpClient.class),
+            mock(EventedMessageListener.class),
+            mock(AsyncMessageQueue.class),
+            (Consumer<InternalMessage>) mock(Consumer.class),
+            EventLoopConfig.defaults());
+        counter.onDone = loop::stop;
+        counter.target = events;
+        var loopThread = new Thread(loop, "EventLoopSubmitBenchmarkTest-Loop");
+        loopThread.start();
+        long nanos = produce(producers, events, () -> {
+            while (true) {
+                try {
+                    loop.submitHttpReceive(null, counter);
+                    return;
+                } catch (IllegalStateException full) {
+                    Thread.yield();  // let the loop catch up
+                }
+            }
+        });
+        loopThread.join();
+        assertEquals(events, counter.count);
+        return events * 1e9 / nanos;
+    }
+
+    private static double runMonitor(int producers, int events) throws InterruptedException {
+        var queue = new MonitorQueue();
+        var counter = new CountingCallback();
+        var consumer = new Thread(() -> {
+            for (int i = 0; i < events; i++) {
+                // same dispatch work as EventLoop.handleHttpReceive()
+                @SuppressWarnings("unchecked")
+                var next = (Consumer<HttpClient.Response>) queue.take().data();
+                next.accept(null);
+            }
+        }, "EventLoopSubmitBenchmarkTest-Monitor");
+        consumer.start();
+        var event = Events.HTTP_RECEIVE.wrap(counter);
+        long nanos = produce(producers, events, () -> queue.submit(event));
+        consumer.join();
+        assertEquals(events, counter.count);
+        return events * 1e9 / nanos;
+    }
+
+    private static long produce(int producers, int events, Runnable submit) throws InterruptedException {
+        var start = new CountDownLatch(1);
+        var threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int share = events / producers + (p < events % producers ? 1 : 0);
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < share; i++) {
+                    submit.run();
+                }
+            }, "EventLoopSubmitBenchmarkTest-Producer-" + p);
+            threads[p].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static final class CountingCallback implements Consumer<HttpClient.Response> {
+        private int count;  // only touched by the event loop thread
+        private int target;
+        private Runnable onDone;
+
+        @Override
+        public void accept(HttpClient.Response res) {
+            if (++count == target && onDone != null) {
+                onDone.run();
+            }
+        }
+    }
+
+    // the previous EventLoop queueing strategy, kept here as the baseline
+    private static final class MonitorQueue {
+        private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+
+        synchronized void submit(Event e) {
+            events.offer(e);
+            notify();
+        }
+
+        Event take() {
+            while (true) {
+                if (events.isEmpty()) {
+                    synchronized (this) {
+                        while (events.isEmpty()) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    }
+                }
+                var event = events.poll();
+                if (event != null) {
+                    return event;
+                }
+            }
+        }
+    }
+}
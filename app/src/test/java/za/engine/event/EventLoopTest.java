@@ -3,24 +3,37 @@ package za.engine.event;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.LongStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 import za.engine.InternalMessage;
 import za.engine.event.lib.EventedHttpClient;
 import za.engine.event.lib.EventedMessageListener;
 import za.engine.http.AsyncDrainableHttpClient;
 import za.engine.http.DrainableHttpClient;
+import za.engine.http.HttpClientFacade;
+import za.engine.mq.MessageClient;
+import za.engine.mq.MockMessageClient;
 import za.lib.HttpClient;
 import za.lib.Logger;
 
 public class EventLoopTest {
+    private static final long SEND_RETRY_WAIT_MS = AsyncMessageQueue.SEND_RETRY_BACKOFF_MS + 500;
+
     // event loop internals
     private Logger mockLog;
-    private ConcurrentLinkedQueue<Event> events;
+    private EventQueue events;
     private DrainableHttpClient mockDrainableHttp;
     private EventedHttpClient mockEventedHttp;
     private EventedMessageListener mockEventedMq;
@@ -33,13 +46,14 @@ public class EventLoopTest {
     @BeforeEach
     public void setup() {
         mockLog = mock(Logger.class);
-        events = spy(new ConcurrentLinkedQueue<>());
+        events = spy(new EventQueue(EventLoopConfig.defaults().laneCapacity(), EventLoopConfig.defaults().laneWeights()));
         mockDrainableHttp = mock(AsyncDrainableHttpClient.class);
         mockEventedHttp = mock(EventedHttpClient.class);
         mockEventedMq = mock(EventedMessageListener.class);
         mockAsyncMessageQueue = mock(AsyncMessageQueue.class);
+        when(mockAsyncMessageQueue.trySendAsync(any())).thenReturn(true);
         onMessage = mock(Consumer.class);
-        eventLoop = spy(new EventLoop(mockLog, events, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage));
+        eventLoop = spy(new EventLoop(mockLog, events, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, EventLoopConfig.defaults()));
     }
 
     @Test
@@ -88,14 +102,40 @@ public class EventLoopTest {
         }
         assertEquals(trials, events.size());
         assertEquals(Events.HTTP_SEND, events.peek().type());
-        for (int i = 0; i < trials; i++) {
+        // the drain lane has priority over the send lane, so drains are interleaved with the sends
+        while (events.depth(Events.HTTP_SEND) > 0) {
             eventLoop.processSingleEvent();
         }
         verify(eventLoop, times(trials)).handleHttpSend(any());
-        assertEquals(trials, events.size());
-        for (Event event : events.toArray(new Event[trials])) {
-            assertEquals(Events.DRAIN_HTTP, event.type());
+        assertEquals(1, events.size(), "at most one drain should be pending");
+        assertEquals(Events.DRAIN_HTTP, events.poll().type());
+    }
+
+    @Test
+    public void testDrainDoesNotResubmitItselfWhileRequestsAreInFlight() {
+        when(mockDrainableHttp.drain()).thenReturn(true);
+        eventLoop.scheduleDrain();
+        eventLoop.scheduleDrain();
+        assertEquals(1, events.size());
+        eventLoop.processSingleEvent();
+        verify(mockDrainableHttp, times(1)).drain();
+        assertTrue(events.isEmpty());
+        // once the pending drain ran, the next response may schedule another one
+        eventLoop.scheduleDrain();
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testResponsesScheduleDrains() {
+        var captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockDrainableHttp).setDrainListener(captor.capture());
+        var onResponse = captor.getValue();
+        final int responses = 10;
+        for (int i = 0; i < responses; i++) {
+            onResponse.run();  // normally called from http client threads
         }
+        assertEquals(1, events.size());
+        assertEquals(Events.DRAIN_HTTP, events.peek().type());
     }
 
     @Test
@@ -103,10 +143,8 @@ public class EventLoopTest {
         final int trials = 10;
         for (int i = 0; i < trials; i++) {
             // TODO use a mock http client to force the receive
-            EventedHttpClient.ReceiveEventData receiveEventData = mock(EventedHttpClient.ReceiveEventData.class);
             Consumer<HttpClient.Response> emptyCallback = x -> {};
-            when(receiveEventData.next()).thenReturn(emptyCallback);
-            eventLoop.submit(Events.HTTP_RECEIVE.wrap(receiveEventData));
+            eventLoop.submitHttpReceive(mock(HttpClient.Response.class), emptyCallback);
             assertEquals(i+1, events.size());
         }
         assertEquals(trials, events.size());
@@ -167,4 +205,275 @@ public class EventLoopTest {
         verify(eventLoop, times(trials)).handleInvalidEventType(any());
         assertTrue(events.isEmpty());
     }
+
+    @Test
+    public void testProcessEventBatchDispatchesUpToBatchSize() {
+        var config = new EventLoopConfig.Builder().batchSize(4).build();
+        var loop = spy(new EventLoop(mockLog, events, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config));
+        final int trials = 10;
+        for (int i = 0; i < trials; i++) {
+            loop.submitMessageSend(mock(InternalMessage.class));
+        }
+        assertEquals(4, loop.processEventBatch());
+        assertEquals(trials - 4, events.size());
+        assertEquals(4, loop.processEventBatch());
+        assertEquals(2, loop.processEventBatch());
+        assertEquals(0, loop.processEventBatch());
+        verify(loop, times(trials)).handleMessageQueueSend(any());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testEventIdsArePerLoopSequences() {
+        List<Long> ids = new ArrayList<>();
+        doAnswer(invocation -> ids.add(invocation.<Event>getArgument(0).id())).when(eventLoop).handleMessageQueueSend(any());
+        final int trials = 10;
+        for (int i = 0; i < trials; i++) {
+            eventLoop.submitMessageSend(mock(InternalMessage.class));
+        }
+        eventLoop.processEventBatch();
+        eventLoop.submitMessageSend(mock(InternalMessage.class));
+        eventLoop.processSingleEvent();
+        assertEquals(LongStream.rangeClosed(0, trials).boxed().toList(), ids);
+    }
+
+    @Test
+    public void testDispatchedHoldersAreCleared() {
+        Consumer<HttpClient.Response> callback = x -> {};
+        eventLoop.submitHttpReceive(mock(HttpClient.Response.class), callback);
+        var captor = ArgumentCaptor.forClass(Event.class);
+        eventLoop.processEventBatch();
+        verify(eventLoop).handleHttpReceive(captor.capture());
+        // the holder is reused, so it must not keep the response reachable after dispatch
+        assertNull(captor.getValue().type());
+        assertNull(captor.getValue().callback());
+        assertNull(captor.getValue().response());
+    }
+
+    @Test
+    public void testFullLanesRejectOrDropWhenConfigured() {
+        var config = new EventLoopConfig.Builder().laneCapacity(2).overflowPolicy(OverflowPolicy.REJECT).build();
+        var small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var loop = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        loop.submitMessageSend(mock(InternalMessage.class));
+        loop.submitMessageSend(mock(InternalMessage.class));
+        assertThrows(IllegalStateException.class, () -> loop.submitMessageSend(mock(InternalMessage.class)));
+        assertEquals(1, loop.getRejectedEvents());
+        assertEquals(2, loop.getLaneDepth(Events.MQ_SEND));
+
+        config = new EventLoopConfig.Builder().laneCapacity(2).overflowPolicy(OverflowPolicy.DROP).build();
+        small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var dropping = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        for (int i = 0; i < 5; i++) {
+            dropping.submitMessageSend(mock(InternalMessage.class));
+        }
+        assertEquals(3, dropping.getDroppedEvents());
+        assertEquals(2, dropping.getQueueDepth());
+    }
+
+    @Test
+    public void testBlockedProducersResumeOnceTheLoopMakesRoom() throws InterruptedException {
+        var config = new EventLoopConfig.Builder().laneCapacity(2).overflowPolicy(OverflowPolicy.BLOCK).build();
+        var small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var loop = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        loop.submitMessageSend(mock(InternalMessage.class));
+        loop.submitMessageSend(mock(InternalMessage.class));
+        var producer = new Thread(() -> loop.submitMessageSend(mock(InternalMessage.class)), "testBlockedProducers-Producer");
+        producer.start();
+        while (loop.getBlockedSubmits() == 0) {
+            Thread.yield();
+        }
+        assertTrue(producer.isAlive());
+        assertEquals(2, loop.processEventBatch());
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, loop.getQueueDepth());
+        assertEquals(0, loop.getRejectedEvents());
+    }
+
+    @Test
+    public void testTheLoopThreadSpillsInsteadOfRejecting() throws InterruptedException {
+        var config = new EventLoopConfig.Builder().laneCapacity(2).overflowPolicy(OverflowPolicy.BLOCK).build();
+        var small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var loop = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        var pending = new CopyOnWriteArrayList<Consumer<HttpClient.Response>>();
+        doAnswer(inv -> pending.add(inv.getArgument(1))).when(mockDrainableHttp).send(any(), any());
+        var response = mock(HttpClient.Response.class);
+        doAnswer(inv -> {
+            for (var callback : pending) {  // on the loop thread, like AsyncDrainableHttpClient
+                pending.remove(callback);
+                callback.accept(response);
+            }
+            return false;
+        }).when(mockDrainableHttp).drain();
+        var handled = new AtomicInteger();
+        var message = mock(InternalMessage.class);
+        var thread = new Thread(loop, "testTheLoopThreadSpills-EventLoopThread");
+        thread.start();
+        try {
+            for (int i = 0; i < 6; i++) {
+                loop.submitHttpSend(mock(HttpClient.Request.class), res -> {
+                    loop.submitMessageSend(message);  // a plugin that sends from its callback
+                    loop.submitMessageSend(message);
+                    handled.incrementAndGet();
+                });
+            }
+            verify(mockAsyncMessageQueue, timeout(1000).times(12)).trySendAsync(message);
+            assertEquals(6, handled.get(), "no response was lost");
+            assertTrue(loop.getSpilledEvents() > 0);
+            assertEquals(0, loop.getRejectedEvents());
+        } finally {
+            loop.stop();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void testALongBrokerOutageHoldsSendsInsteadOfStoppingTheLoop() throws InterruptedException {
+        var client = new MockMessageClient();
+        client.setAvailable(false);
+        var config = new EventLoopConfig.Builder().sendPolicy(new SendPolicy(SendPolicy.DEFAULT_BATCH_BYTES, 1000, 0)).build();
+        var amq = new AsyncMessageQueue(mockEventedMq, "in", () -> client, () -> true,
+            new ReceiveLimiter(AsyncMessageQueue.RECEIVE_LIMIT, 1, 100, () -> 0.0), config.sendPolicy(),
+            MessageClient.ReceiveMode.PUSH);
+        var loop = new EventLoop(mockLog, events, mockDrainableHttp, mockEventedHttp, mockEventedMq, amq, onMessage, config);
+        var thread = new Thread(loop, "testALongBrokerOutage-EventLoopThread");
+        thread.start();
+        int count = AsyncMessageQueue.SEND_CAPACITY + 100;  // without a spool, more than the send queue holds
+        try {
+            for (int i = 0; i < count; i++) {
+                loop.submitMessageSend(new InternalMessage(UUID.randomUUID(), "out", "chan", "pluginId", Optional.empty(), Map.of("i", i)));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (loop.getHeldSends() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(loop.getHeldSends() > 0, "the sends the message queue can not take are held");
+            assertFalse(loop.canAcceptMessages(), "no more input while output is held");
+            Thread.sleep(SEND_RETRY_WAIT_MS);
+            assertTrue(thread.isAlive());
+            client.setAvailable(true);
+            deadline = System.currentTimeMillis() + 10_000;
+            while (client.getSentMessages().size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, client.getSentMessages().size(), "nothing was lost");
+            assertEquals(0, loop.getHeldSends());
+            assertTrue(loop.canAcceptMessages());
+        } finally {
+            loop.stop();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHttpCallbacksAreReusedOnceTheResponseArrived() {
+        var callbacks = ArgumentCaptor.forClass(Consumer.class);
+        var response = mock(HttpClient.Response.class);
+        var responses = new ArrayList<HttpClient.Response>();
+        eventLoop.submitHttpSend(mock(HttpClient.Request.class), responses::add, "plugin-a");
+        eventLoop.submitHttpSend(mock(HttpClient.Request.class), responses::add, "plugin-b");
+        eventLoop.processEventBatch();
+        verify(mockDrainableHttp, times(2)).send(any(), callbacks.capture());
+        var first = callbacks.getAllValues().get(0);
+        assertNotSame(first, callbacks.getAllValues().get(1), "one per request in flight");
+        first.accept(response);
+        eventLoop.processEventBatch();
+        assertEquals(List.of(response), responses);
+        eventLoop.submitHttpSend(mock(HttpClient.Request.class), responses::add);
+        eventLoop.processEventBatch();
+        verify(mockDrainableHttp, times(3)).send(any(), callbacks.capture());
+        assertSame(first, callbacks.getValue());
+    }
+
+    @Test
+    public void testBlockedProducersAreRejectedAfterTheTimeout() {
+        var config = new EventLoopConfig.Builder().laneCapacity(1).overflowPolicy(OverflowPolicy.BLOCK).blockTimeoutMs(10).build();
+        var small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var loop = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        loop.submitHttpSend(mock(HttpClient.Request.class), x -> {});
+        assertThrows(IllegalStateException.class, () -> loop.submitHttpSend(mock(HttpClient.Request.class), x -> {}));
+        assertEquals(1, loop.getBlockedSubmits());
+        assertEquals(1, loop.getRejectedEvents());
+    }
+
+    @Test
+    public void testMessagesAreNotAcceptedAboveTheHighWatermark() {
+        var config = new EventLoopConfig.Builder().laneCapacity(4).build();
+        var small = new EventQueue(config.laneCapacity(), config.laneWeights());
+        var loop = new EventLoop(mockLog, small, mockDrainableHttp, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        assertEquals(4 * Events.values().length, loop.getQueueCapacity());
+        assertTrue(loop.canAcceptMessages());
+        for (int i = 0; i < 4; i++) {
+            loop.submitMessageReceive(mock(InternalMessage.class));
+        }
+        assertFalse(loop.canAcceptMessages(), "the receive lane is full");
+        loop.processEventBatch();
+        assertTrue(loop.canAcceptMessages());
+        for (int i = 0; i < 4; i++) {
+            loop.submitMessageSend(mock(InternalMessage.class));
+            loop.submitHttpSend(mock(HttpClient.Request.class), x -> {});
+            loop.submitHttpReceive(mock(HttpClient.Response.class), x -> {});
+        }
+        assertEquals(12.0 / 20.0, loop.getQueueOccupancy());
+        assertTrue(loop.canAcceptMessages());
+        loop.submitMessageReceive(mock(InternalMessage.class));
+        loop.submitMessageReceive(mock(InternalMessage.class));
+        loop.submitMessageReceive(mock(InternalMessage.class));
+        assertFalse(loop.canAcceptMessages(), "15 of 20 events are queued");
+    }
+
+    @Test
+    public void testADeepHttpBacklogLowersTheReceiveLimit() {
+        var config = EventLoopConfig.defaults();
+        var http = new AsyncDrainableHttpClient(mock(HttpClientFacade.class), 10, Logger.silent());
+        var loop = new EventLoop(mockLog, events, http, mockEventedHttp, mockEventedMq, mockAsyncMessageQueue, onMessage, config);
+        var limiter = config.newReceiveLimiter(loop::getCongestion);
+        long now = 0;
+        limiter.onComplete(1_000_000, limiter.limit(), now += 1_000_000);  // cheap dispatch
+        int uncongested = limiter.limit();
+        for (int i = 0; i < 500; i++) {  // a message that starts 500 fetches
+            loop.submitHttpSend(mock(HttpClient.Request.class), res -> {});
+        }
+        while (loop.processEventBatch() > 0) {}  // hands 10 requests to the client, the rest waits
+        assertEquals(0.0, loop.getQueueOccupancy());
+        assertTrue(loop.getCongestion() > ReceiveLimiter.CONGESTED_OCCUPANCY, "congestion " + loop.getCongestion());
+        for (int i = 0; i < 20; i++) {
+            limiter.onComplete(1_000_000, limiter.limit(), now += 1_000_000);
+        }
+        assertTrue(limiter.limit() < uncongested, "limit " + limiter.limit() + " of " + uncongested);
+    }
+
+    @Test
+    public void testDispatchesAreTracedPerEventTypeAndPlugin() {
+        Consumer<HttpClient.Response> callback = x -> {};
+        eventLoop.submitHttpReceive(mock(HttpClient.Response.class), callback, "pluginId");
+        eventLoop.submitHttpReceive(mock(HttpClient.Response.class), callback);
+        eventLoop.submitMessageReceive(mock(InternalMessage.class));
+        eventLoop.processEventBatch();
+        var tracer = eventLoop.getTracer();
+        assertEquals(2, tracer.queueWait(Events.HTTP_RECEIVE).count());
+        assertEquals(2, tracer.handlerTime(Events.HTTP_RECEIVE).count());
+        assertEquals(1, tracer.handlerTime(Events.MQ_RECEIVE).count());
+        assertEquals(0, tracer.handlerTime(Events.MQ_SEND).count());
+        assertEquals(1, tracer.pluginHandlerTime("pluginId").count());
+        assertEquals(0, tracer.handlerStartNanos(), "the loop is idle between handlers");
+    }
+
+    @Test
+    public void testBatchSizeMustBeWithinLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new EventLoopConfig.Builder().batchSize(0).build());
+        assertThrows(IllegalArgumentException.class,
+            () -> new EventLoopConfig.Builder().batchSize(EventLoop.MAX_CONCURRENT_EVENTS + 1).build());
+    }
+
+    @Test
+    public void testLanesTogetherAreBoundedByMaxConcurrentEvents() {
+        int maxLaneCapacity = EventLoop.MAX_CONCURRENT_EVENTS / Events.values().length;
+        assertEquals(maxLaneCapacity, new EventLoopConfig.Builder().laneCapacity(maxLaneCapacity).build().laneCapacity());
+        assertThrows(IllegalArgumentException.class,
+            () -> new EventLoopConfig.Builder().laneCapacity(maxLaneCapacity + 1).build());
+        assertThrows(IllegalArgumentException.class, () -> new EventLoopConfig.Builder().laneCapacity(0).build());
+    }
 }
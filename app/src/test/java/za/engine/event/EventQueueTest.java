@@ -0,0 +1,86 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class EventQueueTest {
+    private static final Map<Events, Integer> WEIGHTS = Map.of(
+        Events.HTTP_RECEIVE, 3,
+        Events.DRAIN_HTTP, 3,
+        Events.MQ_RECEIVE, 2,
+        Events.HTTP_SEND, 1,
+        Events.MQ_SEND, 1);
+
+    @Test
+    public void testCompletionsAreHandledAheadOfIntake() {
+        var queue = new EventQueue(64, WEIGHTS);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(Events.MQ_RECEIVE.wrap(i));
+        }
+        queue.offer(Events.HTTP_RECEIVE.wrap("done"));
+        assertEquals(Events.HTTP_RECEIVE, queue.peek().type());
+        assertEquals(Events.HTTP_RECEIVE, queue.poll().type());
+        assertEquals(Events.MQ_RECEIVE, queue.poll().type());
+    }
+
+    @Test
+    public void testWeightsShareEachRound() {
+        var queue = new EventQueue(64, WEIGHTS);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(Events.MQ_SEND.wrap(i));
+            queue.offer(Events.MQ_RECEIVE.wrap(i));
+            queue.offer(Events.HTTP_RECEIVE.wrap(i));
+        }
+        List<Events> order = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            order.add(queue.poll().type());
+        }
+        // two rounds of 3 completions, 2 intakes and 1 send, so the send lane is not starved
+        var round = List.of(
+            Events.HTTP_RECEIVE, Events.HTTP_RECEIVE, Events.HTTP_RECEIVE,
+            Events.MQ_RECEIVE, Events.MQ_RECEIVE,
+            Events.MQ_SEND);
+        assertEquals(round, order.subList(0, 6));
+        assertEquals(round, order.subList(6, 12));
+    }
+
+    @Test
+    public void testLanesKeepFifoOrder() {
+        var queue = new EventQueue(64, WEIGHTS);
+        for (int i = 0; i < 20; i++) {
+            queue.offer(Events.MQ_SEND.wrap(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, queue.poll().data());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testLaneDepthsAndCapacity() {
+        var queue = new EventQueue(2, WEIGHTS);
+        assertTrue(queue.offer(Events.HTTP_SEND.wrap(1)));
+        assertTrue(queue.offer(Events.HTTP_SEND.wrap(2)));
+        assertFalse(queue.offer(Events.HTTP_SEND.wrap(3)));  // lanes are bounded independently
+        assertTrue(queue.offer(Events.MQ_SEND.wrap(1)));
+        assertEquals(2, queue.depth(Events.HTTP_SEND));
+        assertEquals(1, queue.depth(Events.MQ_SEND));
+        assertEquals(0, queue.depth(Events.HTTP_RECEIVE));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void testEventsWithoutTypeUseTheLowestPriorityLane() {
+        var queue = new EventQueue(8, WEIGHTS);
+        queue.offer(new Event(null, "invalid"));
+        queue.offer(Events.HTTP_RECEIVE.wrap("done"));
+        assertEquals(Events.HTTP_RECEIVE, queue.poll().type());
+        assertNull(queue.poll().type());
+    }
+}
@@ -0,0 +1,98 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+public class EventRingTest {
+    @Test
+    public void testFifoOrder() {
+        var ring = new EventRing(8);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(Events.MQ_SEND.wrap(i)));
+        }
+        assertEquals(5, ring.size());
+        assertEquals(0, ring.peek().data());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ring.poll().data());
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        var ring = new EventRing(3);  // not a power of two, the limit must still be exact
+        assertTrue(ring.offer(Events.MQ_SEND.wrap(1)));
+        assertTrue(ring.offer(Events.MQ_SEND.wrap(2)));
+        assertTrue(ring.offer(Events.MQ_SEND.wrap(3)));
+        assertFalse(ring.offer(Events.MQ_SEND.wrap(4)));
+        assertEquals(3, ring.size());
+        assertEquals(1, ring.poll().data());
+        assertTrue(ring.offer(Events.MQ_SEND.wrap(4)));
+    }
+
+    @Test
+    public void testWrapsAround() {
+        var ring = new EventRing(4);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ring.offer(Events.MQ_SEND.wrap(i)));
+            assertTrue(ring.offer(Events.MQ_SEND.wrap(-i)));
+            assertEquals(i, ring.poll().data());
+            assertEquals(-i, ring.poll().data());
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 10_000;
+        var ring = new EventRing(1024);
+        var start = new CountDownLatch(1);
+        var threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    var event = Events.MQ_SEND.wrap(producer * perProducer + i);
+                    while (!ring.offer(event)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }, "testConcurrentProducersLoseNothing-" + p);
+            threads[p].start();
+        }
+        start.countDown();
+        Set<Object> seen = new HashSet<>();
+        int[] lastPerProducer = new int[producers];
+        Arrays.fill(lastPerProducer, -1);
+        while (seen.size() < producers * perProducer) {
+            var event = ring.poll();
+            if (event == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int value = (int) event.data();
+            // events from a single producer must keep their submission order
+            assertTrue(value % perProducer > lastPerProducer[value / perProducer]);
+            lastPerProducer[value / perProducer] = value % perProducer;
+            assertTrue(seen.add(value), "duplicate event " + value);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
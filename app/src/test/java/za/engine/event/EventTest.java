@@ -2,6 +2,7 @@ package za.engine.event;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 
 import org.junit.jupiter.api.Test;
 
@@ -11,8 +12,21 @@ public class EventTest {
     public void testEventIdIsNotUsedInComparison() {
         Event e1 = new Event(Events.HTTP_SEND, new String("data"));
         Event e2 = new Event(Events.HTTP_SEND, new String("data"));
+        e1.assignId(1);
+        e2.assignId(2);
         assertEquals(e1, e2);
-        assertNotEquals(e1.id(), e2.id()); 
+    }
+
+    @Test
+    public void testIdIsUnassignedUntilDequeued() {
+        var ring = new EventRing(4);
+        Event e = Events.MQ_SEND.wrap("data");
+        assertEquals(Event.UNASSIGNED_ID, e.id());
+        ring.offer(e);
+        var slot = ring.peek();
+        assertEquals(e, slot);
+        assertNotSame(e, slot);  // copied into a preallocated slot
+        assertEquals(Event.UNASSIGNED_ID, ring.poll().id());  // the event loop assigns ids, see EventLoopTest
     }
 
     @Test
@@ -0,0 +1,123 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import za.engine.mq.MessageClient;
+
+public class InFlightTableTest {
+    private InFlightTable table;
+    private MessageClient.Acknowledger acks;
+
+    @BeforeEach
+    public void setup() {
+        table = new InFlightTable();
+        acks = mock(MessageClient.Acknowledger.class);
+    }
+
+    @Test
+    public void testCompletedMessagesAreAcknowledgedInBatches() throws IOException {
+        var keys = add(InFlightTable.ACK_BATCH_SIZE);
+        for (int i = 0; i < keys.length - 1; i++) {
+            assertTrue(table.complete(keys[i], true) > 0);
+        }
+        table.settle(acks, 0);
+        verifyNoInteractions(acks);  // neither enough nor old enough
+        table.complete(keys[keys.length - 1], true);
+        table.settle(acks, 0);
+        verify(acks, times(1)).ack(InFlightTable.ACK_BATCH_SIZE, true);
+        verifyNoMoreInteractions(acks);
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testCompletedMessagesAreAcknowledgedAfterTheInterval() throws IOException {
+        var keys = add(2);
+        table.complete(keys[0], true);
+        table.settle(acks, 0);
+        verifyNoInteractions(acks);
+        table.settle(acks, TimeUnit.MILLISECONDS.toNanos(InFlightTable.ACK_INTERVAL_MS));
+        verify(acks, times(1)).ack(1, true);
+        verifyNoMoreInteractions(acks);
+    }
+
+    @Test
+    public void testOutOfOrderCompletionsWaitForTheHead() throws IOException {
+        var keys = add(3);
+        table.complete(keys[1], true);
+        table.complete(keys[2], true);
+        table.flush(acks);
+        verifyNoInteractions(acks);  // a multiple-ack would also cover the pending head
+        table.complete(keys[0], true);
+        table.flush(acks);
+        verify(acks, times(1)).ack(3, true);
+        verifyNoMoreInteractions(acks);
+    }
+
+    @Test
+    public void testFailedMessagesAreRequeued() throws IOException {
+        var keys = add(3);
+        table.complete(keys[0], true);
+        table.complete(keys[1], false);
+        table.complete(keys[2], true);
+        table.flush(acks);
+        var order = inOrder(acks);
+        order.verify(acks).ack(1, true);
+        order.verify(acks).nack(2, false, true);
+        order.verify(acks).ack(3, true);
+        order.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testFailuresReachTheFailureHandler() throws IOException {
+        var failures = new ArrayList<String>();
+        table = new InFlightTable((message, failure, deliveryTag, acknowledger) -> {
+            failures.add(deliveryTag + ": " + failure);
+            acknowledger.ack(deliveryTag, false);
+        });
+        var keys = add(2);
+        table.complete(keys[0], "boom");
+        table.complete(keys[1], false);
+        table.flush(acks);
+        assertEquals(List.of("1: boom", "2: " + InFlightTable.UNKNOWN_FAILURE), failures);
+        verify(acks).ack(1, false);
+        verify(acks).ack(2, false);
+        verifyNoMoreInteractions(acks);
+    }
+
+    @Test
+    public void testRetainedMessagesCompleteOnce() throws IOException {
+        var keys = add(1);
+        table.retain(keys[0], 1);
+        assertEquals(-1, table.complete(keys[0], false));
+        assertTrue(table.complete(keys[0], true) > 0);
+        table.flush(acks);
+        verify(acks, times(1)).nack(1, false, true);  // any failed delivery requeues the message
+        verifyNoMoreInteractions(acks);
+    }
+
+    @Test
+    public void testUnknownMessages() {
+        assertEquals(-1, table.complete(UUID.randomUUID(), true));
+        assertEquals(-1, table.complete(null, true));
+    }
+
+    // adds messages with delivery tags 1..n
+    private UUID[] add(int n) {
+        var keys = new UUID[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = UUID.randomUUID();
+            table.add(keys[i], i + 1);
+        }
+        return keys;
+    }
+}
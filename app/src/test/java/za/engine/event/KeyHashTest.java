@@ -0,0 +1,33 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class KeyHashTest {
+    @Test
+    public void testBucketsAreStableAndInRange() {
+        assertEquals(0, KeyHash.bucket("key", 1));
+        int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++) {
+            int bucket = KeyHash.bucket("key-" + i, counts.length);
+            assertEquals(bucket, KeyHash.bucket("key-" + i, counts.length));
+            counts[bucket]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200, "about even, got " + count);
+        }
+    }
+
+    @Test
+    public void testGrowingOnlyMovesKeysToTheNewBucket() {
+        for (int i = 0; i < 1000; i++) {
+            var key = "key-" + i;
+            for (int buckets = 1; buckets < 16; buckets++) {
+                int before = KeyHash.bucket(key, buckets);
+                int after = KeyHash.bucket(key, buckets + 1);
+                assertTrue(after == before || after == buckets, key + " moved from " + before + " to " + after);
+            }
+        }
+    }
+}
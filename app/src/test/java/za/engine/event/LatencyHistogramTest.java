@@ -0,0 +1,39 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        var histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.meanNanos());
+        assertEquals(0, histogram.percentileNanos(0.99));
+    }
+
+    @Test
+    public void testPercentilesAreUpperBoundsWithinAFactorOfTwo() {
+        var histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000);  // 1us
+        }
+        histogram.record(50_000_000);  // 50ms
+        assertEquals(100, histogram.count());
+        assertEquals(50_000_000, histogram.maxNanos());
+        long p50 = histogram.percentileNanos(0.5);
+        assertTrue(p50 >= 1_000 && p50 < 2_000, "p50 was " + p50);
+        assertEquals(p50, histogram.percentileNanos(0.99));
+        assertEquals(50_000_000, histogram.percentileNanos(1.0));
+        assertEquals((99 * 1_000 + 50_000_000) / 100, histogram.meanNanos());
+    }
+
+    @Test
+    public void testNegativeDurationsAreClamped() {
+        var histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.maxNanos());
+    }
+}
@@ -0,0 +1,70 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+
+public class MessageDeduplicatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testIdsAreRememberedForAtLeastOneWindow() {
+        long start = System.nanoTime();
+        var dedup = new MessageDeduplicator(100, 1024);
+        long hash = MessageDeduplicator.hash("a");
+        assertTrue(dedup.firstSeen(hash, start));
+        assertFalse(dedup.firstSeen(hash, start + 50 * MS));
+        assertFalse(dedup.firstSeen(hash, start + 150 * MS), "still in the previous generation");
+        assertTrue(dedup.firstSeen(hash, start + 350 * MS), "two windows later");
+    }
+
+    @Test
+    public void testCapacityBoundsTheRememberedIds() {
+        var dedup = new MessageDeduplicator(60_000, 4);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(dedup.firstSeen(i, 0));
+        }
+        assertTrue(dedup.firstSeen(0, 0), "pushed out by newer ids");
+        assertFalse(dedup.firstSeen(5, 0));
+    }
+
+    @Test
+    public void testForgottenIdsAreSeenAgain() {
+        var dedup = new MessageDeduplicator(60_000, 1024);
+        long hash = MessageDeduplicator.hash("a");
+        assertTrue(dedup.firstSeen(hash, 0));
+        dedup.forget(hash);
+        assertTrue(dedup.firstSeen(hash, 0));
+    }
+
+    @Test
+    public void testDataKeyChannelsAreDeduplicatedByDataKey() {
+        var dedup = new MessageDeduplicator(60_000, 1024, ChannelSet.parse("crawl"));
+        var first = message("crawl", "id1", "https://example.com/");
+        var sameUrl = message("crawl", "id2", "https://example.com/");
+        assertEquals(dedup.hash(first), dedup.hash(sameUrl));
+        assertNotEquals(dedup.hash(first), dedup.hash(message("crawl", "id1", "https://example.org/")));
+        assertNotEquals(dedup.hash(first), dedup.hash(message("other", "id3", "https://example.com/")), "by id");
+        assertEquals(MessageDeduplicator.hash("id3"), dedup.hash(message("other", "id3", "https://example.com/")));
+        assertTrue(dedup.firstSeen(dedup.hash(first), 0));
+        assertFalse(dedup.firstSeen(dedup.hash(sameUrl), 0));
+        assertNull(dedup.hash(new InternalMessage(UUID.randomUUID(), "in", "other", "pluginId", Optional.empty(), Map.of())));
+    }
+
+    @Test
+    public void testHashesDifferByContent() {
+        assertEquals(MessageDeduplicator.hash("message-1"), MessageDeduplicator.hash("message-1"));
+        assertNotEquals(MessageDeduplicator.hash("message-1"), MessageDeduplicator.hash("message-2"));
+    }
+
+    private static InternalMessage message(String channel, String messageId, String url) {
+        return new InternalMessage(UUID.randomUUID(), "in", channel, "pluginId", Optional.of(messageId), Map.of("url", url));
+    }
+}
@@ -0,0 +1,74 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+public class MessageRoutingTest {
+    @Test
+    public void testDefaultsRouteByContext() {
+        var routing = MessageRouting.defaults();
+        assertEquals("za.i", routing.queueName("in", "anything", "id"));
+        assertEquals("za.o", routing.queueName("out", "anything", "id"));
+        assertEquals(List.of("za.i"), routing.queueNames("in"));
+    }
+
+    @Test
+    public void testTheFirstMatchingRouteWins() {
+        var routing = MessageRouting.parse("in:crawl.*=za.crawl,in:crawl.fetch=za.never,in:*=za.i,out:*=za.o");
+        assertEquals("za.crawl", routing.queueName("in", "crawl.fetch", "id"));
+        assertEquals("za.crawl", routing.queueName("in", "crawl.", "id"));
+        assertEquals("za.i", routing.queueName("in", "crawler", "id"));
+        assertEquals("za.o", routing.queueName("out", "crawl.fetch", "id"));
+    }
+
+    @Test
+    public void testPartitionsSpreadAChannelByItsKey() {
+        var routing = MessageRouting.parse("in:hot=za.hot/4,in:*=za.i");
+        assertEquals(List.of("za.hot.0", "za.hot.1", "za.hot.2", "za.hot.3", "za.i"), routing.queueNames("in"));
+        assertEquals(routing.queueName("in", "hot", "key"), routing.queueName("in", "hot", "key"));
+        var used = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            used.add(routing.queueName("in", "hot", UUID.randomUUID().toString()));
+        }
+        assertEquals(4, used.size());
+    }
+
+    @Test
+    public void testAddingAPartitionOnlyMovesKeysToIt() {
+        var four = MessageRouting.parse("in:hot=za.hot/4");
+        var five = MessageRouting.parse("in:hot=za.hot/5");
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            var key = "host-" + i;
+            var before = four.queueName("in", "hot", key);
+            var after = five.queueName("in", "hot", key);
+            if (!before.equals(after)) {
+                assertEquals("za.hot.4", after);
+                moved++;
+            }
+        }
+        assertTrue(moved > 100 && moved < 300, "about a fifth of the keys move, moved " + moved);
+    }
+
+    @Test
+    public void testContextsWithoutACatchAllGetTheDefaultOne() {
+        var routing = MessageRouting.parse("in:a=za.a");
+        assertEquals("za.i", routing.queueName("in", "b", "id"));
+        assertEquals("za.o", routing.queueName("out", "a", "id"));
+        assertEquals(List.of("za.a", "za.i"), routing.queueNames("in"));
+        assertEquals("za.x", MessageRouting.parse("in:*=za.x").queueName("in", "b", "id"), "no default if it has one");
+        assertEquals(List.of("za.x"), MessageRouting.parse("in:*=za.x").queueNames("in"));
+    }
+
+    @Test
+    public void testInvalidRoutesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> MessageRouting.parse("in:a"));
+        assertThrows(IllegalArgumentException.class, () -> MessageRouting.parse("sideways:*=za.a"));
+        assertThrows(IllegalArgumentException.class, () -> MessageRouting.parse("in:*=za.a/0"));
+    }
+}
@@ -0,0 +1,76 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import za.engine.mq.MessageClient;
+
+public class MessageSpoolTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testMessagesAreReadInOrderAndTruncatedOnceSent() throws IOException {
+        try (var spool = new MessageSpool(dir)) {
+            assertTrue(spool.isEmpty());
+            for (int i = 0; i < 5; i++) {
+                spool.append(message(i));
+            }
+            var first = spool.read(3, Long.MAX_VALUE);
+            assertEquals(List.of(message(0), message(1), message(2)), first.messages());
+            assertEquals(first.messages(), spool.read(3, Long.MAX_VALUE).messages(), "reading does not remove");
+            spool.commit(first);
+            var second = spool.read(3, Long.MAX_VALUE);
+            assertEquals(List.of(message(3), message(4)), second.messages());
+            spool.commit(second);
+            assertTrue(spool.isEmpty());
+            assertEquals(0, Files.size(dir.resolve(MessageSpool.SPOOL_FILE_NAME)));
+        }
+    }
+
+    @Test
+    public void testChunksAreBoundedByBytes() throws IOException {
+        try (var spool = new MessageSpool(dir)) {
+            spool.append(message(0));
+            spool.append(message(1));
+            assertEquals(1, spool.read(10, 1).messages().size(), "at least one message");
+            assertEquals(2, spool.read(10, spool.size()).messages().size());
+        }
+    }
+
+    @Test
+    public void testUnsentMessagesSurviveARestart() throws IOException {
+        try (var spool = new MessageSpool(dir)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(message(i));
+            }
+            spool.commit(spool.read(1, Long.MAX_VALUE));
+        }
+        // a crash while appending leaves a partial record behind
+        Files.write(dir.resolve(MessageSpool.SPOOL_FILE_NAME), new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+        try (var spool = new MessageSpool(dir)) {
+            assertEquals(List.of(message(1), message(2)), spool.read(10, Long.MAX_VALUE).messages());
+            spool.append(message(3));
+            assertEquals(List.of(message(1), message(2), message(3)), spool.read(10, Long.MAX_VALUE).messages());
+        }
+    }
+
+    @Test
+    public void testOneEnginePerDirectory() throws IOException {
+        try (var spool = new MessageSpool(dir)) {
+            assertThrows(IllegalStateException.class, () -> new MessageSpool(dir));
+        }
+    }
+
+    private static MessageClient.Outgoing message(int i) {
+        return new MessageClient.Outgoing("za.o", "id-" + i, "1:out:chan:plugin::message-" + i);
+    }
+}
@@ -0,0 +1,69 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class ReceiveLimiterTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicReference<Double> occupancy = new AtomicReference<>(0.0);
+
+    @Test
+    public void testUsedLimitGrowsWhileLatencyIsStable() {
+        var limiter = new ReceiveLimiter(10, 1, 100, occupancy::get);
+        long now = 0;
+        for (int i = 0; i < 1000; i++) {
+            limiter.onComplete(MS, limiter.limit(), now += MS);
+        }
+        assertTrue(limiter.limit() > 40, "limit was " + limiter.limit());
+    }
+
+    @Test
+    public void testUnusedLimitDoesNotGrow() {
+        var limiter = new ReceiveLimiter(10, 1, 100, occupancy::get);
+        long now = 0;
+        for (int i = 0; i < 1000; i++) {
+            limiter.onComplete(MS, 1, now += MS);
+        }
+        assertEquals(10, limiter.limit());
+    }
+
+    @Test
+    public void testLimitShrinksOncePerRoundTripWhenLatencyRises() {
+        var limiter = new ReceiveLimiter(100, 1, 100, occupancy::get);
+        long now = 0;
+        limiter.onComplete(MS, 100, now += MS);  // baseline
+        limiter.onComplete(10 * MS, 100, now += 10 * MS);
+        assertEquals(90, limiter.limit());
+        limiter.onComplete(10 * MS, 100, now += MS);  // same congestion episode
+        assertEquals(90, limiter.limit());
+        for (int i = 0; i < 100; i++) {
+            limiter.onComplete(10 * MS, 100, now += 10 * MS);
+        }
+        assertTrue(limiter.limit() < 90);
+        assertTrue(limiter.limit() >= 1);
+    }
+
+    @Test
+    public void testLimitShrinksWhenTheEventQueueIsCongested() {
+        var limiter = new ReceiveLimiter(50, 5, 100, occupancy::get);
+        occupancy.set(0.9);
+        long now = 0;
+        for (int i = 0; i < 1000; i++) {
+            limiter.onComplete(MS, 50, now += MS);
+        }
+        assertEquals(5, limiter.limit(), "the limit must not go below its min");
+    }
+
+    @Test
+    public void testInitialLimitIsClampedAndBoundsAreValidated() {
+        assertEquals(20, new ReceiveLimiter(10, 20, 30, occupancy::get).limit());
+        assertEquals(5, new ReceiveLimiter(10, 1, 5, occupancy::get).limit());
+        assertThrows(IllegalArgumentException.class, () -> new ReceiveLimiter(10, 0, 5, occupancy::get));
+        assertThrows(IllegalArgumentException.class, () -> new ReceiveLimiter(10, 6, 5, occupancy::get));
+    }
+}
@@ -0,0 +1,24 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RetryPolicyTest {
+    @Test
+    public void testBackoffDoublesUpToTheMax() {
+        var policy = new RetryPolicy(8, 1000, 5000);
+        assertEquals(1000, policy.backoffMs(1));
+        assertEquals(2000, policy.backoffMs(2));
+        assertEquals(4000, policy.backoffMs(3));
+        assertEquals(5000, policy.backoffMs(4));
+        assertEquals(5000, policy.backoffMs(100), "does not overflow");
+    }
+
+    @Test
+    public void testInvalidPolicies() {
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(0, 1000, 5000));
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(3, 5000, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(3, 1000, RetryPolicy.MAX_BACKOFF_MS + 1));
+    }
+}
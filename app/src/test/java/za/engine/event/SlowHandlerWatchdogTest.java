@@ -0,0 +1,44 @@
+package za.engine.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import za.lib.Logger;
+
+public class SlowHandlerWatchdogTest {
+    private static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger log = mock(Logger.class);
+    private final EventTracer tracer = new EventTracer();
+
+    @Test
+    public void testSlowHandlersAreFlaggedOncePerDispatch() {
+        var watchdog = new SlowHandlerWatchdog(log, List.of(tracer), 100, false);
+        tracer.bind(Thread.currentThread());
+        long start = tracer.beginHandler(Events.HTTP_RECEIVE, "pluginId", 0);
+        assertEquals(0, watchdog.check(start + THRESHOLD_NANOS - 1));
+        assertEquals(1, watchdog.check(start + THRESHOLD_NANOS));
+        assertEquals(0, watchdog.check(start + 2 * THRESHOLD_NANOS), "already flagged");
+        verify(log, times(1)).warn(anyString(), eq("HTTP_RECEIVE of plugin pluginId"), anyString(), anyLong());
+        tracer.endHandler(Events.HTTP_RECEIVE, "pluginId", start);
+        assertEquals(0, watchdog.check(start + 3 * THRESHOLD_NANOS), "the loop is idle");
+
+        start = tracer.beginHandler(Events.MQ_RECEIVE, null, 0);
+        assertEquals(1, watchdog.check(start + THRESHOLD_NANOS), "a new dispatch is flagged again");
+        assertEquals(2, watchdog.getSlowHandlers());
+    }
+
+    @Test
+    public void testStacksAreDumpedWhenEnabled() {
+        var watchdog = new SlowHandlerWatchdog(log, List.of(tracer), 100, true);
+        tracer.bind(Thread.currentThread());
+        long start = tracer.beginHandler(Events.MQ_SEND, null, 0);
+        watchdog.check(start + THRESHOLD_NANOS);
+        verify(log, times(1)).warn(eq("Stack of %s:%s"), eq(Thread.currentThread().getName()), contains("testStacksAreDumpedWhenEnabled"));
+    }
+}
@@ -8,9 +8,7 @@ import java.util.function.Consumer;
 
 import org.junit.jupiter.api.Test;
 
-import za.engine.event.Event;
 import za.engine.event.EventLoop;
-import za.engine.event.Events;
 import za.lib.HttpClient;
 
 public class EventedHttpClientTest {
@@ -23,7 +21,16 @@ public class EventedHttpClientTest {
         @SuppressWarnings("unchecked")
         Consumer<HttpClient.Response> next = mock(Consumer.class);
         http.send(req, next);
-        Event expected = Events.HTTP_SEND.wrap(new EventedHttpClient.SendEventData(req, next));
-        verify(eventLoop, times(1)).submit(expected);
+        verify(eventLoop, times(1)).submitHttpSend(req, next, null);
+    }
+
+    @Test
+    public void testItTagsEventsWithTheOwningPlugin() {
+        EventedHttpClient http = new EventedHttpClient(eventLoop, "pluginId");
+        HttpClient.Request req = mock(HttpClient.Request.class);
+        @SuppressWarnings("unchecked")
+        Consumer<HttpClient.Response> next = mock(Consumer.class);
+        http.send(req, next);
+        verify(eventLoop, times(1)).submitHttpSend(req, next, "pluginId");
     }
 }
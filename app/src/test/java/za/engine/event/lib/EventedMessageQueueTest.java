@@ -5,9 +5,7 @@ import static org.mockito.Mockito.*;
 import org.junit.jupiter.api.Test;
 
 import za.engine.InternalMessage;
-import za.engine.event.Event;
 import za.engine.event.EventLoop;
-import za.engine.event.Events;
 
 public class EventedMessageQueueTest {
     private final EventLoop eventLoop = mock(EventLoop.class);
@@ -18,18 +16,16 @@ public class EventedMessageQueueTest {
 
         String messageId = "some_message_id";
         InternalMessage message = mock(InternalMessage.class);
-        Event expectedSendEvent = Events.MQ_SEND.wrap(new EventedMessageListener.SendEventData(message));
-        Event expectedReceiveEvent = Events.MQ_RECEIVE.wrap(new EventedMessageListener.ReceiveEventData(message));
 
-        verify(eventLoop, never()).submit(expectedSendEvent);
-        verify(eventLoop, never()).submit(expectedReceiveEvent);
+        verify(eventLoop, never()).submitMessageSend(message);
+        verify(eventLoop, never()).submitMessageReceive(message);
 
         mq.onSend(message);
-        verify(eventLoop, times(1)).submit(expectedSendEvent);
-        verify(eventLoop, never()).submit(expectedReceiveEvent);
+        verify(eventLoop, times(1)).submitMessageSend(message);
+        verify(eventLoop, never()).submitMessageReceive(message);
 
         mq.onReceive(message);
-        verify(eventLoop, times(1)).submit(expectedReceiveEvent);
-        verify(eventLoop, times(1)).submit(expectedSendEvent);  // assert it only sent once
+        verify(eventLoop, times(1)).submitMessageReceive(message);
+        verify(eventLoop, times(1)).submitMessageSend(message);  // assert it only sent once
     }
 }
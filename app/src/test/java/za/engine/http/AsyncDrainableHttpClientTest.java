@@ -5,9 +5,13 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -70,4 +74,35 @@ public class AsyncDrainableHttpClientTest {
         }
         assertThrows(RuntimeException.class, () -> http.send(request, response -> {}));
     }
+
+    @Test
+    public void testConcurrencyLimitsInFlightRequestsAndResponsesNotifyListener() {
+        final int concurrency = 4;
+        List<QueueData> inFlight = new ArrayList<>();
+        List<Consumer<QueueData>> callbacks = new ArrayList<>();
+        HttpClientFacade slowFacade = (qd, handleResponse) -> {
+            inFlight.add(qd);
+            callbacks.add(handleResponse);
+        };
+        var notified = new AtomicInteger();
+        var client = new AsyncDrainableHttpClient(slowFacade, concurrency, Logger.silent());
+        client.setDrainListener(notified::incrementAndGet);
+        var received = new AtomicInteger();
+        for (int i = 0; i < concurrency * 3; i++) {
+            client.send(new HttpClient.Request.Builder().url("fake-url").build(), response -> received.incrementAndGet());
+        }
+        assertTrue(client.drain());
+        assertTrue(client.drain());  // nothing completed, so nothing more may be sent
+        assertEquals(concurrency, inFlight.size());
+        // complete the in-flight requests, as the client's io threads would
+        for (int i = 0; i < concurrency; i++) {
+            var qd = inFlight.get(i);
+            qd.setResponse(new HttpClient.Response.Builder().statusCode(200).build());
+            callbacks.get(i).accept(qd);
+        }
+        assertEquals(concurrency, notified.get());
+        assertTrue(client.drain());
+        assertEquals(concurrency, received.get());
+        assertEquals(concurrency * 2, inFlight.size());
+    }
 }
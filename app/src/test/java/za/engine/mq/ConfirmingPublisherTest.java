@@ -0,0 +1,132 @@
+package za.engine.mq;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+
+public class ConfirmingPublisherTest {
+    private Connection connection;
+    private Channel channel;
+    private AtomicReference<ConfirmListener> listener;
+    private AtomicLong nextSequence;
+    private List<String> publishedIds;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        connection = mock(Connection.class);
+        channel = mock(Channel.class);
+        listener = new AtomicReference<>();
+        nextSequence = new AtomicLong(1);
+        publishedIds = new ArrayList<>();
+        when(connection.createChannel()).thenReturn(channel);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.getNextPublishSeqNo()).thenAnswer(inv -> nextSequence.get());
+        doAnswer(inv -> {
+            listener.set(inv.getArgument(0));
+            return null;
+        }).when(channel).addConfirmListener(any(ConfirmListener.class));
+    }
+
+    @Test
+    public void testBatchesArePipelinedOnOneChannel() throws Exception {
+        confirmEvery(true);
+        var publisher = new ConfirmingPublisher(connection);
+        publisher.publish(batch("za.i", 3));
+        publisher.publish(batch("za.i", 2));
+        verify(connection, times(1)).createChannel();
+        verify(channel, times(1)).confirmSelect();
+        verify(channel, times(1)).queueDeclare(eq("za.i"), anyBoolean(), anyBoolean(), anyBoolean(), any());
+        verify(channel, times(5)).basicPublish(eq(""), eq("za.i"), any(AMQP.BasicProperties.class), any(byte[].class));
+        assertEquals(List.of("id-0", "id-1", "id-2", "id-0", "id-1"), publishedIds);
+    }
+
+    @Test
+    public void testDelayedMessagesGoThroughATierQueue() throws Exception {
+        confirmEvery(true);
+        var delayed = new MessageClient.Outgoing("za.i", "id-0", "message-0".getBytes(StandardCharsets.UTF_8), null,
+            Map.of("za-attempt", "1"), 1500);
+        new ConfirmingPublisher(connection).publish(List.of(delayed, delayed));
+        verify(channel, times(1)).queueDeclare("za.i.delay.2000", false, false, false, Map.of(
+            "x-message-ttl", 2000L, "x-dead-letter-exchange", "", "x-dead-letter-routing-key", "za.i"));
+        verify(channel, times(2)).basicPublish(eq(""), eq("za.i.delay.2000"),
+            argThat(props -> "1".equals(props.getHeaders().get("za-attempt"))), any(byte[].class));
+    }
+
+    @Test
+    public void testNackedMessagesArePublishedAgain() throws Exception {
+        doAnswer(inv -> {
+            long sequence = nextSequence.getAndIncrement();
+            AMQP.BasicProperties props = inv.getArgument(2);
+            publishedIds.add(props.getMessageId());
+            if (sequence == 2) {
+                listener.get().handleNack(sequence, false);
+            } else {
+                listener.get().handleAck(sequence, false);
+            }
+            return null;
+        }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        new ConfirmingPublisher(connection).publish(batch("za.o", 3));
+        assertEquals(List.of("id-0", "id-1", "id-2", "id-1"), publishedIds);  // same id, so it can be deduplicated
+    }
+
+    @Test
+    public void testMessagesOfAFailedChannelArePublishedOnANewOne() throws Exception {
+        var failed = mock(Channel.class);
+        when(connection.createChannel()).thenReturn(failed, channel);
+        when(failed.isOpen()).thenReturn(true);
+        doThrow(new IOException("channel closed")).when(failed)
+            .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        confirmEvery(true);
+        new ConfirmingPublisher(connection).publish(batch("za.o", 3));
+        verify(failed, times(1)).close();
+        assertEquals(List.of("id-0", "id-1", "id-2"), publishedIds);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        confirmEvery(false);
+        var publisher = new ConfirmingPublisher(connection);
+        assertThrows(IOException.class, () -> publisher.publish(batch("za.o", 1)));
+        verify(channel, times(ConfirmingPublisher.MAX_PUBLISH_ATTEMPTS))
+            .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    // the broker acks (or nacks) every message as soon as it is published
+    private void confirmEvery(boolean ack) throws IOException {
+        doAnswer(inv -> {
+            long sequence = nextSequence.getAndIncrement();
+            AMQP.BasicProperties props = inv.getArgument(2);
+            publishedIds.add(props.getMessageId());
+            if (ack) {
+                listener.get().handleAck(sequence, false);
+            } else {
+                listener.get().handleNack(sequence, false);
+            }
+            return null;
+        }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    private static List<MessageClient.Outgoing> batch(String queueName, int size) {
+        var batch = new ArrayList<MessageClient.Outgoing>();
+        for (int i = 0; i < size; i++) {
+            batch.add(new MessageClient.Outgoing(queueName, "id-" + i, "message-" + i));
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,257 @@
+package za.engine.mq;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
+
+public class LocalMessageClientTest {
+    private LocalBroker broker;
+    private LinkedBlockingQueue<Long> received;  // delivery tags
+    private LinkedBlockingQueue<InternalMessage> messages;
+    private AtomicReference<MessageClient.Acknowledger> acknowledger;  // used on the receiving thread only
+    private LinkedBlockingQueue<Runnable> settleActions;
+
+    @BeforeEach
+    public void setup() {
+        broker = new LocalBroker(4);
+        received = new LinkedBlockingQueue<>();
+        messages = new LinkedBlockingQueue<>();
+        acknowledger = new AtomicReference<>();
+        settleActions = new LinkedBlockingQueue<>();
+    }
+
+    @Test
+    public void testImmutableMessagesAreHandedOverWithoutDecoding() throws Exception {
+        var sent = outgoing(Map.of("a", "b"));
+        var received = MessageUtils.decode(UUID.randomUUID(), "id", sent.message(), Map.of()).get();
+        var body = received.serializableBody();  // a received body, sent on
+        new LocalMessageClient(broker, false).sendBatch(List.of(new MessageClient.Outgoing("za.i", "id", sent.message(),
+            received, Map.of(), 0)));
+        var thread = receive(new LocalMessageClient(broker, false));
+        try {
+            var message = messages.poll(1, TimeUnit.SECONDS);
+            assertSame(body, message.serializableBody());
+            assertEquals(Optional.of("id"), message.messageId());
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testBodiesModifiedAfterSendingAreReceivedAsSent() throws Exception {
+        var body = new HashMap<String, Object>(Map.of("a", "b"));
+        new LocalMessageClient(broker, false).sendBatch(List.of(outgoing(body)));
+        body.put("a", "changed");
+        var thread = receive(new LocalMessageClient(broker, false));
+        try {
+            var message = messages.poll(1, TimeUnit.SECONDS);
+            assertEquals(Map.of("a", "b"), message.serializableBody());
+            assertEquals(Optional.of("id"), message.messageId());
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testMessagesAreDecodedWhenRoundTripping() throws Exception {
+        var body = Map.<String, Object>of("a", "b");
+        new LocalMessageClient(broker, true).sendBatch(List.of(outgoing(body)));
+        var thread = receive(new LocalMessageClient(broker, true));
+        try {
+            var message = messages.poll(1, TimeUnit.SECONDS);
+            assertNotSame(body, message.serializableBody());
+            assertEquals(body, message.serializableBody());
+            assertEquals("chan", message.channel());
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testNackedAndUnsettledMessagesAreRequeued() throws Exception {
+        new LocalMessageClient(broker, false).sendBatch(List.of(outgoing(Map.of("a", 1)), outgoing(Map.of("a", 2))));
+        var thread = receive(new LocalMessageClient(broker, false));
+        try {
+            assertEquals(1L, received.poll(1, TimeUnit.SECONDS));
+            assertEquals(2L, received.poll(1, TimeUnit.SECONDS));
+            settleActions.add(() -> nack(1));
+            assertEquals(3L, received.poll(1, TimeUnit.SECONDS));  // redelivered
+        } finally {
+            stop(thread);
+        }
+        assertEquals(2, broker.size("za.i"), "unacknowledged messages go back when the receiver stops");
+    }
+
+    @Test
+    public void testAckedMessagesAreGone() throws Exception {
+        new LocalMessageClient(broker, false).sendBatch(List.of(outgoing(Map.of("a", 1)), outgoing(Map.of("a", 2))));
+        var thread = receive(new LocalMessageClient(broker, false));
+        try {
+            received.poll(1, TimeUnit.SECONDS);
+            received.poll(1, TimeUnit.SECONDS);
+            settleActions.add(() -> ack(2));
+        } finally {
+            Thread.sleep(50);
+            stop(thread);
+        }
+        assertEquals(0, broker.size("za.i"));
+    }
+
+    @Test
+    public void testFullQueuesRejectTheWholeBatch() throws Exception {
+        var client = new LocalMessageClient(broker, false);
+        client.sendBatch(List.of(outgoing(Map.of()), outgoing(Map.of()), outgoing(Map.of())));
+        assertThrows(IOException.class, () -> client.sendBatch(List.of(outgoing(Map.of()), outgoing(Map.of()))));
+        assertEquals(3, broker.size("za.i"));
+        client.sendBatch(List.of(outgoing(Map.of())));
+        assertEquals(4, broker.size("za.i"));
+    }
+
+    @Test
+    public void testDiscardedQueuesNeverFillUp() throws Exception {
+        broker.discard("za.o");
+        var client = new LocalMessageClient(broker, false);
+        for (int i = 0; i < 10; i++) {
+            client.sendBatch(List.of(new MessageClient.Outgoing("za.o", "id", "{}")));
+        }
+        assertEquals(0, broker.size("za.o"));
+        assertNull(broker.poll("za.o"));
+        assertEquals(10, broker.discarded("za.o"));
+        client.sendBatch(List.of(outgoing(Map.of()), outgoing(Map.of()), outgoing(Map.of()), outgoing(Map.of())));
+        assertThrows(IOException.class, () -> client.sendBatch(List.of(outgoing(Map.of()))), "other queues stay bounded");
+    }
+
+    @Test
+    public void testOnlySourcesThatAreHandedOverAreKept() throws Exception {
+        var client = new LocalMessageClient(broker, false);
+        client.sendBatch(List.of(outgoing(new HashMap<>(Map.of("a", "b")))));
+        assertNull(broker.poll("za.i").source(), "a live body is not held until the message is received");
+        var sent = outgoing(Map.of("a", "b"));
+        var received = MessageUtils.decode(UUID.randomUUID(), "id", sent.message(), Map.of()).get();
+        client.sendBatch(List.of(new MessageClient.Outgoing("za.i", "id", sent.message(), received, Map.of(), 0)));
+        assertSame(received, broker.poll("za.i").source());
+        new LocalMessageClient(broker, true).sendBatch(List.of(new MessageClient.Outgoing("za.i", "id", sent.message(), received, Map.of(), 0)));
+        assertNull(broker.poll("za.i").source(), "round trips decode anyway");
+    }
+
+    @Test
+    public void testDelayedMessagesArriveOnceTheDelayPassed() throws Exception {
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.empty(), Map.of());
+        var delayed = new MessageClient.Outgoing("za.i", "id", MessageUtils.encode(message, MessageUtils.WIRE_V1).get(), message,
+            Map.of(InternalMessage.ATTEMPT_HEADER, "1"), 200);
+        new LocalMessageClient(broker, false).sendBatch(List.of(delayed));
+        assertEquals(1, broker.size("za.i"), "counts against the capacity while it waits");
+        var thread = receive(new LocalMessageClient(broker, false));
+        try {
+            assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+            var received = messages.poll(1, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(1, received.attempt());
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testUndecodableMessagesAreDeadLetteredAndReplayed() throws Exception {
+        var client = new LocalMessageClient(broker, true);
+        client.sendBatch(List.of(new MessageClient.Outgoing("za.i", "id", "1:in:chan:pluginId:broken")));
+        var thread = receive(client);
+        try {
+            assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            stop(thread);
+        }
+        assertEquals(0, broker.size("za.i"));
+        var deadLetter = broker.poll("za.i.dlq");
+        assertEquals("id", deadLetter.messageId());
+        assertEquals(Map.of(
+            InternalMessage.ATTEMPT_HEADER, "1",
+            DeadLetters.REASON_HEADER, DeadLetters.DECODE_FAILED,
+            DeadLetters.ORIGIN_QUEUE_HEADER, "za.i",
+            DeadLetters.ORIGIN_CHANNEL_HEADER, "chan"), deadLetter.headers());
+
+        client.sendBatch(List.of(deadLetter, deadLetter));
+        assertEquals(1, client.replayDeadLetters("za.i", 1));
+        assertEquals(1, client.replayDeadLetters("za.i", 10));
+        assertEquals(0, client.replayDeadLetters("za.i", 10));
+        var replayed = broker.poll("za.i");
+        assertEquals("1:in:chan:pluginId:broken", new String(replayed.message(), StandardCharsets.UTF_8));
+        assertEquals(Map.of(), replayed.headers());
+    }
+
+    private Thread receive(LocalMessageClient client) {
+        var thread = new Thread(() -> {
+            try {
+                client.receiveBlocking("za.i", MessageClient.ReceiveMode.PUSH, new MessageClient.Receiver() {
+                    @Override
+                    public boolean canReceiveMore() {
+                        return true;
+                    }
+
+                    @Override
+                    public void onReceive(InternalMessage message, long deliveryTag) {
+                        messages.add(message);
+                        received.add(deliveryTag);
+                    }
+
+                    @Override
+                    public void settle(MessageClient.Acknowledger acks) {
+                        acknowledger.set(acks);
+                        Runnable action;
+                        while ((action = settleActions.poll()) != null) {
+                            action.run();
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                // stopped by the test
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void ack(long deliveryTag) {
+        try {
+            acknowledger.get().ack(deliveryTag, true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void nack(long deliveryTag) {
+        try {
+            acknowledger.get().nack(deliveryTag, false, true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void stop(Thread thread) throws InterruptedException {
+        thread.interrupt();
+        thread.join(1000);
+    }
+
+    private static MessageClient.Outgoing outgoing(Map<String, Object> body) {
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.empty(), body);
+        return new MessageClient.Outgoing("za.i", "id", MessageUtils.encode(message).get(), message);
+    }
+}
@@ -1,9 +1,11 @@
 package za.engine.mq;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
@@ -64,6 +66,21 @@ public class MockMQClientTest {
         assertTrue(sharedMap.isEmpty(), "the mq did not receive all mock messages");
     }
 
+    @Test
+    public void testDeadLettersAreReplayedIntoTheirQueue() throws Exception {
+        var client = new MockMessageClient();
+        var deadLetter = DeadLetters.deadLetter("za.i", "id", new byte[] {1, 2}, Map.of(), 3, "chan", "failed");
+        client.sendBatch(List.of(deadLetter));
+        assertEquals(List.of(deadLetter), client.getDeadLetters("za.i"));
+        assertEquals(1, client.replayDeadLetters("za.i", 10));
+        assertEquals(0, client.replayDeadLetters("za.i", 10), "replayed dead letters are gone");
+        assertTrue(client.getDeadLetters("za.i").isEmpty());
+        var replayed = client.getSentBatchMessages().get(1);
+        assertEquals("za.i", replayed.queueName());
+        assertEquals("id", replayed.messageId());
+        assertEquals(Map.of(), replayed.headers());
+    }
+
     private record MessageQueueImpl(Map<String, InternalMessage> messageMap, Object lock) implements MessageListener {
         @Override
         public void onSend(InternalMessage message) {
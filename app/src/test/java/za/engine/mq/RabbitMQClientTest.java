@@ -0,0 +1,172 @@
+package za.engine.mq;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
+
+public class RabbitMQClientTest {
+    private ConnectionFactory factory;
+    private Channel channel;
+    private MessageClient.Receiver receiver;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        factory = mock(ConnectionFactory.class);
+        var connection = mock(Connection.class);
+        channel = mock(Channel.class);
+        when(factory.newConnection()).thenReturn(connection);
+        when(connection.createChannel()).thenReturn(channel);
+        receiver = mock(MessageClient.Receiver.class);
+        when(receiver.canReceiveMore()).thenReturn(true);
+    }
+
+    @Test
+    public void testPushModeConsumesWithPrefetch() throws Exception {
+        when(receiver.prefetch()).thenReturn(74, 74, 80);
+        var thread = receive(MessageClient.ReceiveMode.PUSH);
+        try {
+            var callback = ArgumentCaptor.forClass(DeliverCallback.class);
+            verify(channel, timeout(1000)).basicConsume(eq("za.i"), eq(false), callback.capture(), any(CancelCallback.class));
+            verify(channel).basicQos(74);
+            verify(channel, timeout(1000)).basicQos(80);  // follows the receive limit
+            var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("id"), Map.of("a", "b"));
+            callback.getValue().handle("tag", delivery(7, "id", MessageUtils.encode(message).get()));
+            var received = ArgumentCaptor.forClass(InternalMessage.class);
+            verify(receiver, timeout(1000)).onReceive(received.capture(), eq(7L));
+            assertEquals("chan", received.getValue().channel());
+            verify(channel, never()).basicGet(anyString(), anyBoolean());
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+        verify(receiver).flush(any());
+        verify(channel).close();  // prefetched messages are requeued
+    }
+
+    @Test
+    public void testUndecodableMessagesAreDeadLettered() throws Exception {
+        var listener = new AtomicReference<ConfirmListener>();
+        doAnswer(inv -> {
+            listener.set(inv.getArgument(0));
+            return null;
+        }).when(channel).addConfirmListener(any(ConfirmListener.class));
+        doAnswer(inv -> {
+            listener.get().handleAck(0, false);  // the next publish sequence number of the mock
+            return null;
+        }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        var thread = receive(MessageClient.ReceiveMode.PUSH);
+        try {
+            var callback = ArgumentCaptor.forClass(DeliverCallback.class);
+            verify(channel, timeout(1000)).basicConsume(anyString(), anyBoolean(), callback.capture(), any(CancelCallback.class));
+            callback.getValue().handle("tag", delivery(3, "id", "garbage"));
+            verify(channel, timeout(1000)).basicAck(3, false);  // once the dead letter was confirmed
+            var props = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+            verify(channel).basicPublish(eq(""), eq("za.i.dlq"), props.capture(), eq("garbage".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("id", props.getValue().getMessageId());
+            assertEquals(DeadLetters.DECODE_FAILED, props.getValue().getHeaders().get(DeadLetters.REASON_HEADER));
+            assertEquals("za.i", props.getValue().getHeaders().get(DeadLetters.ORIGIN_QUEUE_HEADER));
+            verify(receiver, never()).onReceive(any(), anyLong());
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void testUndecodableMessagesAreRequeuedIfDeadLetteringFails() throws Exception {
+        doThrow(new IOException("Mock broker is unavailable"))
+            .when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        var thread = receive(MessageClient.ReceiveMode.PUSH);
+        try {
+            var callback = ArgumentCaptor.forClass(DeliverCallback.class);
+            verify(channel, timeout(1000)).basicConsume(anyString(), anyBoolean(), callback.capture(), any(CancelCallback.class));
+            callback.getValue().handle("tag", delivery(3, "id", "garbage"));
+            verify(channel, timeout(1000)).basicNack(3, false, true);
+            verify(channel, times(ConfirmingPublisher.MAX_PUBLISH_ATTEMPTS))
+                .basicPublish(eq(""), eq("za.i.dlq"), any(AMQP.BasicProperties.class), any(byte[].class));
+            var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("id"), Map.of());
+            callback.getValue().handle("tag", delivery(4, "id", MessageUtils.encode(message).get()));
+            verify(receiver, timeout(1000)).onReceive(any(), eq(4L));  // still receiving
+            verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void testPollModeWaitsForCapacity() throws Exception {
+        when(receiver.canReceiveMore()).thenReturn(false);
+        var thread = receive(MessageClient.ReceiveMode.POLL);
+        try {
+            verify(receiver, timeout(1000).atLeastOnce()).awaitCapacity(anyLong());
+            verify(channel, never()).basicGet(anyString(), anyBoolean());
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void testPollModeRequeuesUnsettledMessagesOnStop() throws Exception {
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.of("id"), Map.of("a", "b"));
+        var body = MessageUtils.encode(message).get().getBytes(StandardCharsets.UTF_8);
+        var props = new AMQP.BasicProperties.Builder().messageId("id").build();
+        when(channel.basicGet("za.i", false)).thenReturn(new GetResponse(new Envelope(3, false, "", "za.i"), props, body, 0), (GetResponse) null);
+        var thread = receive(MessageClient.ReceiveMode.POLL);
+        try {
+            verify(receiver, timeout(1000)).onReceive(any(InternalMessage.class), eq(3L));
+        } finally {
+            thread.interrupt();
+            thread.join(1000);
+        }
+        verify(receiver).flush(any());
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        verify(channel).close();  // the fetched message is requeued
+    }
+
+    // the client keeps its connection per thread, so it is created on the receiving thread
+    private Thread receive(MessageClient.ReceiveMode mode) {
+        var thread = new Thread(() -> {
+            try {
+                new RabbitMQClient(factory).receiveBlocking("za.i", mode, receiver);
+            } catch (InterruptedException e) {
+                // stopped by the test
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Delivery delivery(long deliveryTag, String messageId, String body) {
+        var props = new AMQP.BasicProperties.Builder().messageId(messageId).build();
+        return new Delivery(new Envelope(deliveryTag, false, "", "za.i"), props, body.getBytes(StandardCharsets.UTF_8));
+    }
+}
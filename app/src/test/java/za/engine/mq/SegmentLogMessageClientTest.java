@@ -0,0 +1,291 @@
+package za.engine.mq;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import za.engine.InternalMessage;
+import za.engine.MessageUtils;
+
+public class SegmentLogMessageClientTest {
+    @TempDir
+    Path dir;
+
+    private LinkedBlockingQueue<InternalMessage> received;
+    private LinkedBlockingQueue<Long> deliveryTags;
+    private LinkedBlockingQueue<Long> toAck;
+
+    @BeforeEach
+    public void setup() {
+        received = new LinkedBlockingQueue<>();
+        deliveryTags = new LinkedBlockingQueue<>();
+        toAck = new LinkedBlockingQueue<>();
+    }
+
+    @Test
+    public void testMessagesAreReceivedInOrder() throws Exception {
+        var store = new SegmentLogStore(dir);
+        var client = new SegmentLogMessageClient(store);
+        client.sendBatch(List.of(outgoing(0), outgoing(1)));
+        var thread = receive(client);
+        try {
+            assertEquals(0, i(received.poll(1, TimeUnit.SECONDS)));
+            assertEquals(1, i(received.poll(1, TimeUnit.SECONDS)));
+            client.sendBatch(List.of(outgoing(2)));  // wakes the waiting receiver
+            var message = received.poll(1, TimeUnit.SECONDS);
+            assertEquals(2, i(message));
+            assertEquals(Optional.of("id-2"), message.messageId());
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testUnacknowledgedMessagesAreDeliveredAfterARestart() throws Exception {
+        var client = new SegmentLogMessageClient(new SegmentLogStore(dir));
+        client.sendBatch(List.of(outgoing(0), outgoing(1), outgoing(2)));
+        var thread = receive(client);
+        try {
+            for (int i = 0; i < 3; i++) {
+                deliveryTags.poll(1, TimeUnit.SECONDS);
+            }
+            toAck.add(2L);  // acks messages 0 and 1
+            awaitCommitted(client, 2);
+        } finally {
+            stop(thread);
+        }
+        received.clear();
+        var restarted = new SegmentLogMessageClient(new SegmentLogStore(dir));
+        thread = receive(restarted);
+        try {
+            assertEquals(2, i(received.poll(1, TimeUnit.SECONDS)));
+            assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+        } finally {
+            stop(thread);
+        }
+    }
+
+    @Test
+    public void testSegmentsRotateAndAcknowledgedSegmentsAreDeleted() throws Exception {
+        var store = new SegmentLogStore(dir, 256);
+        var client = new SegmentLogMessageClient(store);
+        var batch = new ArrayList<MessageClient.Outgoing>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(outgoing(i));
+        }
+        client.sendBatch(batch);
+        assertTrue(segmentFiles().size() > 2);
+        var thread = receive(client);
+        try {
+            long last = 0;
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, i(received.poll(1, TimeUnit.SECONDS)));
+                last = deliveryTags.poll(1, TimeUnit.SECONDS);
+            }
+            toAck.add(last);
+            awaitCommitted(client, 20);
+        } finally {
+            stop(thread);
+        }
+        assertEquals(1, segmentFiles().size(), "only the tail segment is left");
+    }
+
+    @Test
+    public void testMessagesLargerThanASegmentAreRejected() {
+        var client = new SegmentLogMessageClient(new SegmentLogStore(dir, 64));
+        assertThrows(IOException.class, () -> client.send("za.i", "x".repeat(100)));
+    }
+
+    @Test
+    public void testDelayedMessagesAreMovedOnceTheirTierPassed() throws Exception {
+        var store = new SegmentLogStore(dir);
+        var client = new SegmentLogMessageClient(store);
+        client.sendBatch(List.of(delayed(outgoing(0), 500)));  // rounded up to the 1s tier
+        var thread = receive(client);
+        try {
+            assertNull(received.poll(800, TimeUnit.MILLISECONDS));
+            var message = received.poll(2, TimeUnit.SECONDS);
+            assertEquals(0, i(message));
+            assertEquals(1, message.attempt());
+        } finally {
+            stop(thread);
+            store.close();
+        }
+    }
+
+    @Test
+    public void testADelayLogThatFailsToMoveDoesNotStallTheOthers() throws Exception {
+        Files.createFile(dir.resolve("za.broken"));  // its queue can not be opened
+        var store = new SegmentLogStore(dir);
+        var client = new SegmentLogMessageClient(store);
+        client.sendBatch(List.of(new MessageClient.Outgoing("za.broken", "id-0", outgoing(0).message(), null, Map.of(), 1000)));
+        Thread.sleep(300);  // due after the broken one failed to move
+        client.sendBatch(List.of(delayed(outgoing(1), 1000)));
+        var thread = receive(client);
+        try {
+            assertEquals(1, i(received.poll(3, TimeUnit.SECONDS)));
+        } finally {
+            stop(thread);
+            store.close();
+        }
+    }
+
+    @Test
+    public void testDelayedMessagesSurviveARestart() throws Exception {
+        var store = new SegmentLogStore(dir);
+        new SegmentLogMessageClient(store).sendBatch(List.of(delayed(outgoing(0), 1000)));
+        store.close();
+        var restarted = new SegmentLogStore(dir);
+        var thread = receive(new SegmentLogMessageClient(restarted));
+        try {
+            assertEquals(0, i(received.poll(3, TimeUnit.SECONDS)));
+        } finally {
+            stop(thread);
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testUndecodableMessagesAreDeadLetteredAndReplayed() throws Exception {
+        var store = new SegmentLogStore(dir);
+        var client = new SegmentLogMessageClient(store);
+        client.sendBatch(List.of(new MessageClient.Outgoing("za.i", "id-x", "broken"), outgoing(1)));
+        var thread = receive(client);
+        try {
+            assertEquals(1, i(received.poll(1, TimeUnit.SECONDS)));  // not stalled by the broken one
+        } finally {
+            stop(thread);
+        }
+        var deadLetters = store.log("za.i.dlq");
+        var cursor = deadLetters.openCursor();
+        var deadLetter = cursor.next();
+        deadLetters.closeCursor();
+        assertEquals("id-x", deadLetter.messageId());
+        assertEquals(DeadLetters.DECODE_FAILED, deadLetter.headers().get(DeadLetters.REASON_HEADER));
+        assertEquals("", deadLetter.headers().get(DeadLetters.ORIGIN_CHANNEL_HEADER));
+
+        received.clear();
+        assertEquals(1, client.replayDeadLetters("za.i", 10));
+        assertEquals(0, client.replayDeadLetters("za.i", 10), "replayed dead letters are gone");
+        thread = receive(client);
+        try {
+            assertEquals(1, i(received.poll(1, TimeUnit.SECONDS)), "was not acknowledged");
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS), "still broken, dead-lettered again");
+        } finally {
+            stop(thread);
+        }
+        assertEquals(1, client.replayDeadLetters("za.i", 10));
+    }
+
+    @Test
+    public void testUndecodableMessagesAreRetriedIfDeadLetteringFails() throws Exception {
+        Files.createFile(dir.resolve("za.i.dlq"));  // the dead-letter log can not be opened
+        var store = new SegmentLogStore(dir);
+        var client = new SegmentLogMessageClient(store);
+        client.sendBatch(List.of(new MessageClient.Outgoing("za.i", "id-x", "broken"), outgoing(1)));
+        var thread = receive(client);
+        try {
+            assertNull(received.poll(300, TimeUnit.MILLISECONDS), "paused at the broken one");
+            assertTrue(thread.isAlive());
+            assertEquals(0, store.log("za.i").committedOffset());
+            Files.delete(dir.resolve("za.i.dlq"));
+            assertEquals(1, i(received.poll(3, TimeUnit.SECONDS)));
+        } finally {
+            stop(thread);
+        }
+        var deadLetters = store.log("za.i.dlq");
+        var cursor = deadLetters.openCursor();
+        assertEquals("id-x", cursor.next().messageId());
+        deadLetters.closeCursor();
+        store.close();
+    }
+
+    private Thread receive(SegmentLogMessageClient client) {
+        var thread = new Thread(() -> {
+            try {
+                client.receiveBlocking("za.i", MessageClient.ReceiveMode.PUSH, new MessageClient.Receiver() {
+                    @Override
+                    public boolean canReceiveMore() {
+                        return true;
+                    }
+
+                    @Override
+                    public void onReceive(InternalMessage message, long deliveryTag) {
+                        received.add(message);
+                        deliveryTags.add(deliveryTag);
+                    }
+
+                    @Override
+                    public void settle(MessageClient.Acknowledger acknowledger) throws IOException {
+                        Long tag;
+                        while ((tag = toAck.poll()) != null) {
+                            acknowledger.ack(tag, true);
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                // stopped by the test
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitCommitted(SegmentLogMessageClient client, long offset) throws InterruptedException {
+        var offsetFile = dir.resolve("za.i").resolve(SegmentLog.OFFSET_FILE_NAME);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (ByteBuffer.wrap(Files.readAllBytes(offsetFile)).getLong() == offset) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not there yet
+            }
+            Thread.sleep(1);
+        }
+        fail("offset " + offset + " was not committed");
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve("za.i"))) {
+            return files.filter(path -> path.toString().endsWith(SegmentLog.SEGMENT_SUFFIX)).toList();
+        }
+    }
+
+    private static Object i(InternalMessage message) {
+        return ((Map<?, ?>) message.serializableBody()).get("i");
+    }
+
+    private static void stop(Thread thread) throws InterruptedException {
+        thread.interrupt();
+        thread.join(1000);
+    }
+
+    private static MessageClient.Outgoing delayed(MessageClient.Outgoing outgoing, long delayMs) {
+        return new MessageClient.Outgoing(outgoing.queueName(), outgoing.messageId(), outgoing.message(), null,
+            Map.of(InternalMessage.ATTEMPT_HEADER, "1"), delayMs);
+    }
+
+    private static MessageClient.Outgoing outgoing(int i) {
+        var message = new InternalMessage(UUID.randomUUID(), "in", "chan", "pluginId", Optional.empty(), Map.of("i", i));
+        return new MessageClient.Outgoing("za.i", "id-" + i, MessageUtils.encode(message).get());
+    }
+}
@@ -0,0 +1,30 @@
+package za.lib;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class PluginTest {
+    @Test
+    public void testDelaysOverTheMaxAreRejectedAtOnce() {
+        var plugin = new Plugin() {};
+        var e = assertThrows(IllegalArgumentException.class, () -> plugin.in("chan", Map.of(), Duration.ofDays(2)));
+        assertTrue(e.getMessage().startsWith("Must have 0 <= delay <= "), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> plugin.in("chan", Map.of(), Duration.ofMillis(-1)));
+    }
+
+    @Test
+    public void testConfigsWithoutDelayedSenderRejectOnlyDelays() {
+        var sent = new ArrayList<String>();
+        var config = new Plugin.Config(null, null, null, Map.of(), (channel, message) -> sent.add(channel), null, "id");
+        config.in().accept("chan", Map.of());
+        assertEquals(List.of("chan"), sent);
+        var e = assertThrows(IllegalStateException.class, () -> config.inLater().send("chan", Map.of(), Duration.ofSeconds(1)));
+        assertTrue(e.getMessage().startsWith("Must have "), e.getMessage());
+    }
+}